@@ -8,6 +8,12 @@ import java.io.OutputStream;
 
 import com.kg.oifilemanager.filemanager.FileManagerProvider;
 import com.kg.util.BitmapLoader;
+import com.kg.util.CancellationToken;
+import com.kg.util.ExifOrientation;
+import com.kg.util.ImageInfo;
+import com.kg.util.LoadCancelledException;
+import com.kg.util.LoadOptions;
+import com.kg.util.ScaleMode;
 
 import android.content.Context;
 import android.database.Cursor;
@@ -16,6 +22,7 @@ import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
 import android.graphics.Bitmap.Config;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
@@ -49,6 +56,13 @@ public class ItemsLoader extends Thread {
 
     /** Quality for compressed thumbnail */
     public static final int THUMBNAILS_QUALITY = 70;
+    /**
+     * MediaStore width and height columns, filled by the media scanner since
+     * Jelly Bean.
+     */
+    private static final String COLUMN_WIDTH = "width";
+    private static final String COLUMN_HEIGHT = "height";
+    private static final int JELLY_BEAN = 16;
     private static int mThumbnailSize;
 
     /**
@@ -62,6 +76,23 @@ public class ItemsLoader extends Thread {
      *         picture.
      */
     public static Uri getThumbnail(Context context, Uri imageUri) {
+        return getThumbnail(context, imageUri, null);
+    }
+
+    /**
+     * This static method allows to create and store a thumbnail.
+     * 
+     * @param context
+     *            Any context, might be the application context.
+     * @param imageUri
+     *            The Uri of the picture.
+     * @param cancellationToken
+     *            Allows to abort the thumbnail creation if it is not needed
+     *            anymore. Can be null.
+     * @return The Bitmap containing a scaled-down version of the requested
+     *         picture.
+     */
+    public static Uri getThumbnail(Context context, Uri imageUri, CancellationToken cancellationToken) {
         Uri result = null;
         if (context != null && imageUri != null) {
             File storageDir = new CacheManager(context).getCacheDir("creator");
@@ -86,7 +117,17 @@ public class ItemsLoader extends Thread {
                     Log.d(LOG_TAG, "Thumbnail calculated size " + size + " x "
                             + size);
 
-                    bmp = BitmapLoader.load(context, imageUri, size, size, Config.RGB_565, true);
+                    LoadOptions loadOptions = new LoadOptions(size, size);
+                    loadOptions.colorConfig = Config.RGB_565;
+                    loadOptions.cancellationToken = cancellationToken;
+                    loadOptions.scaleWhileDecoding = true;
+                    // Fill the square grid cells
+                    loadOptions.scaleMode = ScaleMode.CENTER_CROP;
+                    loadOptions.allowEmbeddedThumbnail = true;
+                    // The thumbnail is written below, as a file shared with
+                    // the other activities
+                    loadOptions.diskCacheResult = false;
+                    bmp = BitmapLoader.load(context, imageUri, loadOptions);
                     if (bmp != null) {
                         // we were able to load the image, let's store the
                         // thumbnail
@@ -97,6 +138,8 @@ public class ItemsLoader extends Thread {
                     }
                 }
                 result = FileManagerProvider.getContentUri(tmpFile);
+            } catch (LoadCancelledException e) {
+                Log.d(LOG_TAG, "Thumbnail cancelled : " + imageUri);
             } catch (FileNotFoundException e) {
                 Log.e(LOG_TAG, "Error : ", e);
             } catch (IOException e) {
@@ -185,7 +228,17 @@ public class ItemsLoader extends Thread {
         String[] projection = { ImageColumns.BUCKET_DISPLAY_NAME,
                 ImageColumns.DATE_TAKEN, ImageColumns.TITLE,
                 ImageColumns.MINI_THUMB_MAGIC, ImageColumns._ID,
-                ImageColumns.DATA, ImageColumns.BUCKET_ID };
+                ImageColumns.DATA, ImageColumns.BUCKET_ID,
+                ImageColumns.ORIENTATION, ImageColumns.SIZE,
+                ImageColumns.DATE_MODIFIED, ImageColumns.MIME_TYPE };
+        boolean hasDimensions = Build.VERSION.SDK_INT >= JELLY_BEAN;
+        if (hasDimensions) {
+            String[] withDimensions = new String[projection.length + 2];
+            System.arraycopy(projection, 0, withDimensions, 0, projection.length);
+            withDimensions[projection.length] = COLUMN_WIDTH;
+            withDimensions[projection.length + 1] = COLUMN_HEIGHT;
+            projection = withDimensions;
+        }
 
         String selection = ImageColumns.BUCKET_DISPLAY_NAME + " = "
             + DatabaseUtils.sqlEscapeString(mBucketName);
@@ -200,6 +253,11 @@ public class ItemsLoader extends Thread {
             Uri imageUri = Uri.withAppendedPath(Media.EXTERNAL_CONTENT_URI,
                     cursor.getString(cursor
                             .getColumnIndexOrThrow(ImageColumns._ID)));
+            if (hasDimensions) {
+                // The thumbnails and previews won't need to read the
+                // pictures headers.
+                seedImageInfo(cursor, imageUri);
+            }
             Message msg = new Message();
             Bundle data = new Bundle();
 
@@ -211,6 +269,51 @@ public class ItemsLoader extends Thread {
         }
     }
 
+    /**
+     * Give the dimensions stored in the MediaStore to the BitmapLoader.
+     * 
+     * @param cursor
+     *            The listing cursor, on the row of the picture.
+     * @param imageUri
+     *            The Uri of the picture.
+     */
+    private void seedImageInfo(Cursor cursor, Uri imageUri) {
+        ImageInfo info = new ImageInfo();
+        info.width = cursor.getInt(cursor.getColumnIndexOrThrow(COLUMN_WIDTH));
+        info.height = cursor.getInt(cursor.getColumnIndexOrThrow(COLUMN_HEIGHT));
+        if (info.width <= 0 || info.height <= 0) {
+            // Not scanned yet
+            return;
+        }
+        // The MediaStore gives the rotation in degrees
+        switch (cursor.getInt(cursor.getColumnIndexOrThrow(ImageColumns.ORIENTATION))) {
+        case 90:
+            info.orientation = ExifOrientation.ROTATE_90;
+            break;
+        case 180:
+            info.orientation = ExifOrientation.ROTATE_180;
+            break;
+        case 270:
+            info.orientation = ExifOrientation.ROTATE_270;
+            break;
+        default:
+            info.orientation = ExifOrientation.NORMAL;
+            break;
+        }
+        String mimeType = cursor.getString(cursor.getColumnIndexOrThrow(ImageColumns.MIME_TYPE));
+        if ("image/jpeg".equals(mimeType)) {
+            info.format = ImageInfo.Format.JPEG;
+        } else if ("image/png".equals(mimeType)) {
+            info.format = ImageInfo.Format.PNG;
+        } else if ("image/gif".equals(mimeType)) {
+            info.format = ImageInfo.Format.GIF;
+        }
+        long size = cursor.getLong(cursor.getColumnIndexOrThrow(ImageColumns.SIZE));
+        // DATE_MODIFIED is in seconds, file modification times in millis
+        long modified = cursor.getLong(cursor.getColumnIndexOrThrow(ImageColumns.DATE_MODIFIED)) * 1000;
+        BitmapLoader.seedImageInfo(mContext, imageUri, info, size, modified);
+    }
+
     public void removeLock() {
         File lock = new File(mContext.getFilesDir(), LOCK_FILE);
         if (lock.exists()) {
@@ -28,8 +28,12 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Future;
 
 import com.kg.util.BitmapLoader;
+import com.kg.util.CancellationToken;
+import com.kg.util.LoadOptions;
+import com.kg.util.ProgressiveLoadCallback;
 
 import android.app.Activity;
 import android.app.AlertDialog;
@@ -146,7 +150,7 @@ public class SelectPictures extends Activity {
                     // Log.d(LOG_TAG, "Consumed " + srcUri +
                     // " from the queue ! " + mPendingThumbnailRequests.size());
                     // Let the ThumbnailLoader do the job.
-                    Uri result = ItemsLoader.getThumbnail(mContext, srcUri);
+                    Uri result = ItemsLoader.getThumbnail(mContext, srcUri, mThumbnailsCancellation);
                     publishProgress(srcUri, result);
                 }
                 return null;
@@ -229,6 +233,13 @@ public class SelectPictures extends Activity {
 
         private ThumbnailGetter mThmGetter = null;
 
+        /**
+         * Cancels the thumbnails being generated when the user flings the
+         * grid or leaves the activity. Replaced after each cancellation, on the
+         * UI thread, and read by the thumbnails thread.
+         */
+        private volatile CancellationToken mThumbnailsCancellation = new CancellationToken();
+
         /**
          * One generic Listener instance for every thumbnail that will be added
          * to the grid.
@@ -281,6 +292,7 @@ public class SelectPictures extends Activity {
         public void stopFetchingThumbnails() {
             isFetchingThumbnailsAllowed = false;
             mPendingThumbnailRequests.clear();
+            cancelRunningThumbnails();
             // Log.d(LOG_TAG, "Cleared pending requests !");
         }
 
@@ -315,6 +327,15 @@ public class SelectPictures extends Activity {
          */
         public void clearPendingThumbnails() {
             mPendingThumbnailRequests.clear();
+            cancelRunningThumbnails();
+        }
+
+        /**
+         * Abort the thumbnail currently being generated.
+         */
+        private void cancelRunningThumbnails() {
+            mThumbnailsCancellation.cancel();
+            mThumbnailsCancellation = new CancellationToken();
         }
 
         /**
@@ -418,7 +439,10 @@ public class SelectPictures extends Activity {
             Uri thumbUri = mThumbsUris.get(imageUri);
             if (thumbUri != null) {
                 try {
-                    Bitmap thumb = BitmapLoader.load(mContext, thumbUri, mThumbSize, mThumbSize);
+                    LoadOptions thumbOptions = new LoadOptions(mThumbSize, mThumbSize);
+                    // MediaStore thumbnails are small JPEG files already
+                    thumbOptions.diskCacheResult = false;
+                    Bitmap thumb = BitmapLoader.load(mContext, thumbUri, thumbOptions);
                     if (thumb == null) {
                         thumb = ROBOT_ERROR;
                     }
@@ -616,6 +640,15 @@ public class SelectPictures extends Activity {
     /** Used to store the bitmap loaded asynchronously for item preview */
     protected Bitmap mPreviewPic;
 
+    /** The preview being loaded, cancelled if the activity is paused */
+    private Future<Bitmap> mPreviewLoad;
+
+    /** True until a first preview, coarse or final, has been displayed */
+    private boolean mWaitingPreview = false;
+
+    /** The dialog displaying the preview, null until it is created */
+    private AlertDialog mPreviewDialog;
+
     /**
      * The spinner allowing the user to chose the bucket from which to pick
      * pictures.
@@ -793,7 +826,8 @@ public class SelectPictures extends Activity {
         case DIALOG_IMAGE_PREVIEW:
             // Create the dialog for previewing pictures
             ImageView imgPrv = (ImageView) getLayoutInflater().inflate(R.layout.image_preview, null);
-            return new AlertDialog.Builder(this).setView(imgPrv).create();
+            mPreviewDialog = new AlertDialog.Builder(this).setView(imgPrv).create();
+            return mPreviewDialog;
         case DIALOG_WAIT_PREVIEW:
             // Create the progress dialog to be displayed while loading
             // the picture being previewd
@@ -832,6 +866,25 @@ public class SelectPictures extends Activity {
         if (mItemsLoader != null && mItemsLoader.isAlive()) {
             mItemsLoader.stopJob();
         }
+        if (mPreviewLoad != null && !mPreviewLoad.isDone()) {
+            // Stop decoding a preview the user won't see
+            mPreviewLoad.cancel(true);
+            removeDialog(DIALOG_WAIT_PREVIEW);
+        }
+        mImageAdapter.clearPendingThumbnails();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see android.app.Activity#onResume()
+     */
+    @Override
+    protected void onResume() {
+        super.onResume();
+        // Thumbnails cancelled in onPause() are requested again when the
+        // grid items are bound.
+        mImageAdapter.notifyDataSetChanged();
     }
 
     /*
@@ -937,38 +990,84 @@ public class SelectPictures extends Activity {
     protected void showPreviewDialog() {
 
         // First, display aprogress dialog while the bitmap is loading
+        mWaitingPreview = true;
         showDialog(DIALOG_WAIT_PREVIEW);
 
         // The preview Bitmap will be loaded asynchronously. This is required
         // to avoid ANR with big image files.
-        AsyncTask<Uri, Integer, Bitmap> previewLoader = new AsyncTask<Uri, Integer, Bitmap>() {
+        LoadOptions previewOptions = new LoadOptions();
+        // After a rotation, show the previous preview while a larger one loads
+        previewOptions.qualityTolerance = 0.25f;
+        // A coarse preview is displayed first, then the final one.
+        mPreviewLoad = BitmapLoader.loadAsync(getApplicationContext(), mSelectedImage, previewOptions, new ProgressiveLoadCallback() {
 
             @Override
-            protected Bitmap doInBackground(Uri... uris) {
-                try {
-                    return BitmapLoader.load(getApplicationContext(), uris[0], null, null);
-                } catch (IOException e) {
-                    Log.e(LOG_TAG, "Error : ", e);
+            public void onPreviewLoaded(Uri uri, Bitmap preview) {
+                showPreview(preview);
+            }
+
+            @Override
+            public void onBitmapLoaded(Uri uri, Bitmap bitmap) {
+                if (bitmap == null) {
+                    Log.e(LOG_TAG, "Cannot decode the preview of " + uri);
                 }
-                return null;
+                updatePreview(bitmap);
             }
 
-            /*
-             * (non-Javadoc)
-             * 
-             * @see android.os.AsyncTask#onPostExecute(java.lang.Object)
-             */
             @Override
-            protected void onPostExecute(Bitmap result) {
-                mPreviewPic = result;
+            public void onLoadFailed(Uri uri, Throwable error) {
+                Log.e(LOG_TAG, "Error : ", error);
+                showPreview(null);
+            }
+
+        }, null);
+    }
+
+    /**
+     * Displays the preview loaded in background, from the UI thread.
+     * 
+     * @param preview
+     *            The loaded preview, or null if the loading failed.
+     */
+    private void showPreview(final Bitmap preview) {
+        runOnUiThread(new Runnable() {
+
+            @Override
+            public void run() {
+                mWaitingPreview = false;
+                mPreviewPic = preview;
                 removeDialog(DIALOG_WAIT_PREVIEW);
                 if (mPreviewPic != null) {
                     showDialog(DIALOG_IMAGE_PREVIEW);
                 }
             }
 
-        };
-        previewLoader.execute(mSelectedImage);
+        });
+    }
+
+    /**
+     * Displays the final preview, from the UI thread. If a coarse preview is
+     * already displayed, its dialog is updated, unless the user has dismissed
+     * it meanwhile. A null preview ends the wait like a failed loading, and
+     * leaves a coarse preview in place.
+     * 
+     * @param preview
+     *            The final preview, or null if it could not be decoded.
+     */
+    private void updatePreview(final Bitmap preview) {
+        runOnUiThread(new Runnable() {
+
+            @Override
+            public void run() {
+                if (mWaitingPreview) {
+                    showPreview(preview);
+                } else if (preview != null && mPreviewDialog != null && mPreviewDialog.isShowing()) {
+                    mPreviewPic = preview;
+                    ((ImageView) mPreviewDialog.findViewById(R.id.image_preview)).setImageBitmap(preview);
+                }
+            }
+
+        });
     }
 
     public int getThumbnailSize() {
@@ -18,15 +18,41 @@
  */
 package com.kg.util;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
 import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Display;
 import android.view.WindowManager;
@@ -35,8 +61,9 @@ import android.view.WindowManager;
  * Helper class for enhanced picture loading with downscaling within a specified
  * dimension. Picture loading is split in 2 passes :
  * <ul>
- * <li>1st pass don't load the picture, just find it's real width and height and
- * calculate the optimal size and downsampling for next pass.</li>
+ * <li>1st pass don't load the picture, just find it's real width and height
+ * (read from the picture header by {@link ImageHeaderParser}) and calculate
+ * the optimal size and downsampling for next pass.</li>
  * <li>2nd pass read the picture with the best downsampling option to load only
  * the strictly necessary pixels.</li>
  * </ul>
@@ -47,19 +74,168 @@ import android.view.WindowManager;
 public class BitmapLoader {
 
     /**
-     * A cache for storing the latest accessed bitmaps. If another call asks for
-     * a larger resolution, we reload it and keep the latest.
+     * Default memory cache budget: an eighth of the maximum heap size, which on
+     * Android is the device memory class.
      */
-    private static NewLRUCache<String, Bitmap> bmpCache = new NewLRUCache<String, Bitmap>(500);
+    private static final long DEFAULT_MEMORY_CACHE_BYTES = Runtime.getRuntime().maxMemory() / 8;
+
+    /**
+     * A cache for storing the latest accessed bitmaps. Several resolutions of
+     * a picture can be cached, see {@link #cacheLevels}. The cache is
+     * bounded by the total size of the Bitmaps pixels.
+     */
+    private static volatile MemoryCache<String, Bitmap> bmpCache = NewLRUCache.withMaxWeight(
+            DEFAULT_MEMORY_CACHE_BYTES, new BitmapWeigher());
+    /**
+     * The resolution levels cached for each picture. A thumbnail and a full
+     * screen version of the same picture are cached side by side, sharing the
+     * memory cache budget.
+     */
+    private static final CacheLevels cacheLevels = new CacheLevels();
+    /**
+     * Default bitmap pool budget: a sixteenth of the maximum heap size.
+     */
+    private static final long DEFAULT_BITMAP_POOL_BYTES = Runtime.getRuntime().maxMemory() / 16;
+    /**
+     * Bitmaps which are not used anymore, reused by decodes and scaling. Null
+     * before Honeycomb, where decodes can't reuse Bitmaps.
+     */
+    private static volatile BitmapPool bitmapPool = BitmapPool.canDecodeIntoBitmaps() ? new BitmapPool(
+            DEFAULT_BITMAP_POOL_BYTES) : null;
+    /** Whether Bitmaps evicted from the memory cache go to the pool. */
+    private static volatile boolean recycleEvictedBitmaps = false;
+    /**
+     * Forgets the levels evicted from the memory cache, so that the cache
+     * levels don't grow with every picture ever loaded, and gives the evicted
+     * Bitmaps to the pool if enabled.
+     */
+    private static final EvictionListener<String, Bitmap> ON_EVICTED_BITMAP = new EvictionListener<String, Bitmap>() {
+
+        @Override
+        public void onEvicted(String key, Bitmap value) {
+            cacheLevels.removeLevelKey(key);
+            BitmapPool pool = bitmapPool;
+            if (recycleEvictedBitmaps && pool != null) {
+                pool.put(value);
+            }
+        }
+    };
+
+    static {
+        bmpCache.setEvictionListener(ON_EVICTED_BITMAP);
+    }
+    /**
+     * Maximum number of pictures in the dimension index, using at most 1MB.
+     */
+    private static final int DIMENSION_INDEX_ENTRIES = 32 * 1024;
     /**
      * A cache for storing real dimensions of all accessed bitmaps. With this
      * the cost of the first pass is reduced when loading a previously accessed
      * picture.
      */
-    private static ConcurrentHashMap<String, int[]> dimensionCache = new ConcurrentHashMap<String, int[]>();
+    private static final DimensionIndex dimensionIndex = new DimensionIndex(DIMENSION_INDEX_ENTRIES);
+    /** Name of the metadata store file, in the application cache directory. */
+    private static final String METADATA_FILE_NAME = "bitmaploader-metadata";
+    /**
+     * Keeps the dimension index content across restarts. Opened in
+     * background on first use, null until then.
+     */
+    private static volatile MetadataStore metadataStore = null;
+    /** Whether the metadata store is used. */
+    private static volatile boolean persistMetadata = true;
+    /** True while the metadata store is being opened. */
+    private static boolean metadataStoreOpening = false;
+    /**
+     * Guards the opening and closing of the metadata store, so that the
+     * loads don't contend on the BitmapLoader class monitor.
+     */
+    private static final Object metadataLock = new Object();
+    /** Name of the default disk cache directory, in the application cache directory. */
+    private static final String DISK_CACHE_DIR_NAME = "bitmaploader-results";
+    /** Default disk cache budget. */
+    private static final long DEFAULT_DISK_CACHE_BYTES = 32 * 1024 * 1024;
+    /** JPEG quality of the opaque results written to the disk cache. */
+    private static final int DISK_CACHE_QUALITY = 90;
+    /**
+     * A second level cache of encoded load results, surviving restarts and
+     * memory cache evictions: reading a result is much cheaper than decoding
+     * and scaling down the original picture again. Opened in background on
+     * first use, null until then.
+     */
+    private static volatile DiskCache diskCache = null;
+    /** The disk cache directory, null for the default one. */
+    private static File diskCacheDirectory = null;
+    /** The disk cache budget, 0 if the disk cache is disabled. */
+    private static volatile long diskCacheBytes = DEFAULT_DISK_CACHE_BYTES;
+    /** True while the disk cache is being opened. */
+    private static boolean diskCacheOpening = false;
+    /** Guards the opening and closing of the disk cache. */
+    private static final Object diskCacheLock = new Object();
+    /**
+     * Maximum number of results waiting to be written to the disk cache.
+     * Beyond it, results are not written, so that a fast scroll does not
+     * queue copies of all the pictures it went through.
+     */
+    private static final int MAX_PENDING_DISK_WRITES = 16;
+    /**
+     * The decodes currently running. Concurrent loads of the same picture
+     * wait for a single decode.
+     */
+    private static InFlightDecodes inFlightDecodes = new InFlightDecodes();
+    /**
+     * The cache keys of the undersized cached Bitmaps being reloaded in
+     * background, so that a Bitmap is only upgraded once.
+     */
+    private static ConcurrentHashMap<String, Boolean> pendingUpgrades = new ConcurrentHashMap<String, Boolean>();
 
     private static final String LOG_TAG = BitmapLoader.class.getSimpleName();
 
+    /**
+     * Number of bytes kept while reading the picture header in the first pass.
+     * If the header fits in this buffer, the second pass reuses the same
+     * stream instead of opening the Uri again.
+     */
+    private static final int HEADER_BUFFER_SIZE = 128 * 1024;
+    /** How long the I/O thread waits for more work before stopping. */
+    private static final long IO_THREAD_KEEP_ALIVE_MS = 10 * 1000;
+
+    /**
+     * The executor used by asynchronous loads when the caller does not provide
+     * one. Created on first use.
+     */
+    private static Executor defaultExecutor = null;
+    /** True if defaultExecutor has been created by the BitmapLoader. */
+    private static boolean ownsDefaultExecutor = false;
+
+    /** Interrupts decodes when their deadline is reached. Created on use. */
+    private static Timer deadlineTimer = null;
+    /**
+     * Runs the file I/O which the loads don't have to wait for, like opening
+     * the metadata store, on a single daemon thread stopped when idle.
+     */
+    private static final ThreadPoolExecutor ioExecutor = new ThreadPoolExecutor(1, 1,
+            IO_THREAD_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, LOG_TAG + " I/O");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+                    return thread;
+                }
+            });
+
+    static {
+        ioExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * How much smaller than the final result a progressive load preview is.
+     * JPEG pictures are decoded 8 times faster at 1/8 of their size.
+     */
+    private static final int PREVIEW_DIVIDER = 8;
+
     /**
      * First pass: read the picture real size and calculate what will be the
      * final size and downsampling option considering the dimensions asked by
@@ -67,38 +243,60 @@ public class BitmapLoader {
      * 
      * @param context
      *            The application context.
-     * @param width
-     *            The maximum width of the final picture.
-     * @param height
-     *            The maximum height of the final picture.
+     * @param loadOptions
+     *            The requested dimensions and scale mode.
      * @param input
-     *            The input stream of the original picture.
+     *            The input stream of the original picture, marked at its
+     *            beginning.
      * @param cachedDimension
-     *            If the BitmapLoader has already
+     *            If the BitmapLoader has already read the picture header: its
+     *            properties packed by {@link DimensionIndex}, 0 otherwise.
      * @return
      * @throws IOException
      */
-    private static FirstPassResult firstPass(Context context, Integer width,
-            Integer height, InputStream input, int[] cachedDimension)
-            throws IOException {
-        Log.d(LOG_TAG, "Requested " + width + " x "
-                + height);
+    private static FirstPassResult firstPass(Context context,
+            LoadOptions loadOptions, RewindableInputStream input,
+            long cachedDimension) throws IOException {
+        Log.d(LOG_TAG, "Requested " + loadOptions.width + " x "
+                + loadOptions.height + " " + loadOptions.scaleMode);
 
         
         FirstPassResult fpResult = new FirstPassResult();
+        ImageInfo info = null;
 
         // First, get image size
         fpResult.options.inJustDecodeBounds = true;
-        if (cachedDimension != null) {
-            fpResult.options.outWidth = cachedDimension[0];
-            fpResult.options.outHeight = cachedDimension[1];
-            // Log.d(LOG_TAG, "Cached size : " + cachedDimension[0] + " x "
-            // + cachedDimension[1]);
+        if (cachedDimension != 0) {
+            fpResult.options.outWidth = DimensionIndex.width(cachedDimension);
+            fpResult.options.outHeight = DimensionIndex.height(cachedDimension);
+            fpResult.orientation = DimensionIndex.orientation(cachedDimension);
+            fpResult.format = DimensionIndex.format(cachedDimension);
+            // Log.d(LOG_TAG, "Cached size : " + fpResult.options.outWidth
+            // + " x " + fpResult.options.outHeight);
         } else if (input != null) {
             // Log.d(LOG_TAG, "Fetching size...");
-            BitmapFactory.decodeStream(new FlushedInputStream(input), null, fpResult.options);
+            // The input is not closed here, the caller may rewind it to reuse
+            // it for the second pass.
+            // The EXIF data is always read so that the cached dimension
+            // includes the orientation and the thumbnail location, but the
+            // thumbnail is only copied if the load may use it.
+            info = ImageHeaderParser.parse(input, HEADER_BUFFER_SIZE, true,
+                    loadOptions.allowEmbeddedThumbnail);
+            if (info != null) {
+                fpResult.options.outWidth = info.width;
+                fpResult.options.outHeight = info.height;
+                fpResult.format = info.format;
+                fpResult.orientation = info.orientation;
+                fpResult.thumbnail = DimensionIndex.packThumbnail(info);
+            } else {
+                fpResult.thumbnail = DimensionIndex.NO_THUMBNAIL;
+                // Unknown header, let the native decoder find the size. The
+                // parser does not read past the header buffer so the input
+                // can be rewound.
+                input.reset();
+                BitmapFactory.decodeStream(input, null, fpResult.options);
+            }
             // Log.d(LOG_TAG, "... size fetched.");
-            input.close();
         }
         int srcWidth = fpResult.options.outWidth;
         int srcHeight = fpResult.options.outHeight;
@@ -106,61 +304,31 @@ public class BitmapLoader {
         Log.d(LOG_TAG, "Source picture has dimension " + srcWidth + " x "
          + srcHeight);
 
-        float srcImageRatio = (float) srcWidth / (float) srcHeight;
-
+        Integer width = loadOptions.width;
+        Integer height = loadOptions.height;
         // If no resolution given, use the device screen resolution
         if (width == null && height == null) {
-            Display display = ((WindowManager) context
-                    .getSystemService(Context.WINDOW_SERVICE))
-                    .getDefaultDisplay();
-            fpResult.finalWidth = display.getWidth();
-            fpResult.finalHeight = display.getHeight();
-             Log.d(LOG_TAG, "Display is : " + fpResult.finalWidth + " x "
-             + fpResult.finalHeight);
-        } else if (width == null) {
-            // If only one dimension is given, keep source proportions
-            fpResult.finalWidth = (int) (height * srcImageRatio);
-            fpResult.finalHeight = height;
-        } else if (height == null) {
-            // If only one dimension is given, keep source proportions
-            fpResult.finalHeight = (int) (width / srcImageRatio);
-            fpResult.finalWidth = width;
-        } else {
-            fpResult.finalWidth = width;
-            fpResult.finalHeight = height;
-        }
-
-        float requestedImageRatio = (float) fpResult.finalWidth
-                / (float) fpResult.finalHeight;
-
-        // Switch requested orientation to allow best quality without
-        // reloading if device orientation changes
-        if ((srcImageRatio > 1 && requestedImageRatio < 1)
-                || (srcImageRatio < 1 && requestedImageRatio > 1)) {
-            int oldValue = fpResult.finalWidth;
-            fpResult.finalWidth = fpResult.finalHeight;
-            fpResult.finalHeight = oldValue;
-            requestedImageRatio = 1 / requestedImageRatio;
+            Display display = getDisplay(context);
+            width = display.getWidth();
+            height = display.getHeight();
+            Log.d(LOG_TAG, "Display is : " + width + " x " + height);
         }
 
-        // 2 final requested dimensions are now given, adjust for best fit
-        // with aspect ratio preserved
-
-        // Calculates which dimension should be used to preserve aspect
-        // ratio
-        if (requestedImageRatio <= srcImageRatio) {
-            fpResult.finalHeight = (int) (fpResult.finalWidth / srcImageRatio);
-        } else if (requestedImageRatio > srcImageRatio) {
-            fpResult.finalWidth = (int) (fpResult.finalHeight * srcImageRatio);
-        }
+        fpResult.plan = ScalePlanner.plan(srcWidth, srcHeight,
+                loadOptions.applyExifOrientation ? fpResult.orientation
+                        : ExifOrientation.NORMAL, width, height,
+                loadOptions.scaleMode, loadOptions.reserveRotation);
+        fpResult.finalWidth = fpResult.plan.finalWidth;
+        fpResult.finalHeight = fpResult.plan.finalHeight;
+        fpResult.options.inSampleSize = fpResult.plan.sampleSize;
 
-        // Calculate the sample size needed to load image with minimum
-        // required memory consumption.
-        // We eventually load a larger bitmap if orientation is different so
-        // that if device orientation changes, we don't have to reload a
-        // finer sampled bitmap
-        if (srcWidth > fpResult.finalWidth) {
-            fpResult.options.inSampleSize = srcWidth / fpResult.finalWidth;
+        if (info != null && info.exifThumbnail != null
+                && loadOptions.allowEmbeddedThumbnail
+                && ScalePlanner.isCoveredBy(fpResult.plan, info.exifThumbnailWidth,
+                        info.exifThumbnailHeight)) {
+            Log.d(LOG_TAG, "Using the EXIF thumbnail " + info.exifThumbnailWidth
+                    + " x " + info.exifThumbnailHeight);
+            fpResult.exifThumbnail = info.exifThumbnail;
         }
         return fpResult;
     }
@@ -226,8 +394,36 @@ public class BitmapLoader {
     public static Bitmap load(Context context, Uri uri, Integer width,
             Integer height, Bitmap.Config colorConfig, boolean cacheResult)
             throws IOException {
+        LoadOptions loadOptions = new LoadOptions(width, height);
+        loadOptions.colorConfig = colorConfig;
+        loadOptions.cacheResult = cacheResult;
+        return load(context, uri, loadOptions);
+    }
+
+    /**
+     * Load a picture from the given Uri.
+     * 
+     * @param context
+     *            The application context.
+     * @param uri
+     *            The Uri where the picture is located.
+     * @param loadOptions
+     *            The requested dimensions, color configuration, caching and
+     *            cancellation parameters. See {@link LoadOptions}.
+     * @return A Bitmap loaded from the Uri, scaled down to fit the requested
+     *         width and height.
+     * @throws LoadCancelledException
+     *             If the load has been cancelled or its deadline has passed.
+     * @throws IOException
+     */
+    public static Bitmap load(Context context, Uri uri, LoadOptions loadOptions)
+            throws IOException {
         // The resulting Bitmap.
         Bitmap result = null;
+        Integer width = loadOptions.width;
+        Integer height = loadOptions.height;
+        boolean cacheResult = loadOptions.cacheResult;
+        Bitmap.Config colorConfig = loadOptions.colorConfig;
 
         if (colorConfig == null) {
             // Default color configuration. Is good enough for screen display
@@ -236,140 +432,1972 @@ public class BitmapLoader {
             colorConfig = Bitmap.Config.RGB_565;
         }
 
-        Log.d(LOG_TAG, "" + width + "x" + height + " - Open Uri" + uri.toString());
-        InputStream input = context.getContentResolver().openInputStream(uri);
+        checkCancelled(loadOptions);
 
-        if (input == null)
-            return null;
+        String key = uri.toString();
+        FirstPassResult fpResult = null;
+        Bitmap cachedBitmap = null;
+        long cachedDimension = getCachedDimension(context, uri);
+        if (cachedDimension != 0) {
+            // We already have the result of the first pass, so we can check
+            // the memory cache before opening anything.
+            fpResult = firstPass(context, loadOptions, null, cachedDimension);
+            cachedBitmap = getCachedBitmap(bitmapKey(key, fpResult), fpResult);
+            if (cachedBitmap == null) {
+                cachedBitmap = getUndersizedCachedBitmap(context, uri,
+                        bitmapKey(key, fpResult), fpResult, loadOptions);
+            }
+            if (cachedBitmap != null) {
+                return scaleCachedBitmap(context, uri, bitmapKey(key, fpResult),
+                        fpResult, colorConfig, cachedBitmap, loadOptions);
+            }
+            if (loadOptions.allowEmbeddedThumbnail) {
+                fpResult.thumbnail = getCachedThumbnail(uri);
+                if (fpResult.thumbnail == 0) {
+                    // The header properties come from another source, read
+                    // the header to find the EXIF thumbnail
+                    fpResult = null;
+                }
+            }
+        }
 
-        InputStream fpInput = null;
-        int[] cachedDimension = null;
-        if (!dimensionCache.containsKey(uri.toString())) {
-            fpInput = input;
-        } else {
-            // We already have the result of the first pass. We should not
-            // preload anything more.
-            cachedDimension = dimensionCache.get(uri.toString());
-            fpInput = null;
-        }
-
-        FirstPassResult fpResult = firstPass(context, width, height, fpInput,
-                cachedDimension);
-        int[] dimensionToCache = { fpResult.options.outWidth,
-                fpResult.options.outHeight };
-        // Store the dimension in cache so we don't have to get it again
-        dimensionCache.put(uri.toString(), dimensionToCache);
-
-        if (fpInput == null) {
-            // The first pass input is null, so we can reuse the original input
-            // stream as it has not been used for the first pass.
-            fpInput = input;
-        } else {
-            // The original input stream has been consumed for the first pass.
-            // Get a new one.
-            fpInput = context.getContentResolver().openInputStream(uri);
+        RewindableInputStream fpInput = null;
+        if (fpResult != null && DimensionIndex.hasThumbnail(fpResult.thumbnail)
+                && ScalePlanner.isCoveredBy(fpResult.plan,
+                        DimensionIndex.thumbnailWidth(fpResult.thumbnail),
+                        DimensionIndex.thumbnailHeight(fpResult.thumbnail))) {
+            // Read only the EXIF thumbnail, then rewind the stream in case
+            // the picture has to be decoded
+            Log.d(LOG_TAG, "" + width + "x" + height + " - Open Uri" + key);
+            InputStream input = context.getContentResolver().openInputStream(uri);
+            if (input == null)
+                return null;
+            fpInput = new RewindableInputStream(input, HEADER_BUFFER_SIZE);
+            fpInput.mark(HEADER_BUFFER_SIZE);
+            try {
+                fpResult.exifThumbnail = readExifThumbnail(fpInput, fpResult.thumbnail);
+            } catch (IOException e) {
+                fpInput.close();
+                throw e;
+            }
         }
+        if (fpResult == null) {
+            Log.d(LOG_TAG, "" + width + "x" + height + " - Open Uri" + key);
+            InputStream input = context.getContentResolver().openInputStream(uri);
 
-        Bitmap cachedBitmap = null;
-        Log.d(LOG_TAG, "Check if " + uri.toString() + " is in cache.");
-        cachedBitmap = bmpCache.get(uri.toString());
-        boolean overWriteCache = true;
-        if (cachedBitmap != null) {
-            overWriteCache = false;
-            Log.d(LOG_TAG, uri.toString() + " is in cache.");
-            cachedBitmap = bmpCache.get(uri.toString());
-            // We have a Bitmap in cache, but we have to check if its resolution
-            // is large enough.
-            Log.d(LOG_TAG, (cachedBitmap.getWidth() + 1) + " < "
-                    + fpResult.finalWidth + " || "
-                    + (cachedBitmap.getHeight() + 1) + " < "
-                    + fpResult.finalHeight);
-            if ((cachedBitmap.getWidth() + 1) < fpResult.finalWidth
-                    || (cachedBitmap.getHeight() + 1) < fpResult.finalHeight) {
-                // invalidate the existing entry
-                Log.d(LOG_TAG, uri.toString() + " is not big enough !");
-                overWriteCache = true;
-                cachedBitmap = null;
+            if (input == null)
+                return null;
+
+            // Keep the header bytes so that the first pass input can be
+            // rewound for the second pass.
+            fpInput = new RewindableInputStream(input, HEADER_BUFFER_SIZE);
+            try {
+                checkCancelled(loadOptions);
+                fpInput.mark(HEADER_BUFFER_SIZE);
+                fpResult = firstPass(context, loadOptions, fpInput, 0);
+                // Store the dimension in cache so we don't have to get it
+                // again
+                cacheDimension(context, uri, fpResult);
+                checkCancelled(loadOptions);
+            } catch (IOException e) {
+                fpInput.close();
+                throw e;
+            }
+
+            cachedBitmap = getCachedBitmap(bitmapKey(key, fpResult), fpResult);
+            if (cachedBitmap == null) {
+                cachedBitmap = getUndersizedCachedBitmap(context, uri,
+                        bitmapKey(key, fpResult), fpResult, loadOptions);
+            }
+            if (cachedBitmap != null) {
+                fpInput.close();
+                return scaleCachedBitmap(context, uri, bitmapKey(key, fpResult),
+                        fpResult, colorConfig, cachedBitmap, loadOptions);
             }
+        }
+
+        String bitmapKey = bitmapKey(key, fpResult);
 
+        // If the same picture is already being decoded at a sufficient size,
+        // wait for this decode instead of starting another one. Loads which
+        // don't cache their result don't share their decode, as their caller
+        // may recycle it.
+        InFlightDecodes.Flight flight = new InFlightDecodes.Flight(
+                fpResult.finalWidth, fpResult.finalHeight, colorConfig);
+        InFlightDecodes.Flight runningFlight = cacheResult ? inFlightDecodes
+                .join(bitmapKey, flight) : inFlightDecodes.find(bitmapKey, flight);
+        if (runningFlight != null && runningFlight != flight) {
+            if (fpInput != null) {
+                fpInput.close();
+                fpInput = null;
+            }
+            Log.d(LOG_TAG, bitmapKey + " is already being decoded, waiting for it.");
+            Bitmap decoded = runningFlight.await(loadOptions);
+            if (!runningFlight.wasAbandoned()) {
+                result = secondPass(context, uri, null, fpResult, colorConfig,
+                        decoded, loadOptions);
+                if (result != null && result == decoded && !cacheResult) {
+                    // The caller may recycle its result, while the decoded
+                    // Bitmap stays in the memory cache.
+                    result = decoded.copy(decoded.getConfig(), BitmapPool.canDecodeIntoBitmaps());
+                }
+                if (cacheResult && result != null) {
+                    putCachedBitmap(bitmapKey, result, false);
+                }
+                return result;
+            }
+            // The load which was decoding has been cancelled or has failed,
+            // but we still need the picture. Decode it without joining
+            // another decode, which could be abandoned as well.
+            Log.d(LOG_TAG, bitmapKey + " decode abandoned, decoding it again.");
+            runningFlight = null;
         }
-        result = secondPass(context, fpInput, fpResult, colorConfig,
-                cachedBitmap);
+        boolean leading = runningFlight == flight;
+
+        Throwable error = null;
+        String diskKey = diskKey(uri, fpResult, colorConfig, loadOptions);
+        boolean decoded = false;
+        try {
+            result = loadFromDiskCache(context, diskKey, fpResult, colorConfig,
+                    loadOptions);
+            if (result != null) {
+                if (fpInput != null) {
+                    fpInput.close();
+                }
+                if (cacheResult) {
+                    putCachedBitmap(bitmapKey, result, true);
+                }
+                return result;
+            }
+
+            InputStream input;
+            if (fpInput == null) {
+                Log.d(LOG_TAG, "" + width + "x" + height + " - Open Uri" + key);
+                input = context.getContentResolver().openInputStream(uri);
+            } else if (fpInput.canReset()) {
+                // The first pass only read the header, rewind the stream to
+                // read the picture from its beginning.
+                fpInput.rewind();
+                input = fpInput;
+            } else {
+                // The original input stream has been consumed past the header
+                // buffer for the first pass. Get a new one.
+                fpInput.close();
+                input = context.getContentResolver().openInputStream(uri);
+            }
+
+            result = secondPass(context, uri, input, fpResult, colorConfig,
+                    null, loadOptions);
+            decoded = result != null;
 
-        // Store the result in cache
-        if (cacheResult && result != null
-                && overWriteCache) {
-            bmpCache.put(uri.toString(), result);
+            // Store the result in cache
+            if (cacheResult && result != null) {
+                putCachedBitmap(bitmapKey, result, true);
+            }
+        } catch (IOException e) {
+            error = e;
+            throw e;
+        } catch (RuntimeException e) {
+            error = e;
+            throw e;
+        } catch (Error e) {
+            error = e;
+            throw e;
+        } finally {
+            if (leading) {
+                // Release the threads which joined this decode
+                inFlightDecodes.leave(bitmapKey, flight);
+                flight.finish(result, error);
+            }
         }
 
+        // Written once the waiting loads are released, they don't need it
+        if (decoded && loadOptions.diskCacheResult) {
+            storeInDiskCache(context, diskKey, result, fpResult, colorConfig);
+        }
         return result;
     }
 
-    
     /**
-     * Create the new Bitmap fitting in the requested size.
+     * Load a coarse version of a picture, fast enough to be displayed while
+     * the final result is being loaded. It is, in order of preference, a
+     * smaller result of a previous load found in the memory cache, the EXIF
+     * thumbnail, or the picture decoded at an eighth of the requested size.
+     * The decoded previews are not cached.
      * 
      * @param context
      *            The application context.
-     * @param input
-     *            An InputStream providing the picture data.
-     * @param fpResult
-     *            The calculations obtained in the first pass (final dimension
-     *            and optimized sample size).
-     * @param colorConfig
-     *            The color {@link Config} we should use to deliver the final
-     *            Bitmap.
-     * @param cachedBitmap
-     *            If the picture has been previously loaded and if we can reuse
-     *            the previous result, the cached Bitmap should be provided
-     *            here.
-     * @return The final Bitmap.
+     * @param uri
+     *            The Uri where the picture is located.
+     * @param loadOptions
+     *            The options of the final load.
+     * @return The preview, or null if the final result is already in the
+     *         memory cache. A preview from the memory cache must not be
+     *         recycled.
+     * @throws LoadCancelledException
+     *             If the load has been cancelled or its deadline has passed.
      * @throws IOException
      */
-    private static Bitmap secondPass(Context context, InputStream input,
-            FirstPassResult fpResult, Bitmap.Config colorConfig,
-            Bitmap cachedBitmap) throws IOException {
-        Bitmap result = null;
-        if (input != null) {
+    public static Bitmap loadPreview(Context context, Uri uri,
+            LoadOptions loadOptions) throws IOException {
+        checkCancelled(loadOptions);
+        String key = uri.toString();
+        long cachedDimension = getCachedDimension(context, uri);
+        if (cachedDimension != 0) {
+            FirstPassResult fpResult = firstPass(context, loadOptions, null,
+                    cachedDimension);
+            String bitmapKey = bitmapKey(key, fpResult);
+            if (getCachedBitmap(bitmapKey, fpResult) != null) {
+                // The final load won't take longer than the preview
+                return null;
+            }
+            Bitmap cachedBitmap = findCachedBitmap(bitmapKey, 0, 0, true);
+            if (cachedBitmap != null) {
+                return cachedBitmap;
+            }
+        }
 
-            fpResult.options.inJustDecodeBounds = false;
-            fpResult.options.inPreferredConfig = colorConfig;
-            if (!colorConfig.equals(Config.ARGB_8888)) {
-                // Other Configs reduce the color depth. Enforcing dithering
-                // could help get nicer pictures.
-                fpResult.options.inDither = true;
+        LoadOptions previewOptions = loadOptions.copy();
+        Integer width = loadOptions.width;
+        Integer height = loadOptions.height;
+        if (width == null && height == null) {
+            Display display = getDisplay(context);
+            width = display.getWidth();
+            height = display.getHeight();
+        }
+        previewOptions.width = width == null ? null : Math.max(1, width
+                / PREVIEW_DIVIDER);
+        previewOptions.height = height == null ? null : Math.max(1, height
+                / PREVIEW_DIVIDER);
+        previewOptions.allowEmbeddedThumbnail = true;
+        previewOptions.cacheResult = false;
+        previewOptions.diskCacheResult = false;
+        return load(context, uri, previewOptions);
+    }
+
+    /**
+     * Load several sizes of a picture with a single decode, for example a
+     * grid thumbnail, a list item and a full screen preview. The picture is
+     * decoded once, upright, at the sample size needed by the largest result.
+     * Each result is then scaled down, and cropped if its scale mode asks
+     * for it, from the smallest already computed whole picture which is large
+     * enough, so each downscale is cheap. Results already in the memory or
+     * disk cache are reused, and so are the decodes of the picture already
+     * running in {@link #load(Context, Uri, LoadOptions)}.
+     * 
+     * @param context
+     *            The application context.
+     * @param uri
+     *            The Uri where the picture is located.
+     * @param sizes
+     *            The options of each result: dimensions, scale mode and
+     *            caching. The color configuration, cancellation and decoding
+     *            options of the first one apply to the decode.
+     * @return The results, in the order of the given options. A result is
+     *         null if the picture could not be decoded.
+     * @throws LoadCancelledException
+     *             If the load has been cancelled or its deadline has passed.
+     * @throws IOException
+     */
+    public static Bitmap[] loadSizes(Context context, Uri uri,
+            LoadOptions... sizes) throws IOException {
+        Bitmap[] results = new Bitmap[sizes.length];
+        if (sizes.length == 0) {
+            return results;
+        }
+        LoadOptions decodeOptions = sizes[0].copy();
+        Bitmap.Config colorConfig = decodeOptions.colorConfig == null ? Bitmap.Config.RGB_565
+                : decodeOptions.colorConfig;
+        checkCancelled(decodeOptions);
+
+        String key = uri.toString();
+        RewindableInputStream fpInput = null;
+        long cachedDimension = getCachedDimension(context, uri);
+        if (cachedDimension == 0) {
+            InputStream input = context.getContentResolver().openInputStream(uri);
+            if (input == null) {
+                return results;
+            }
+            fpInput = new RewindableInputStream(input, HEADER_BUFFER_SIZE);
+        }
+        // fpInput is closed on every exit, unless handed over to the decode
+        try {
+            if (fpInput != null) {
+                fpInput.mark(HEADER_BUFFER_SIZE);
+                FirstPassResult fpResult = firstPass(context, decodeOptions, fpInput, 0);
+                cacheDimension(context, uri, fpResult);
+                cachedDimension = DimensionIndex.pack(fpResult.options.outWidth,
+                        fpResult.options.outHeight, fpResult.orientation,
+                        fpResult.format);
             }
-            // Log.d(LOG_TAG, "fpResult =" + fpResult);
 
-            Bitmap source = cachedBitmap;
-            if (source == null) {
-                Log.d(LOG_TAG, "No cached bitmap to use, loading from stream");
-                // Log.d(LOG_TAG, "Decoding picture..." + fpResult);
-                source = BitmapFactory.decodeStream(new FlushedInputStream(input), null,
-                        fpResult.options);
-                // Log.d(LOG_TAG, "Picture decoded.");
-                input.close();
+            // Plan every size, reusing the cached results
+            FirstPassResult[] fpResults = new FirstPassResult[sizes.length];
+            int sampleSize = 0;
+            for (int i = 0; i < sizes.length; i++) {
+                fpResults[i] = firstPass(context, sizes[i], null, cachedDimension);
+                Bitmap cachedBitmap = getCachedBitmap(bitmapKey(key, fpResults[i]), fpResults[i]);
+                if (cachedBitmap != null) {
+                    results[i] = scaleCachedBitmap(context, uri, bitmapKey(key, fpResults[i]),
+                            fpResults[i], colorConfig, cachedBitmap, sizes[i]);
+                    continue;
+                }
+                results[i] = loadFromDiskCache(context, diskKey(uri, fpResults[i],
+                        colorConfig, sizes[i]), fpResults[i], colorConfig, decodeOptions);
+                if (results[i] != null) {
+                    if (sizes[i].cacheResult) {
+                        putCachedBitmap(bitmapKey(key, fpResults[i]), results[i], true);
+                    }
+                    continue;
+                }
+                results[i] = awaitRunningDecode(context, uri, bitmapKey(key, fpResults[i]),
+                        fpResults[i], colorConfig, sizes[i], decodeOptions);
+                if (results[i] == null
+                        && (sampleSize == 0 || fpResults[i].plan.sampleSize < sampleSize)) {
+                    sampleSize = fpResults[i].plan.sampleSize;
+                }
+            }
+            if (sampleSize == 0) {
+                // All sizes were cached
+                return results;
+            }
+
+            // Decode the whole picture, upright, at the smallest sample size
+            FirstPassResult wholeResult = new FirstPassResult();
+            wholeResult.options.outWidth = fpResults[0].options.outWidth;
+            wholeResult.options.outHeight = fpResults[0].options.outHeight;
+            wholeResult.orientation = fpResults[0].orientation;
+            wholeResult.format = fpResults[0].format;
+            wholeResult.plan = ScalePlanner.plan(wholeResult.options.outWidth,
+                    wholeResult.options.outHeight,
+                    fpResults[0].plan.orientation, null, null, ScaleMode.FIT, false);
+            wholeResult.plan.sampleSize = sampleSize;
+            // Rounded up so that the decoded picture is never scaled again
+            wholeResult.finalWidth = (wholeResult.plan.srcWidth + sampleSize - 1) / sampleSize;
+            wholeResult.finalHeight = (wholeResult.plan.srcHeight + sampleSize - 1) / sampleSize;
+            wholeResult.options.inSampleSize = sampleSize;
+            decodeOptions.scaleWhileDecoding = false;
+            InputStream input;
+            if (fpInput != null && fpInput.canReset()) {
+                fpInput.rewind();
+                input = fpInput;
+                fpInput = null;
+            } else {
+                if (fpInput != null) {
+                    fpInput.close();
+                    fpInput = null;
+                }
+                input = context.getContentResolver().openInputStream(uri);
+                if (input == null) {
+                    throw new IOException("Could not reopen " + uri);
+                }
+            }
+            Bitmap whole = secondPass(context, uri, input, wholeResult, colorConfig,
+                    null, decodeOptions);
+            if (whole == null) {
+                return results;
+            }
+
+            // Derive the sizes from the largest to the smallest, each one from
+            // the smallest whole picture large enough.
+            Integer[] order = new Integer[sizes.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
             }
+            final FirstPassResult[] plans = fpResults;
+            Arrays.sort(order, new Comparator<Integer>() {
 
-            if (source != null) {
-                // Log.d(LOG_TAG, "Loaded picture with dimension "
-                // + source.getWidth() + " x " + source.getHeight());
+                @Override
+                public int compare(Integer lhs, Integer rhs) {
+                    long lhsPixels = (long) plans[lhs].finalWidth * plans[lhs].finalHeight;
+                    long rhsPixels = (long) plans[rhs].finalWidth * plans[rhs].finalHeight;
+                    return lhsPixels > rhsPixels ? -1 : (lhsPixels < rhsPixels ? 1 : 0);
+                }
 
-                if (fpResult.finalWidth < source.getWidth()
-                        || fpResult.finalHeight < source.getHeight()) {
-                    // Resize the picture to the caller specs.
-                    result = Bitmap.createScaledBitmap(source,
-                            fpResult.finalWidth, fpResult.finalHeight, true);
+            });
+            List<Bitmap> wholes = new ArrayList<Bitmap>(sizes.length + 1);
+            wholes.add(whole);
+            for (int i : order) {
+                if (results[i] != null) {
+                    continue;
+                }
+                checkCancelled(decodeOptions);
+                ScalePlan plan = fpResults[i].plan;
+                Bitmap source = whole;
+                for (Bitmap candidate : wholes) {
+                    float scale = (float) candidate.getWidth() / plan.srcWidth;
+                    if (plan.cropWidth * scale + 1 >= plan.finalWidth
+                            && plan.cropHeight * scale + 1 >= plan.finalHeight
+                            && candidate.getWidth() < source.getWidth()) {
+                        source = candidate;
+                    }
+                }
+                float scale = (float) source.getWidth() / plan.srcWidth;
+                if (!plan.isCropped() && source.getWidth() == plan.finalWidth
+                        && source.getHeight() == plan.finalHeight) {
+                    results[i] = source;
                 } else {
-                    result = source;
+                    Matrix matrix = new Matrix();
+                    matrix.setTranslate(-plan.cropLeft * scale, -plan.cropTop * scale);
+                    matrix.postScale(plan.finalWidth / (plan.cropWidth * scale),
+                            plan.finalHeight / (plan.cropHeight * scale));
+                    results[i] = transform(source, matrix, plan.finalWidth,
+                            plan.finalHeight);
+                }
+                if (!plan.isCropped() && plan.mode != ScaleMode.EXACT) {
+                    wholes.add(results[i]);
                 }
+                if (sizes[i].cacheResult) {
+                    putCachedBitmap(bitmapKey(key, fpResults[i]), results[i], true);
+                }
+                if (sizes[i].diskCacheResult) {
+                    storeInDiskCache(context, diskKey(uri, fpResults[i], colorConfig,
+                            sizes[i]), results[i], wholeResult, colorConfig);
+                }
+            }
+            if (!Arrays.asList(results).contains(whole)) {
+                releaseBitmap(whole);
+            }
+            return results;
+        } finally {
+            if (fpInput != null) {
+                fpInput.close();
+            }
+        }
+    }
+
+    /**
+     * Derive a result of {@link #loadSizes(Context, Uri, LoadOptions...)} from
+     * a decode of the picture already running in another load, instead of
+     * decoding it again.
+     * 
+     * @param bitmapKey
+     *            The memory cache key of the result.
+     * @param fpResult
+     *            The plan of the result.
+     * @param sizeOptions
+     *            The options of the result.
+     * @param decodeOptions
+     *            The options of the decode, which stops waiting if cancelled.
+     * @return The result, or null if no running decode covers it, or if it
+     *         has been abandoned or failed to decode the picture.
+     * @throws IOException
+     */
+    private static Bitmap awaitRunningDecode(Context context, Uri uri,
+            String bitmapKey, FirstPassResult fpResult, Bitmap.Config colorConfig,
+            LoadOptions sizeOptions, LoadOptions decodeOptions) throws IOException {
+        InFlightDecodes.Flight runningFlight = inFlightDecodes.find(bitmapKey,
+                new InFlightDecodes.Flight(fpResult.finalWidth, fpResult.finalHeight, colorConfig));
+        if (runningFlight == null) {
+            return null;
+        }
+        Log.d(LOG_TAG, bitmapKey + " is already being decoded, waiting for it.");
+        Bitmap decoded = runningFlight.await(decodeOptions);
+        if (decoded == null) {
+            return null;
+        }
+        Bitmap result = secondPass(context, uri, null, fpResult, colorConfig,
+                decoded, sizeOptions);
+        if (result != null && result == decoded && !sizeOptions.cacheResult) {
+            // The caller may recycle its result, while the decoded Bitmap
+            // stays in the memory cache.
+            result = decoded.copy(decoded.getConfig(), BitmapPool.canDecodeIntoBitmaps());
+        }
+        if (sizeOptions.cacheResult && result != null) {
+            putCachedBitmap(bitmapKey, result, false);
+        }
+        return result;
+    }
 
-                // Log.d(LOG_TAG, "Resized picture to dimension "
-                // + fpResult.finalWidth + " x " + fpResult.finalHeight);
+    /**
+     * Open a picture to decode it by tiles, for example to let the user zoom
+     * in a large photo. Only JPEG and PNG pictures are supported.
+     * 
+     * @param context
+     *            The application context.
+     * @param uri
+     *            The Uri where the picture is located.
+     * @param tileSize
+     *            The size of the decoded tiles, for example
+     *            {@link TiledImage#DEFAULT_TILE_SIZE}.
+     * @param colorConfig
+     *            The color configuration of the tiles. If null, will use
+     *            {@link Config#RGB_565}.
+     * @return The tiled picture, to be closed by the caller.
+     * @throws IOException
+     *             If the picture can't be read or its format is not
+     *             supported.
+     */
+    public static TiledImage openTiledImage(Context context, Uri uri,
+            int tileSize, Bitmap.Config colorConfig) throws IOException {
+        String key = uri.toString();
+        InputStream input = context.getContentResolver().openInputStream(uri);
+        if (input == null) {
+            throw new IOException("Could not open " + uri);
+        }
+        RewindableInputStream headerInput = new RewindableInputStream(input,
+                HEADER_BUFFER_SIZE);
+        BitmapRegionDecoder decoder;
+        int orientation = ExifOrientation.NORMAL;
+        try {
+            long cachedDimension = getCachedDimension(context, uri);
+            if (cachedDimension != 0) {
+                // The header is not read, the region decoder reads the
+                // opened stream directly.
+                orientation = DimensionIndex.orientation(cachedDimension);
             } else {
-                result = null;
+                // Read the orientation from the header, then rewind the
+                // stream for the region decoder.
+                headerInput.mark(HEADER_BUFFER_SIZE);
+                ImageInfo info = ImageHeaderParser.parse(headerInput,
+                        HEADER_BUFFER_SIZE, true, false);
+                if (info != null) {
+                    orientation = info.orientation;
+                    cacheDimension(context, uri, DimensionIndex.pack(
+                            info.width, info.height, info.orientation,
+                            info.format), DimensionIndex.packThumbnail(info));
+                }
+                if (headerInput.canReset()) {
+                    headerInput.rewind();
+                    input = headerInput;
+                } else {
+                    headerInput.close();
+                    InputStream reopened = context.getContentResolver().openInputStream(uri);
+                    if (reopened == null) {
+                        throw new IOException("Could not reopen " + uri);
+                    }
+                    input = reopened;
+                }
             }
+            decoder = BitmapRegionDecoder.newInstance(input, false);
+        } finally {
+            input.close();
         }
-        return result;
+        return new TiledImage(uri, decoder, orientation, tileSize,
+                colorConfig == null ? Bitmap.Config.RGB_565 : colorConfig);
+    }
+
+    /**
+     * Replace the memory cache with an empty one bounded by the given size.
+     * The default budget is an eighth of the maximum heap size.
+     * 
+     * @param maxBytes
+     *            The maximum number of bytes used by the pixels of the cached
+     *            Bitmaps.
+     */
+    public static void setMemoryCacheBudget(long maxBytes) {
+        setMemoryCache(NewLRUCache.<String, Bitmap> withMaxWeight(maxBytes, new BitmapWeigher()));
+    }
+
+    /**
+     * Replace the memory cache with the given one, for example a
+     * {@link ConcurrentLRUCache} whose reads don't take a lock when many
+     * threads read the cache on a multi-core device, or a
+     * {@link TinyLfuCache} to keep frequently displayed pictures cached while
+     * scrolling through long lists. Give it the size of a full screen preview
+     * so that previews are not rejected by the admission policy:
+     *
+     * <pre>
+     * BitmapLoader.setMemoryCache(new TinyLfuCache&lt;String, Bitmap&gt;(maxBytes, new BitmapWeigher(), 500,
+     *         screenWidth * screenHeight * 4));
+     * </pre>
+     *
+     * @param cache
+     *            The new memory cache, which should be bounded with a
+     *            {@link BitmapWeigher}.
+     */
+    public static void setMemoryCache(MemoryCache<String, Bitmap> cache) {
+        if (cache == null) {
+            throw new IllegalArgumentException("cache must not be null");
+        }
+        cache.setEvictionListener(ON_EVICTED_BITMAP);
+        bmpCache = cache;
+        cacheLevels.clear();
+    }
+
+    /**
+     * @return The current memory cache, to read its usage and statistics.
+     */
+    public static MemoryCache<String, Bitmap> getMemoryCache() {
+        return bmpCache;
+    }
+
+    /**
+     * Replace the pool of Bitmaps reused by decodes and scaling. By default,
+     * from Honeycomb, the pool can hold up to a sixteenth of the maximum heap
+     * size.
+     * 
+     * @param pool
+     *            The new pool, or null to disable Bitmap reuse.
+     */
+    public static void setBitmapPool(BitmapPool pool) {
+        BitmapPool previous = bitmapPool;
+        bitmapPool = pool;
+        if (previous != null && previous != pool) {
+            previous.clear();
+        }
+    }
+
+    /**
+     * @return The pool of reusable Bitmaps, to read its statistics. Null if
+     *         disabled.
+     */
+    public static BitmapPool getBitmapPool() {
+        return bitmapPool;
+    }
+
+    /**
+     * Give the Bitmaps evicted from the memory cache to the Bitmap pool, so
+     * that their memory is reused by next decodes. Disabled by default: only
+     * enable it if the application does not keep displaying the Bitmaps it
+     * got once they may have left the cache, as a pooled Bitmap is
+     * overwritten by the next decode reusing it.
+     * 
+     * @param recycle
+     *            true to pool evicted Bitmaps.
+     */
+    public static void setRecycleEvictedBitmaps(boolean recycle) {
+        recycleEvictedBitmaps = recycle;
+    }
+
+    /**
+     * Load a picture from the given Uri in background, using the default
+     * executor.
+     * 
+     * @param context
+     *            The application context.
+     * @param uri
+     *            The Uri where the picture is located.
+     * @param width
+     *            The maximum width of the result bitmap, see
+     *            {@link #load(Context, Uri, Integer, Integer)}.
+     * @param height
+     *            The maximum height of the result bitmap, see
+     *            {@link #load(Context, Uri, Integer, Integer)}.
+     * @param callback
+     *            Receives the result on the executor thread. Can be null if
+     *            the caller prefers to use the returned Future.
+     * @return A Future giving access to the result Bitmap. Cancelling it
+     *         prevents the callback from being called.
+     */
+    public static Future<Bitmap> loadAsync(Context context, Uri uri,
+            Integer width, Integer height, LoadCallback callback) {
+        return loadAsync(context, uri, width, height, Bitmap.Config.RGB_565,
+                true, callback, null);
+    }
+
+    /**
+     * Load a picture from the given Uri in background.
+     * 
+     * @param context
+     *            The application context.
+     * @param uri
+     *            The Uri where the picture is located.
+     * @param width
+     *            The maximum width of the result bitmap, see
+     *            {@link #load(Context, Uri, Integer, Integer, Config, boolean)}
+     *            .
+     * @param height
+     *            The maximum height of the result bitmap, see
+     *            {@link #load(Context, Uri, Integer, Integer, Config, boolean)}
+     *            .
+     * @param colorConfig
+     *            The desired result color configuration, see
+     *            {@link #load(Context, Uri, Integer, Integer, Config, boolean)}
+     *            .
+     * @param cacheResult
+     *            Wether we should store the result bitmap in cache or not.
+     * @param callback
+     *            Receives the result on the executor thread. Can be null if
+     *            the caller prefers to use the returned Future.
+     * @param executor
+     *            The executor running the load. Any executor can be given, a
+     *            caller owned thread pool or, on JVMs supporting them, a
+     *            virtual thread per task executor. If null, the default
+     *            executor is used, see {@link #setDefaultExecutor(Executor)}.
+     * @return A Future giving access to the result Bitmap. Cancelling it
+     *         prevents the callback from being called.
+     */
+    public static Future<Bitmap> loadAsync(Context context, Uri uri,
+            Integer width, Integer height, Bitmap.Config colorConfig,
+            boolean cacheResult, LoadCallback callback, Executor executor) {
+        LoadOptions loadOptions = new LoadOptions(width, height);
+        loadOptions.colorConfig = colorConfig;
+        loadOptions.cacheResult = cacheResult;
+        return loadAsync(context, uri, loadOptions, callback, executor);
+    }
+
+    /**
+     * Load a picture from the given Uri in background.
+     * 
+     * @param context
+     *            The application context.
+     * @param uri
+     *            The Uri where the picture is located.
+     * @param loadOptions
+     *            The requested dimensions, color configuration, caching and
+     *            cancellation parameters. See {@link LoadOptions}.
+     * @param callback
+     *            Receives the result on the executor thread. Can be null if
+     *            the caller prefers to use the returned Future. A
+     *            {@link ProgressiveLoadCallback} also receives a coarse
+     *            preview first.
+     * @param executor
+     *            The executor running the load. If null, the default executor
+     *            is used, see {@link #setDefaultExecutor(Executor)}.
+     * @return A Future giving access to the result Bitmap. Cancelling it
+     *         prevents the callback from being called and interrupts the
+     *         decode if it has started.
+     */
+    public static Future<Bitmap> loadAsync(final Context context,
+            final Uri uri, LoadOptions loadOptions, LoadCallback callback,
+            Executor executor) {
+        // Each task gets its own token so that cancelling the Future does not
+        // cancel other loads sharing the caller token.
+        final LoadOptions taskOptions = loadOptions.copy();
+        taskOptions.cancellationToken = new CancellationToken(
+                loadOptions.cancellationToken);
+        final ProgressiveLoadCallback progressiveCallback = callback instanceof ProgressiveLoadCallback ? (ProgressiveLoadCallback) callback
+                : null;
+        LoadTask task = new LoadTask(new Callable<Bitmap>() {
+
+            @Override
+            public Bitmap call() throws Exception {
+                if (progressiveCallback != null) {
+                    deliverPreview(context, uri, taskOptions,
+                            progressiveCallback);
+                }
+                return load(context, uri, taskOptions);
+            }
+
+        }, uri, callback, taskOptions.cancellationToken);
+        if (executor == null) {
+            executor = getDefaultExecutor();
+        }
+        executor.execute(task);
+        return task;
+    }
+
+    /**
+     * Load the preview of a progressive load and give it to its callback. A
+     * preview which can't be loaded is skipped, the final load reports the
+     * error if the picture can't be loaded either.
+     */
+    private static void deliverPreview(Context context, Uri uri,
+            LoadOptions loadOptions, ProgressiveLoadCallback callback) {
+        Bitmap preview = null;
+        try {
+            preview = loadPreview(context, uri, loadOptions);
+        } catch (LoadCancelledException e) {
+            return;
+        } catch (IOException e) {
+            Log.d(LOG_TAG, "Could not load the preview of " + uri + " : " + e.getMessage());
+        }
+        if (preview != null && !loadOptions.isCancelled()) {
+            callback.onPreviewLoaded(uri, preview);
+        }
+    }
+
+    /**
+     * Provides the executor used by asynchronous loads when none is given. If
+     * none has been set with {@link #setDefaultExecutor(Executor)}, it is a
+     * pool of daemon threads with one thread per available processor.
+     * 
+     * @return The default executor.
+     */
+    public static synchronized Executor getDefaultExecutor() {
+        if (defaultExecutor == null) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            defaultExecutor = new ThreadPoolExecutor(threads, threads, 0L,
+                    TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger(1);
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, LOG_TAG + " #"
+                                    + count.getAndIncrement());
+                            thread.setDaemon(true);
+                            // Leave the UI thread priority over decoding
+                            thread.setPriority(Thread.NORM_PRIORITY - 1);
+                            return thread;
+                        }
+                    });
+            ownsDefaultExecutor = true;
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     * Replace the executor used by asynchronous loads when none is given. The
+     * previous default executor is shut down if it was created by the
+     * BitmapLoader.
+     * 
+     * @param executor
+     *            The new default executor. If null, a default pool will be
+     *            created on next use.
+     */
+    public static synchronized void setDefaultExecutor(Executor executor) {
+        if (defaultExecutor != executor) {
+            if (ownsDefaultExecutor) {
+                ((ExecutorService) defaultExecutor).shutdown();
+            }
+            defaultExecutor = executor;
+            ownsDefaultExecutor = false;
+        }
+    }
+
+    /**
+     * A Future running a load and notifying a {@link LoadCallback} when done.
+     */
+    private static class LoadTask extends FutureTask<Bitmap> {
+        private final Uri uri;
+        private final LoadCallback callback;
+        private final CancellationToken cancellationToken;
+
+        public LoadTask(Callable<Bitmap> callable, Uri uri,
+                LoadCallback callback, CancellationToken cancellationToken) {
+            super(callable);
+            this.uri = uri;
+            this.callback = callback;
+            this.cancellationToken = cancellationToken;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            cancellationToken.cancel();
+            return super.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        protected void done() {
+            if (callback == null || isCancelled()) {
+                return;
+            }
+            try {
+                callback.onBitmapLoaded(uri, get());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof LoadCancelledException) {
+                    // Cancelled through the caller token or deadline
+                    Log.d(LOG_TAG, "Load cancelled : " + uri);
+                    return;
+                }
+                Log.e(LOG_TAG, "Error : ", e.getCause());
+                callback.onLoadFailed(uri, e.getCause());
+            } catch (InterruptedException e) {
+                // Cannot happen, the task is done.
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Look for the header properties of a picture in the dimension index,
+     * then in the persistent metadata store.
+     * 
+     * @param context
+     *            The application context.
+     * @param uri
+     *            The Uri of the picture.
+     * @return The header properties of the picture packed by
+     *         {@link DimensionIndex}, 0 if its header has not been read yet.
+     */
+    private static long getCachedDimension(Context context, Uri uri) {
+        long key = DimensionIndex.keyOf(uri.toString());
+        long dimension = dimensionIndex.get(key);
+        // Other Uris have no stamp telling if the stored record is stale,
+        // they are only found in the store by seedImageInfo.
+        File file = sourceFile(uri);
+        if (dimension == 0 && file != null) {
+            MetadataStore store = getMetadataStore(context);
+            if (store != null) {
+                long size = file.length();
+                long modified = file.lastModified();
+                dimension = store.get(key, size, modified);
+                if (dimension != 0) {
+                    dimensionIndex.put(key, dimension,
+                            store.getThumbnail(key, size, modified));
+                }
+            }
+        }
+        return dimension;
+    }
+
+    /**
+     * Look for the location of the EXIF thumbnail of a picture in the
+     * dimension index, filled by {@link #getCachedDimension(Context, Uri)}.
+     * 
+     * @param uri
+     *            The Uri of the picture.
+     * @return The location packed by
+     *         {@link DimensionIndex#packThumbnail(ImageInfo)}, 0 if it is
+     *         unknown.
+     */
+    private static long getCachedThumbnail(Uri uri) {
+        return dimensionIndex.getThumbnail(DimensionIndex.keyOf(uri.toString()));
+    }
+
+    /**
+     * Read an EXIF thumbnail whose location has been found by a previous read
+     * of the picture header.
+     * 
+     * @param input
+     *            The picture input stream, at its beginning.
+     * @param thumbnail
+     *            The location packed by
+     *            {@link DimensionIndex#packThumbnail(ImageInfo)}.
+     * @return The thumbnail data, or null if it is not a JPEG picture
+     *         anymore, for example if the picture has been edited.
+     * @throws IOException
+     */
+    private static byte[] readExifThumbnail(InputStream input, long thumbnail)
+            throws IOException {
+        int offset = DimensionIndex.thumbnailOffset(thumbnail);
+        if (input.skip(offset) != offset) {
+            return null;
+        }
+        byte[] data = new byte[DimensionIndex.thumbnailLength(thumbnail)];
+        int read = 0;
+        while (read < data.length) {
+            int count = input.read(data, read, data.length - read);
+            if (count < 0) {
+                return null;
+            }
+            read += count;
+        }
+        if ((data[0] & 0xff) != 0xff || (data[1] & 0xff) != 0xd8) {
+            return null;
+        }
+        return data;
+    }
+
+    /**
+     * Store the header properties read by the first pass, so that the next
+     * loads of the picture don't have to read them again.
+     */
+    private static void cacheDimension(Context context, Uri uri,
+            FirstPassResult fpResult) {
+        cacheDimension(context, uri, DimensionIndex.pack(
+                fpResult.options.outWidth, fpResult.options.outHeight,
+                fpResult.orientation, fpResult.format), fpResult.thumbnail);
+    }
+
+    /**
+     * Store the header properties of a picture in the dimension index and in
+     * the persistent metadata store.
+     * 
+     * @param dimension
+     *            The properties packed by {@link DimensionIndex}.
+     * @param thumbnail
+     *            The location of the EXIF thumbnail packed by
+     *            {@link DimensionIndex#packThumbnail(ImageInfo)}, 0 if it is
+     *            unknown.
+     */
+    private static void cacheDimension(Context context, Uri uri, long dimension,
+            long thumbnail) {
+        File file = sourceFile(uri);
+        if (file == null) {
+            cacheDimension(context, uri, dimension, thumbnail, -1, -1);
+        } else {
+            cacheDimension(context, uri, dimension, thumbnail, file.length(),
+                    file.lastModified());
+        }
+    }
+
+    /**
+     * @param size
+     *            The size of the source in bytes, -1 if unknown.
+     * @param modified
+     *            The modification time of the source, -1 if unknown.
+     */
+    private static void cacheDimension(Context context, Uri uri,
+            long dimension, long thumbnail, long size, long modified) {
+        if (DimensionIndex.width(dimension) <= 0
+                || DimensionIndex.height(dimension) <= 0) {
+            return;
+        }
+        long key = DimensionIndex.keyOf(uri.toString());
+        dimensionIndex.put(key, dimension, thumbnail);
+        MetadataStore store = getMetadataStore(context);
+        if (store == null) {
+            return;
+        }
+        if (size >= 0 || modified >= 0) {
+            store.put(key, dimension, thumbnail, size, modified);
+        } else {
+            // Without a stamp, an edit of the picture could not be detected.
+            // Only a record stamped by seedImageInfo is updated.
+            store.update(key, dimension, thumbnail);
+        }
+    }
+
+    /**
+     * Give the header properties of a picture known from another source, for
+     * example the MediaStore, so that loading it does not need to read its
+     * header. Meant to be called for each picture of a listing, it does no
+     * I/O. Pictures already known, from a read of their header or from the
+     * persistent metadata store, are left as is.
+     * 
+     * @param context
+     *            The application context.
+     * @param uri
+     *            The Uri of the picture.
+     * @param info
+     *            The stored width and height of the picture, its EXIF
+     *            orientation and format if known. Ignored if the dimensions
+     *            are unknown.
+     * @param sourceSize
+     *            The size of the picture file in bytes, -1 if unknown.
+     * @param sourceModified
+     *            The modification time of the picture file, -1 if unknown.
+     */
+    public static void seedImageInfo(Context context, Uri uri, ImageInfo info,
+            long sourceSize, long sourceModified) {
+        long key = DimensionIndex.keyOf(uri.toString());
+        MetadataStore store = getMetadataStore(context);
+        if (store != null && (sourceSize >= 0 || sourceModified >= 0)) {
+            // A stored record may have been read from the header, with a
+            // format and orientation the MediaStore doesn't know.
+            long dimension = store.get(key, sourceSize, sourceModified);
+            if (dimension != 0) {
+                dimensionIndex.put(key, dimension,
+                        store.getThumbnail(key, sourceSize, sourceModified));
+                return;
+            }
+        }
+        if (dimensionIndex.get(key) != 0) {
+            return;
+        }
+        cacheDimension(context, uri, DimensionIndex.pack(info.width,
+                info.height, info.orientation, info.format), 0, sourceSize,
+                sourceModified);
+    }
+
+    /**
+     * @return The file of a file Uri, whose size and modification time tell
+     *         if stored metadata is stale. Null for other Uris.
+     */
+    private static File sourceFile(Uri uri) {
+        if ("file".equals(uri.getScheme()) && uri.getPath() != null) {
+            return new File(uri.getPath());
+        }
+        return null;
+    }
+
+    /**
+     * Provides the persistent metadata store. On first use, it is opened in
+     * background in the application cache directory, and lookups miss until
+     * then.
+     * 
+     * @return The store, or null if it is disabled, not opened yet or could
+     *         not be opened.
+     */
+    private static MetadataStore getMetadataStore(final Context context) {
+        MetadataStore store = metadataStore;
+        if (store != null || !persistMetadata) {
+            return store;
+        }
+        synchronized (metadataLock) {
+            if (metadataStore == null && persistMetadata && !metadataStoreOpening) {
+                metadataStoreOpening = true;
+                ioExecutor.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        openMetadataStore(context);
+                    }
+                });
+            }
+            return metadataStore;
+        }
+    }
+
+    private static void openMetadataStore(Context context) {
+        File path = new File(context.getCacheDir(), METADATA_FILE_NAME);
+        MetadataStore store = null;
+        try {
+            store = new MetadataStore(path, DIMENSION_INDEX_ENTRIES);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not open " + path + ", metadata won't be persisted", e);
+        }
+        synchronized (metadataLock) {
+            metadataStoreOpening = false;
+            if (store == null) {
+                persistMetadata = false;
+            } else if (persistMetadata) {
+                metadataStore = store;
+                store = null;
+            }
+        }
+        if (store != null) {
+            // Disabled while opening
+            closeMetadataStore(store);
+        }
+    }
+
+    private static void closeMetadataStore(MetadataStore store) {
+        try {
+            store.close();
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not close the metadata store", e);
+        }
+    }
+
+    /**
+     * Enable or disable the persistence of the picture headers properties, so
+     * that pictures loaded before a restart don't have their header read
+     * again. Enabled by default, the store file is in the application cache
+     * directory and uses about 1.6MB.
+     * 
+     * @param persist
+     *            false to keep the properties in memory only.
+     */
+    public static void setPersistMetadata(boolean persist) {
+        MetadataStore store = null;
+        synchronized (metadataLock) {
+            persistMetadata = persist;
+            if (!persist) {
+                store = metadataStore;
+                metadataStore = null;
+            }
+        }
+        if (store != null) {
+            closeMetadataStore(store);
+        }
+    }
+
+    /**
+     * Set where and how much the load results are cached on disk. Enabled by
+     * default, with a 32MB budget in the application cache directory.
+     * 
+     * @param directory
+     *            The cache directory, which must not hold other files. If
+     *            null, the default directory.
+     * @param maxBytes
+     *            The maximum total size of the cached results, 0 to disable
+     *            the disk cache.
+     */
+    public static void setDiskCache(File directory, long maxBytes) {
+        DiskCache cache;
+        synchronized (diskCacheLock) {
+            cache = diskCache;
+            diskCache = null;
+            diskCacheDirectory = directory;
+            diskCacheBytes = maxBytes;
+        }
+        if (cache != null) {
+            closeDiskCache(cache);
+        }
+    }
+    /**
+     * Provides the disk cache. On first use, it is opened in background,
+     * which replays its journal, and lookups miss until then.
+     * 
+     * @return The disk cache, or null if it is disabled, not opened yet or
+     *         could not be opened.
+     */
+    private static DiskCache getDiskCache(final Context context) {
+        DiskCache cache = diskCache;
+        if (cache != null || diskCacheBytes <= 0) {
+            return cache;
+        }
+        synchronized (diskCacheLock) {
+            if (diskCache == null && diskCacheBytes > 0 && !diskCacheOpening) {
+                diskCacheOpening = true;
+                final File directory = diskCacheDirectory;
+                final long maxBytes = diskCacheBytes;
+                ioExecutor.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        openDiskCache(context, directory, maxBytes);
+                    }
+                });
+            }
+            return diskCache;
+        }
+    }
+
+    /**
+     * @param directory
+     *            The configured directory, null for the default one.
+     * @param maxBytes
+     *            The configured budget.
+     */
+    private static void openDiskCache(Context context, File directory,
+            long maxBytes) {
+        File path = directory != null ? directory : new File(
+                context.getCacheDir(), DISK_CACHE_DIR_NAME);
+        DiskCache cache = null;
+        try {
+            cache = new DiskCache(path, maxBytes);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not open " + path + ", results won't be cached on disk", e);
+        }
+        synchronized (diskCacheLock) {
+            diskCacheOpening = false;
+            if (directory == diskCacheDirectory && maxBytes == diskCacheBytes) {
+                if (cache == null) {
+                    diskCacheBytes = 0;
+                } else {
+                    diskCache = cache;
+                    cache = null;
+                }
+            }
+        }
+        if (cache != null) {
+            // Reconfigured while opening
+            closeDiskCache(cache);
+        }
+    }
+
+    private static void closeDiskCache(DiskCache cache) {
+        try {
+            cache.close();
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not close the disk cache", e);
+        }
+    }
+
+    /**
+     * The disk cache key of a load result: the picture and the part of it
+     * given by its memory cache key, the result size and Config, and what
+     * identifies the source content. The header properties change with most
+     * edits of a picture, and the size and modification time of files are
+     * checked too.
+     * 
+     * @param uri
+     *            The Uri of the picture.
+     * @param fpResult
+     *            The calculations obtained in the first pass.
+     * @param colorConfig
+     *            The Config of the result.
+     * @param loadOptions
+     *            The options of the load.
+     * @return The cache key.
+     */
+    private static String diskKey(Uri uri, FirstPassResult fpResult,
+            Bitmap.Config colorConfig, LoadOptions loadOptions) {
+        StringBuilder key = new StringBuilder(bitmapKey(uri.toString(), fpResult));
+        key.append('|').append(fpResult.finalWidth).append('x')
+                .append(fpResult.finalHeight).append('|').append(colorConfig);
+        // The format is left out as it is unknown when the header properties
+        // come from the MediaStore.
+        key.append('|').append(Long.toHexString(DimensionIndex.pack(
+                fpResult.options.outWidth, fpResult.options.outHeight,
+                fpResult.orientation, null)));
+        File file = sourceFile(uri);
+        if (file != null) {
+            key.append('|').append(file.length()).append('|')
+                    .append(file.lastModified());
+        }
+        if (loadOptions.allowEmbeddedThumbnail) {
+            // The result may have a lower quality
+            key.append("|exif");
+        }
+        return key.toString();
+    }
+
+    /**
+     * Read a load result from the disk cache.
+     * 
+     * @param context
+     *            The application context.
+     * @param diskKey
+     *            The disk cache key of the result.
+     * @param fpResult
+     *            The calculations obtained in the first pass.
+     * @param colorConfig
+     *            The Config of the result.
+     * @param loadOptions
+     *            The options of the load.
+     * @return The cached result, or null if it is not cached.
+     * @throws LoadCancelledException
+     *             If the load has been cancelled or its deadline has passed.
+     */
+    private static Bitmap loadFromDiskCache(Context context, String diskKey,
+            FirstPassResult fpResult, Bitmap.Config colorConfig,
+            LoadOptions loadOptions) throws LoadCancelledException {
+        DiskCache cache = getDiskCache(context);
+        if (cache == null) {
+            return null;
+        }
+        DiskCache.Entry entry;
+        try {
+            entry = cache.get(diskKey);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not read the disk cache", e);
+            return null;
+        }
+        if (entry == null) {
+            return null;
+        }
+        File file = entry.getFile();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = colorConfig;
+        options.inDither = !colorConfig.equals(Config.ARGB_8888);
+        BitmapPool pool = bitmapPool;
+        if (pool != null && BitmapPool.canDecodeIntoBitmaps()) {
+            options.inMutable = true;
+            options.inBitmap = pool.getForDecode(fpResult.finalWidth,
+                    fpResult.finalHeight, colorConfig);
+        }
+        CancellationToken token = loadOptions.cancellationToken;
+        Bitmap result;
+        if (token != null) {
+            token.register(options);
+        }
+        try {
+            try {
+                result = BitmapFactory.decodeFile(file.getPath(), options);
+            } catch (IllegalArgumentException e) {
+                if (options.inBitmap == null) {
+                    throw e;
+                }
+                Log.d(LOG_TAG, "Could not decode into a pooled bitmap : " + e.getMessage());
+                options.inBitmap = null;
+                result = BitmapFactory.decodeFile(file.getPath(), options);
+            }
+        } finally {
+            if (token != null) {
+                token.unregister(options);
+            }
+        }
+        if (loadOptions.isCancelled()) {
+            if (result != null) {
+                releaseBitmap(result);
+            }
+            checkCancelled(loadOptions);
+        }
+        if (result == null) {
+            // Evicted meanwhile, or corrupted
+            Log.d(LOG_TAG, "Could not decode " + diskKey + " from the disk cache");
+            try {
+                // Unless it has been replaced meanwhile
+                cache.remove(entry);
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Could not update the disk cache", e);
+            }
+            return null;
+        }
+        Log.d(LOG_TAG, diskKey + " read from the disk cache");
+        return result;
+    }
+
+    /**
+     * Write a load result to the disk cache, in background: PNG if the
+     * decoded picture has an alpha channel, JPEG otherwise.
+     * 
+     * @param context
+     *            The application context.
+     * @param diskKey
+     *            The disk cache key of the result.
+     * @param result
+     *            The load result.
+     * @param source
+     *            The first pass of the decode the result comes from.
+     * @param colorConfig
+     *            The Config of the result.
+     */
+    private static void storeInDiskCache(Context context, final String diskKey,
+            Bitmap result, FirstPassResult source, Bitmap.Config colorConfig) {
+        final DiskCache cache = getDiskCache(context);
+        if (cache == null || result.isRecycled()
+                || ioExecutor.getQueue().size() >= MAX_PENDING_DISK_WRITES) {
+            return;
+        }
+        // Transformed results always have an alpha channel, the source tells
+        // if it is used.
+        final boolean lossless = source.sourceHasAlpha
+                && source.format != ImageInfo.Format.JPEG
+                && !colorConfig.equals(Config.RGB_565);
+        // The result may be recycled or reused while it is encoded, encode a
+        // copy, which is much cheaper than the encoding.
+        final Bitmap copy = result.copy(
+                result.getConfig() != null ? result.getConfig() : Config.ARGB_8888, false);
+        if (copy == null) {
+            return;
+        }
+        ioExecutor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                ByteArrayOutputStream data = new ByteArrayOutputStream(
+                        copy.getWidth() * copy.getHeight() / 4);
+                boolean compressed = lossless ? copy.compress(
+                        Bitmap.CompressFormat.PNG, 100, data) : copy.compress(
+                        Bitmap.CompressFormat.JPEG, DISK_CACHE_QUALITY, data);
+                copy.recycle();
+                if (!compressed) {
+                    return;
+                }
+                try {
+                    cache.put(diskKey, data.toByteArray());
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Could not write " + diskKey + " to the disk cache", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * The memory cache key of a load result. Results showing the whole
+     * picture with its aspect ratio are shared by all loads of the picture,
+     * other results are only shared by loads giving the same picture part and
+     * aspect ratio.
+     * 
+     * @param key
+     *            The picture Uri.
+     * @param fpResult
+     *            The calculations obtained in the first pass.
+     * @return The cache key.
+     */
+    private static String bitmapKey(String key, FirstPassResult fpResult) {
+        ScalePlan plan = fpResult.plan;
+        if (plan.orientation != fpResult.orientation) {
+            // The EXIF orientation is ignored, this is another picture
+            key += "#stored";
+        }
+        if (plan.mode == ScaleMode.EXACT) {
+            return key + "#exact=" + plan.finalWidth + "x" + plan.finalHeight;
+        } else if (plan.isCropped()) {
+            return key + "#crop=" + plan.cropLeft + "," + plan.cropTop + ","
+                    + plan.cropWidth + "x" + plan.cropHeight;
+        }
+        return key;
+    }
+
+    /**
+     * Look for a cached Bitmap large enough for the calculated final size.
+     * 
+     * @param key
+     *            The cache key of the picture.
+     * @param fpResult
+     *            The calculations obtained in the first pass.
+     * @return The cached Bitmap, or null if there is none or if its resolution
+     *         is too low.
+     */
+    private static Bitmap getCachedBitmap(String key, FirstPassResult fpResult) {
+        Log.d(LOG_TAG, "Check if " + key + " is in cache.");
+        // The smallest cached level large enough, which is the cheapest to
+        // scale down to the final size.
+        Bitmap cachedBitmap = findCachedBitmap(key, fpResult.finalWidth,
+                fpResult.finalHeight, false);
+        if (cachedBitmap != null) {
+            Log.d(LOG_TAG, key + " is in cache with dimension "
+                    + cachedBitmap.getWidth() + " x " + cachedBitmap.getHeight());
+        }
+        return cachedBitmap;
+    }
+
+    /**
+     * Look for a cached level of a picture, with a 1 pixel tolerance.
+     * 
+     * @param key
+     *            The cache key of the picture.
+     * @param minWidth
+     *            The minimum width of the Bitmap.
+     * @param minHeight
+     *            The minimum height of the Bitmap.
+     * @param largestFirst
+     *            true to get the largest Bitmap matching, false for the
+     *            smallest.
+     * @return The cached Bitmap, or null if no level is large enough.
+     */
+    private static Bitmap findCachedBitmap(String key, float minWidth,
+            float minHeight, boolean largestFirst) {
+        int[] levels = cacheLevels.get(key);
+        // Smaller levels can't hold a large enough Bitmap
+        int minLevel = CacheLevels.levelOf((int) minWidth - 1, (int) minHeight - 1);
+        for (int i = 0; i < levels.length; i++) {
+            int level = levels[largestFirst ? levels.length - 1 - i : i];
+            if (level < minLevel) {
+                continue;
+            }
+            Bitmap cachedBitmap = bmpCache.get(CacheLevels.levelKey(key, level));
+            if (cachedBitmap == null) {
+                // Evicted from the cache
+                cacheLevels.remove(key, level);
+            } else if (cachedBitmap.getWidth() + 1 >= minWidth
+                    && cachedBitmap.getHeight() + 1 >= minHeight) {
+                return cachedBitmap;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Store a load result in the memory cache, at its resolution level.
+     * 
+     * @param key
+     *            The cache key of the picture.
+     * @param bitmap
+     *            The load result.
+     * @param replace
+     *            false to keep a larger Bitmap already cached at this level.
+     */
+    private static void putCachedBitmap(String key, Bitmap bitmap,
+            boolean replace) {
+        int level = CacheLevels.levelOf(bitmap.getWidth(), bitmap.getHeight());
+        String levelKey = CacheLevels.levelKey(key, level);
+        if (!replace) {
+            Bitmap cachedBitmap = bmpCache.get(levelKey);
+            if (cachedBitmap != null
+                    && cachedBitmap.getWidth() >= bitmap.getWidth()
+                    && cachedBitmap.getHeight() >= bitmap.getHeight()) {
+                return;
+            }
+        }
+        bmpCache.put(levelKey, bitmap);
+        cacheLevels.add(key, level);
+    }
+
+    /**
+     * Give the result of a load from a cached Bitmap. A result scaled down
+     * from a larger level is cached as a new level, so that next loads at this
+     * size don't scale again.
+     */
+    private static Bitmap scaleCachedBitmap(Context context, Uri uri,
+            String key, FirstPassResult fpResult, Bitmap.Config colorConfig,
+            Bitmap cachedBitmap, LoadOptions loadOptions) throws IOException {
+        Bitmap result = secondPass(context, uri, null, fpResult, colorConfig,
+                cachedBitmap, loadOptions);
+        if (loadOptions.cacheResult && result != null
+                && result.getWidth() < cachedBitmap.getWidth()
+                && result.getHeight() < cachedBitmap.getHeight()) {
+            putCachedBitmap(key, result, false);
+        }
+        return result;
+    }
+
+    /**
+     * Look for a cached Bitmap smaller than the calculated final size, but
+     * within the quality tolerance of the load. If one is found, a load at
+     * the final size is started in background to replace it in the cache.
+     * 
+     * @param context
+     *            The application context.
+     * @param uri
+     *            The Uri of the picture.
+     * @param key
+     *            The cache key of the picture.
+     * @param fpResult
+     *            The calculations obtained in the first pass.
+     * @param loadOptions
+     *            The options of the load, see
+     *            {@link LoadOptions#qualityTolerance}.
+     * @return The undersized cached Bitmap, or null if there is none or if it
+     *         is too small.
+     */
+    private static Bitmap getUndersizedCachedBitmap(Context context, Uri uri,
+            final String key, FirstPassResult fpResult, LoadOptions loadOptions) {
+        if (loadOptions.qualityTolerance <= 0 || !loadOptions.cacheResult) {
+            return null;
+        }
+        float minScale = 1 - loadOptions.qualityTolerance;
+        Bitmap cachedBitmap = findCachedBitmap(key, fpResult.finalWidth
+                * minScale, fpResult.finalHeight * minScale, true);
+        if (cachedBitmap == null) {
+            return null;
+        }
+        if (pendingUpgrades.putIfAbsent(key, Boolean.TRUE) == null) {
+            Log.d(LOG_TAG, key + " is a bit small, upgrading it in background.");
+            LoadOptions upgradeOptions = loadOptions.copy();
+            // The upgrade is not cancelled with the load which triggered it
+            upgradeOptions.cancellationToken = null;
+            upgradeOptions.deadline = 0;
+            upgradeOptions.qualityTolerance = 0;
+            loadAsync(context, uri, upgradeOptions, new LoadCallback() {
+
+                @Override
+                public void onBitmapLoaded(Uri uri, Bitmap bitmap) {
+                    pendingUpgrades.remove(key);
+                }
+
+                @Override
+                public void onLoadFailed(Uri uri, Throwable error) {
+                    pendingUpgrades.remove(key);
+                }
+
+            }, null);
+        }
+        return cachedBitmap;
+    }
+
+    /**
+     * Create the new Bitmap fitting in the requested size.
+     * 
+     * @param context
+     *            The application context.
+     * @param uri
+     *            The Uri of the picture, reopened if the decode has to be
+     *            retried without reusing a pooled Bitmap.
+     * @param input
+     *            An InputStream providing the picture data. Can be null if a
+     *            cachedBitmap is given.
+     * @param fpResult
+     *            The calculations obtained in the first pass (final dimension
+     *            and optimized sample size).
+     * @param colorConfig
+     *            The color {@link Config} we should use to deliver the final
+     *            Bitmap.
+     * @param cachedBitmap
+     *            If the picture has been previously loaded and if we can reuse
+     *            the previous result, the cached Bitmap should be provided
+     *            here.
+     * @return The final Bitmap.
+     * @throws IOException
+     */
+    private static Bitmap secondPass(Context context, Uri uri, InputStream input,
+            FirstPassResult fpResult, Bitmap.Config colorConfig,
+            Bitmap cachedBitmap, LoadOptions loadOptions) throws IOException {
+        Bitmap result = null;
+        Bitmap source = cachedBitmap;
+        boolean densityScaled = false;
+        if (source == null && fpResult.exifThumbnail != null) {
+            source = decodeExifThumbnail(fpResult.exifThumbnail, colorConfig);
+            if (source != null && input != null) {
+                input.close();
+            }
+        }
+        if (source == null && input != null) {
+            fpResult.options.inJustDecodeBounds = false;
+            fpResult.options.inPreferredConfig = colorConfig;
+            if (!colorConfig.equals(Config.ARGB_8888)) {
+                // Other Configs reduce the color depth. Enforcing dithering
+                // could help get nicer pictures.
+                fpResult.options.inDither = true;
+            }
+            // Log.d(LOG_TAG, "fpResult =" + fpResult);
+
+            // Allow the decode to be interrupted on cancellation or when the
+            // deadline is reached.
+            CancellationToken token = loadOptions.cancellationToken;
+            TimerTask deadlineTask = null;
+            try {
+                checkCancelled(loadOptions);
+                if (token != null) {
+                    token.register(fpResult.options);
+                }
+                deadlineTask = scheduleDeadline(fpResult.options,
+                        loadOptions.deadline);
+                Log.d(LOG_TAG, "No cached bitmap to use, loading from stream");
+                // Log.d(LOG_TAG, "Decoding picture..." + fpResult);
+                densityScaled = loadOptions.scaleWhileDecoding
+                        && prepareDensityScaling(fpResult);
+                boolean reusing = prepareBitmapReuse(fpResult, colorConfig,
+                        densityScaled);
+                try {
+                    source = BitmapFactory.decodeStream(new FlushedInputStream(input), null,
+                            fpResult.options);
+                } catch (IllegalArgumentException e) {
+                    if (!reusing) {
+                        throw e;
+                    }
+                    // The pooled Bitmap could not be reused, its content is
+                    // undefined so it is dropped. Decode again in a new one.
+                    Log.d(LOG_TAG, "Could not decode into a pooled bitmap : " + e.getMessage());
+                    fpResult.options.inBitmap = null;
+                    input.close();
+                    input = context.getContentResolver().openInputStream(uri);
+                    if (input == null) {
+                        throw new IOException("Could not reopen " + uri);
+                    }
+                    source = BitmapFactory.decodeStream(new FlushedInputStream(input), null,
+                            fpResult.options);
+                }
+                // Log.d(LOG_TAG, "Picture decoded.");
+            } finally {
+                if (token != null) {
+                    token.unregister(fpResult.options);
+                }
+                if (deadlineTask != null) {
+                    deadlineTask.cancel();
+                }
+                input.close();
+            }
+            if (loadOptions.isCancelled()) {
+                // The decode may have been interrupted, drop what we got.
+                if (source != null) {
+                    releaseBitmap(source);
+                }
+                checkCancelled(loadOptions);
+            }
+            if (densityScaled && source != null) {
+                // The decoder gave the Bitmap the target density, it must be
+                // drawn at its real size.
+                source.setDensity(context.getResources().getDisplayMetrics().densityDpi);
+            }
+        }
+        if (source != null && source != cachedBitmap) {
+            // Before the transformations, whose Bitmaps always have alpha
+            fpResult.sourceHasAlpha = source.hasAlpha();
+        }
+
+        if (source != null) {
+            // Log.d(LOG_TAG, "Loaded picture with dimension "
+            // + source.getWidth() + " x " + source.getHeight());
+
+            ScalePlan plan = fpResult.plan;
+            // A decoded picture is whole and stored with its EXIF
+            // orientation, while cached and shared results already are the
+            // planned part of the picture, upright.
+            boolean decoded = cachedBitmap == null;
+            boolean transposed = decoded
+                    && ExifOrientation.isTransposed(plan.orientation);
+            int sourceWidth = transposed ? source.getHeight() : source.getWidth();
+            int sourceHeight = transposed ? source.getWidth() : source.getHeight();
+            boolean reorient = decoded && plan.orientation != ExifOrientation.NORMAL;
+            boolean crop = decoded && plan.isCropped();
+
+            // The density scaling may round the size up by 1 pixel
+            int tolerance = densityScaled ? 1 : 0;
+            boolean resize = fpResult.finalWidth + tolerance < sourceWidth
+                    || fpResult.finalHeight + tolerance < sourceHeight;
+            if (plan.mode == ScaleMode.EXACT) {
+                // Also stretch up
+                resize = fpResult.finalWidth != sourceWidth
+                        || fpResult.finalHeight != sourceHeight;
+            }
+            if (resize || reorient || crop) {
+                // Orient, crop and resize the picture to the caller specs in
+                // a single transform.
+                Matrix matrix = null;
+                if (reorient || crop) {
+                    matrix = new Matrix();
+                    float[] affine = ExifOrientation.toAffine(
+                            reorient ? plan.orientation : ExifOrientation.NORMAL,
+                            source.getWidth(), source.getHeight());
+                    matrix.setValues(new float[] { affine[0], affine[1], affine[2],
+                            affine[3], affine[4], affine[5], 0, 0, 1 });
+                    float sampledScale = crop ? (float) sourceWidth / plan.srcWidth : 1;
+                    float keptWidth = crop ? plan.cropWidth * sampledScale : sourceWidth;
+                    float keptHeight = crop ? plan.cropHeight * sampledScale : sourceHeight;
+                    if (crop) {
+                        matrix.postTranslate(-plan.cropLeft * sampledScale,
+                                -plan.cropTop * sampledScale);
+                    }
+                    matrix.postScale(fpResult.finalWidth / keptWidth,
+                            fpResult.finalHeight / keptHeight);
+                }
+                result = transform(source, matrix, fpResult.finalWidth,
+                        fpResult.finalHeight);
+                if (cachedBitmap == null) {
+                    // Nobody else holds the decoded picture
+                    releaseBitmap(source);
+                }
+            } else {
+                result = source;
+            }
+
+            // Log.d(LOG_TAG, "Resized picture to dimension "
+            // + fpResult.finalWidth + " x " + fpResult.finalHeight);
+        }
+        return result;
+    }
+
+    private static Display getDisplay(Context context) {
+        return ((WindowManager) context.getSystemService(Context.WINDOW_SERVICE))
+                .getDefaultDisplay();
+    }
+
+    /**
+     * Decode the thumbnail embedded in the picture EXIF data.
+     * 
+     * @param thumbnail
+     *            The JPEG thumbnail data.
+     * @param colorConfig
+     *            The preferred Config of the decoded Bitmap.
+     * @return The decoded thumbnail, or null if it could not be decoded.
+     */
+    private static Bitmap decodeExifThumbnail(byte[] thumbnail,
+            Bitmap.Config colorConfig) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = colorConfig;
+        options.inDither = !colorConfig.equals(Config.ARGB_8888);
+        if (BitmapPool.canDecodeIntoBitmaps()) {
+            options.inMutable = true;
+        }
+        return BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length,
+                options);
+    }
+
+    /**
+     * Set the Options of a decode so that the decoder outputs the final size:
+     * the picture is subsampled by the largest power of 2 keeping it larger
+     * than the final size, then scaled by the ratio between inTargetDensity
+     * and inDensity.
+     * 
+     * @param fpResult
+     *            The calculations obtained in the first pass.
+     * @return true if the decoder will scale the picture, false if the
+     *         picture is not larger than the final size.
+     */
+    private static boolean prepareDensityScaling(FirstPassResult fpResult) {
+        BitmapFactory.Options options = fpResult.options;
+        // The decoder works on the stored picture, before its orientation
+        int finalWidth = ExifOrientation.isTransposed(fpResult.plan.orientation)
+                ? fpResult.finalHeight : fpResult.finalWidth;
+        if (finalWidth <= 0 || options.outWidth <= finalWidth
+                || fpResult.plan.isCropped() || fpResult.plan.mode == ScaleMode.EXACT) {
+            // The decoder scales the whole picture keeping its aspect ratio
+            return false;
+        }
+        int sampleSize = Integer.highestOneBit(Math.max(1, options.inSampleSize));
+        int sampledWidth = options.outWidth / sampleSize;
+        options.inSampleSize = sampleSize;
+        if (sampledWidth > finalWidth) {
+            options.inScaled = true;
+            options.inDensity = sampledWidth;
+            options.inTargetDensity = finalWidth;
+        }
+        return true;
+    }
+
+    /**
+     * Set the Options of a decode so that it reuses a pooled Bitmap if the
+     * platform allows it. Before KitKat, the decoded Bitmap must have exactly
+     * the pooled Bitmap dimensions, so it is only possible for JPEG and PNG
+     * pictures decoded without subsampling.
+     * 
+     * @param fpResult
+     *            The calculations obtained in the first pass.
+     * @param colorConfig
+     *            The Config of the decoded Bitmap.
+     * @param densityScaled
+     *            Whether the decoder scales the picture to its final size.
+     * @return true if a pooled Bitmap has been set as inBitmap.
+     */
+    private static boolean prepareBitmapReuse(FirstPassResult fpResult,
+            Bitmap.Config colorConfig, boolean densityScaled) {
+        BitmapPool pool = bitmapPool;
+        if (pool == null || !BitmapPool.canDecodeIntoBitmaps()) {
+            return false;
+        }
+        BitmapFactory.Options options = fpResult.options;
+        // Decode mutable Bitmaps so that they can be pooled when released
+        options.inMutable = true;
+        int sampleSize = Math.max(1, options.inSampleSize);
+        if (Build.VERSION.SDK_INT < 19
+                && (sampleSize > 1 || densityScaled || (fpResult.format != ImageInfo.Format.JPEG && fpResult.format != ImageInfo.Format.PNG))) {
+            return false;
+        }
+        int decodedWidth;
+        int decodedHeight;
+        if (densityScaled) {
+            boolean transposed = ExifOrientation.isTransposed(fpResult.plan.orientation);
+            decodedWidth = (transposed ? fpResult.finalHeight : fpResult.finalWidth) + 1;
+            decodedHeight = (transposed ? fpResult.finalWidth : fpResult.finalHeight) + 1;
+        } else {
+            // The decoder rounds the sample size down to a power of 2, which
+            // gives the largest possible decoded size.
+            int effectiveSampleSize = Integer.highestOneBit(sampleSize);
+            decodedWidth = (options.outWidth + effectiveSampleSize - 1) / effectiveSampleSize;
+            decodedHeight = (options.outHeight + effectiveSampleSize - 1) / effectiveSampleSize;
+        }
+        options.inBitmap = pool.getForDecode(decodedWidth, decodedHeight, colorConfig);
+        return options.inBitmap != null;
+    }
+
+    /**
+     * Transform a Bitmap, drawing it into a pooled Bitmap if possible.
+     * 
+     * @param source
+     *            The Bitmap to transform.
+     * @param matrix
+     *            The transform from source to result pixels, null to scale
+     *            the whole source to the result size.
+     * @param width
+     *            The width of the resulting Bitmap.
+     * @param height
+     *            The height of the resulting Bitmap.
+     * @return A new Bitmap.
+     */
+    private static Bitmap transform(Bitmap source, Matrix matrix, int width, int height) {
+        BitmapPool pool = bitmapPool;
+        if (pool == null && matrix == null) {
+            return Bitmap.createScaledBitmap(source, width, height, true);
+        }
+        if (matrix == null) {
+            matrix = new Matrix();
+            matrix.setScale((float) width / source.getWidth(),
+                    (float) height / source.getHeight());
+        }
+        Config config = source.getConfig() != null ? source.getConfig() : Config.ARGB_8888;
+        Bitmap target = pool == null ? null : pool.get(width, height, config);
+        if (target == null) {
+            target = Bitmap.createBitmap(width, height, config);
+        } else if (source.hasAlpha()) {
+            // Transparent pixels must not show the previous content
+            target.eraseColor(Color.TRANSPARENT);
+        }
+        Canvas canvas = new Canvas(target);
+        canvas.drawBitmap(source, matrix,
+                new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG));
+        return target;
+    }
+
+    /**
+     * Give a Bitmap which is not used anymore to the pool, or recycle it if
+     * it can't be pooled.
+     */
+    private static void releaseBitmap(Bitmap bitmap) {
+        BitmapPool pool = bitmapPool;
+        if (pool == null || !pool.put(bitmap)) {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Abort the load if it has been cancelled or its deadline has passed.
+     * 
+     * @param loadOptions
+     *            The options of the load.
+     * @throws LoadCancelledException
+     *             If the load has to be aborted.
+     */
+    private static void checkCancelled(LoadOptions loadOptions)
+            throws LoadCancelledException {
+        if (loadOptions.isCancelled()) {
+            throw new LoadCancelledException("Load cancelled");
+        }
+    }
+
+    /**
+     * Schedule the interruption of a decode when the deadline of its load is
+     * reached.
+     * 
+     * @param options
+     *            The Options given to the decoder.
+     * @param deadline
+     *            The deadline of the load, in the
+     *            {@link SystemClock#uptimeMillis()} time base. 0 for none.
+     * @return The scheduled task, to be cancelled when the decode is
+     *         finished, or null if there is no deadline.
+     */
+    private static TimerTask scheduleDeadline(final BitmapFactory.Options options,
+            long deadline) {
+        if (deadline <= 0) {
+            return null;
+        }
+        return scheduleDeadline(new TimerTask() {
+
+            @Override
+            public void run() {
+                options.requestCancelDecode();
+            }
+
+        }, deadline);
+    }
+
+    private static TimerTask scheduleDeadline(TimerTask task, long deadline) {
+        synchronized (BitmapLoader.class) {
+            if (deadlineTimer == null) {
+                deadlineTimer = new Timer(LOG_TAG + " deadlines", true);
+            }
+            deadlineTimer.schedule(task,
+                    Math.max(0, deadline - SystemClock.uptimeMillis()));
+        }
+        return task;
     }
 }
@@ -0,0 +1,258 @@
+package com.kg.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.os.Build;
+
+/**
+ * A pool of mutable Bitmaps which are not used anymore, so that their memory
+ * can be reused by the next decodes (with {@link android.graphics.BitmapFactory.Options#inBitmap})
+ * or as targets of scaling, instead of allocating new Bitmaps.
+ * <p>
+ * Bitmaps are grouped in buckets by {@link Config} and size class, the size
+ * class being their pixel byte count rounded up to a power of 2. Before KitKat,
+ * a decode can only reuse a Bitmap of exactly the decoded dimensions. From
+ * KitKat, any Bitmap with enough bytes can be reused, so the buckets of the
+ * needed size class and of the next one are searched.
+ * </p>
+ * <p>
+ * The pool is bounded by the total byte count of its Bitmaps. The oldest
+ * pooled Bitmaps are recycled when the limit is exceeded.
+ * </p>
+ */
+public class BitmapPool {
+    /** Build.VERSION_CODES.HONEYCOMB: inBitmap and inMutable. */
+    private static final int HONEYCOMB = 11;
+    /** Build.VERSION_CODES.KITKAT: inBitmap with any large enough Bitmap. */
+    private static final int KITKAT = 19;
+
+    private final long maxBytes;
+    private long currentBytes = 0;
+    private long hitCount = 0;
+    private long missCount = 0;
+
+    /** Pooled Bitmaps by bucket key. */
+    private final HashMap<Long, List<Bitmap>> buckets = new HashMap<Long, List<Bitmap>>();
+    /** All pooled Bitmaps with their bucket key, the oldest first. */
+    private final LinkedHashMap<Bitmap, Long> pooled = new LinkedHashMap<Bitmap, Long>();
+
+    /**
+     * @param maxBytes
+     *            The maximum number of bytes used by the pooled Bitmaps.
+     */
+    public BitmapPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Tells if decodes can reuse pooled Bitmaps on this platform.
+     */
+    public static boolean canDecodeIntoBitmaps() {
+        return Build.VERSION.SDK_INT >= HONEYCOMB;
+    }
+
+    /**
+     * Give a Bitmap which is not used anymore to the pool. Recycled or
+     * immutable Bitmaps are ignored. The caller must not use the Bitmap after
+     * this call.
+     *
+     * @param bitmap
+     *            The Bitmap to pool.
+     * @return false if the Bitmap can't be reused and has been ignored, the
+     *         caller may then recycle it.
+     */
+    public boolean put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable() || bitmap.getConfig() == null) {
+            return false;
+        }
+        int bytes = getByteCount(bitmap);
+        if (bytes > maxBytes) {
+            bitmap.recycle();
+            return true;
+        }
+        List<Bitmap> evicted = new ArrayList<Bitmap>(0);
+        synchronized (this) {
+            if (pooled.containsKey(bitmap)) {
+                return true;
+            }
+            Long key = bucketKey(bytes, bitmap.getConfig());
+            List<Bitmap> bucket = buckets.get(key);
+            if (bucket == null) {
+                bucket = new ArrayList<Bitmap>(4);
+                buckets.put(key, bucket);
+            }
+            bucket.add(bitmap);
+            pooled.put(bitmap, key);
+            currentBytes += bytes;
+
+            Iterator<Bitmap> eldest = pooled.keySet().iterator();
+            while (currentBytes > maxBytes && eldest.hasNext()) {
+                Bitmap old = eldest.next();
+                Long oldKey = pooled.get(old);
+                eldest.remove();
+                removeFromBucket(oldKey, old);
+                currentBytes -= getByteCount(old);
+                evicted.add(old);
+            }
+        }
+        for (Bitmap old : evicted) {
+            old.recycle();
+        }
+        return true;
+    }
+
+    /**
+     * Get a pooled Bitmap of exactly the given dimensions and Config, to draw
+     * into.
+     *
+     * @return A pooled Bitmap with unspecified content, or null if there is
+     *         none.
+     */
+    public synchronized Bitmap get(int width, int height, Config config) {
+        Bitmap bitmap = take(bucketKey(width * height * BitmapWeigher.getBytesPerPixel(config), config), width,
+                height, 0);
+        count(bitmap);
+        return bitmap;
+    }
+
+    /**
+     * Get a pooled Bitmap which a decode of the given dimensions and Config
+     * can reuse.
+     *
+     * @param width
+     *            The width of the decoded Bitmap.
+     * @param height
+     *            The height of the decoded Bitmap.
+     * @param config
+     *            The Config of the decoded Bitmap.
+     * @return A pooled Bitmap to give to the decoder as inBitmap, or null if
+     *         there is none or if the platform does not support it.
+     */
+    public synchronized Bitmap getForDecode(int width, int height, Config config) {
+        Bitmap bitmap = null;
+        if (Build.VERSION.SDK_INT >= KITKAT) {
+            int bytes = width * height * BitmapWeigher.getBytesPerPixel(config);
+            bitmap = take(bucketKey(bytes, config), 0, 0, bytes);
+            if (bitmap == null) {
+                bitmap = take(bucketKey(bytes * 2, config), 0, 0, bytes);
+            }
+        } else if (Build.VERSION.SDK_INT >= HONEYCOMB) {
+            bitmap = take(bucketKey(width * height * BitmapWeigher.getBytesPerPixel(config), config), width,
+                    height, 0);
+        }
+        count(bitmap);
+        return bitmap;
+    }
+
+    /**
+     * Remove from a bucket a Bitmap of the given dimensions, or with at least
+     * the given byte count if dimensions are 0.
+     */
+    private Bitmap take(Long key, int width, int height, int minBytes) {
+        List<Bitmap> bucket = buckets.get(key);
+        if (bucket == null) {
+            return null;
+        }
+        for (int i = bucket.size() - 1; i >= 0; i--) {
+            Bitmap candidate = bucket.get(i);
+            boolean fits = width > 0 ? candidate.getWidth() == width && candidate.getHeight() == height
+                    : getByteCount(candidate) >= minBytes;
+            if (fits) {
+                bucket.remove(i);
+                if (bucket.isEmpty()) {
+                    buckets.remove(key);
+                }
+                pooled.remove(candidate);
+                currentBytes -= getByteCount(candidate);
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private void removeFromBucket(Long key, Bitmap bitmap) {
+        List<Bitmap> bucket = buckets.get(key);
+        if (bucket != null) {
+            bucket.remove(bitmap);
+            if (bucket.isEmpty()) {
+                buckets.remove(key);
+            }
+        }
+    }
+
+    private void count(Bitmap bitmap) {
+        if (bitmap == null) {
+            missCount++;
+        } else {
+            hitCount++;
+        }
+    }
+
+    /**
+     * Bucket key: the Config ordinal and the byte count rounded up to a power
+     * of 2.
+     */
+    private static Long bucketKey(int bytes, Config config) {
+        int sizeClass = 32 - Integer.numberOfLeadingZeros(Math.max(bytes - 1, 0));
+        return Long.valueOf(((long) sizeClass << 8) | config.ordinal());
+    }
+
+    /**
+     * Pixel bytes, computed as by {@link BitmapWeigher} so that lookups by
+     * dimensions find the same bucket. Row padding and the larger allocation
+     * of a Bitmap reconfigured by a decode are not counted.
+     */
+    private static int getByteCount(Bitmap bitmap) {
+        return bitmap.getWidth() * bitmap.getHeight() * BitmapWeigher.getBytesPerPixel(bitmap.getConfig());
+    }
+
+    /**
+     * Recycle all the pooled Bitmaps.
+     */
+    public void clear() {
+        List<Bitmap> all;
+        synchronized (this) {
+            all = new ArrayList<Bitmap>(pooled.keySet());
+            pooled.clear();
+            buckets.clear();
+            currentBytes = 0;
+        }
+        for (Bitmap bitmap : all) {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * @return The maximum number of bytes used by the pooled Bitmaps.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return The number of bytes used by the pooled Bitmaps.
+     */
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    /**
+     * @return The number of requests which got a pooled Bitmap.
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return The number of requests which found no suitable pooled Bitmap.
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+}
@@ -0,0 +1,32 @@
+package com.kg.util;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+
+/**
+ * Weighs Bitmaps by the number of bytes of their pixels: width x height x
+ * bytes per pixel of their {@link Config}.
+ */
+public class BitmapWeigher implements Weigher<Bitmap> {
+
+    @Override
+    public int weigh(Bitmap bitmap) {
+        return bitmap.getWidth() * bitmap.getHeight() * getBytesPerPixel(bitmap.getConfig());
+    }
+
+    /**
+     * @param config
+     *            A Bitmap color configuration, may be null for Bitmaps whose
+     *            internal format has no public Config.
+     * @return The number of bytes used to store one pixel.
+     */
+    public static int getBytesPerPixel(Config config) {
+        if (config == Config.ALPHA_8) {
+            return 1;
+        } else if (config == Config.RGB_565 || config == Config.ARGB_4444) {
+            return 2;
+        }
+        // ARGB_8888, and unknown formats are considered as the largest one.
+        return 4;
+    }
+}
@@ -0,0 +1,122 @@
+package com.kg.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of the resolution levels cached for each picture, so that the
+ * memory cache can hold several sizes of the same picture. A level groups the
+ * Bitmaps whose longest edge rounds up to the same power of 2, each level
+ * being cached under its own key.
+ * <p>
+ * Levels are removed when the memory cache evicts them, see
+ * {@link #removeLevelKey(String)}, so the index only holds the pictures
+ * which are cached. Values dropped by a soft referencing cache are not
+ * notified: a level found missing from the cache has to be removed with
+ * {@link #remove(String, int)}. This class does not depend on the Android
+ * framework.
+ * </p>
+ */
+class CacheLevels {
+    /** The cached levels of each picture, as a bit mask. */
+    private final ConcurrentHashMap<String, Integer> levels = new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * @return The level of a Bitmap of the given size: the power of 2 of its
+     *         longest edge, rounded up.
+     */
+    static int levelOf(int width, int height) {
+        int edge = Math.max(1, Math.max(width, height));
+        return 32 - Integer.numberOfLeadingZeros(edge - 1);
+    }
+
+    /**
+     * @return The memory cache key of a level of a picture.
+     */
+    static String levelKey(String key, int level) {
+        return key + "@" + level;
+    }
+
+    /**
+     * Record that a level of a picture is cached.
+     */
+    void add(String key, int level) {
+        int bit = 1 << level;
+        while (true) {
+            Integer mask = levels.putIfAbsent(key, bit);
+            if (mask == null || (mask & bit) != 0 || levels.replace(key, mask, mask | bit)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Record that a level of a picture is not cached anymore.
+     */
+    void remove(String key, int level) {
+        int bit = 1 << level;
+        while (true) {
+            Integer mask = levels.get(key);
+            if (mask == null || (mask & bit) == 0) {
+                return;
+            }
+            int newMask = mask & ~bit;
+            if (newMask == 0 ? levels.remove(key, mask) : levels.replace(key, mask, newMask)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Record that a level is not cached anymore, from its memory cache key.
+     *
+     * @param levelKey
+     *            A key given by {@link #levelKey(String, int)}. Other keys
+     *            are ignored.
+     */
+    void removeLevelKey(String levelKey) {
+        int separator = levelKey.lastIndexOf('@');
+        if (separator < 0) {
+            return;
+        }
+        int level;
+        try {
+            level = Integer.parseInt(levelKey.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if (level >= 0 && level < 32) {
+            remove(levelKey.substring(0, separator), level);
+        }
+    }
+
+    /**
+     * @return The number of pictures with at least one cached level.
+     */
+    int size() {
+        return levels.size();
+    }
+
+    /**
+     * @return The cached levels of a picture, smallest first. Empty if none.
+     */
+    int[] get(String key) {
+        Integer mask = levels.get(key);
+        if (mask == null) {
+            return new int[0];
+        }
+        int[] result = new int[Integer.bitCount(mask)];
+        int remaining = mask;
+        for (int i = 0; i < result.length; i++) {
+            result[i] = Integer.numberOfTrailingZeros(remaining);
+            remaining &= remaining - 1;
+        }
+        return result;
+    }
+
+    /**
+     * Forget all levels, when the memory cache is replaced.
+     */
+    void clear() {
+        levels.clear();
+    }
+}
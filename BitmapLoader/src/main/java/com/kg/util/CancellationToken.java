@@ -0,0 +1,93 @@
+package com.kg.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.graphics.BitmapFactory.Options;
+
+/**
+ * Allows a caller to cancel loads it started. Loads check the token between
+ * each stage (opening the Uri, reading the bounds, decoding, scaling) and a
+ * decode in progress is interrupted with
+ * {@link Options#requestCancelDecode()}. A cancelled load throws a
+ * {@link LoadCancelledException}.
+ * <p>
+ * A token can be shared by several loads, for example all the thumbnails
+ * requested for a screen, and cancelled at once.
+ * </p>
+ */
+public class CancellationToken {
+    private volatile boolean cancelled = false;
+    /** A token whose cancellation also cancels this one. */
+    private final CancellationToken parent;
+    /** The decodes in progress for loads using this token. */
+    private final List<Options> decodes = new ArrayList<Options>(1);
+
+    public CancellationToken() {
+        this(null);
+    }
+
+    /**
+     * Create a token cancelled either by its own {@link #cancel()} or by the
+     * cancellation of its parent.
+     *
+     * @param parent
+     *            The parent token, can be null.
+     */
+    CancellationToken(CancellationToken parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * Cancel all the loads using this token, including the ones which will
+     * be started later with it.
+     */
+    public void cancel() {
+        synchronized (decodes) {
+            cancelled = true;
+            for (Options options : decodes) {
+                options.requestCancelDecode();
+            }
+        }
+    }
+
+    /**
+     * @return true if {@link #cancel()} has been called.
+     */
+    public boolean isCancelled() {
+        return cancelled || (parent != null && parent.isCancelled());
+    }
+
+    /**
+     * Register a decode in progress so that it can be interrupted.
+     *
+     * @param options
+     *            The Options given to the decoder.
+     */
+    void register(Options options) {
+        synchronized (decodes) {
+            if (cancelled) {
+                options.requestCancelDecode();
+            }
+            decodes.add(options);
+        }
+        if (parent != null) {
+            parent.register(options);
+        }
+    }
+
+    /**
+     * Unregister a finished decode.
+     *
+     * @param options
+     *            The Options given to {@link #register(Options)}.
+     */
+    void unregister(Options options) {
+        synchronized (decodes) {
+            decodes.remove(options);
+        }
+        if (parent != null) {
+            parent.unregister(options);
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package com.kg.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A LRU cache for caches read by several threads at the same time. Reads
+ * don't take any lock: the entries are found in a ConcurrentHashMap, and each
+ * read is recorded in a small buffer instead of moving the entry in the LRU
+ * order right away. The buffers are striped by thread, so that readers on
+ * different cores don't write the same memory, and they are replayed in
+ * batches under the eviction lock. When a buffer is full, reads are not
+ * recorded until it is replayed: the LRU order is approximate for the most
+ * read entries, which are the least likely to be evicted.
+ * <p>
+ * Insertions take the eviction lock, replay the buffered reads, then evict
+ * the least recently used entries while the cache exceeds its size or weight
+ * limit. The limits are global, so that a value may use the whole weight
+ * budget. Unlike {@link NewLRUCache}, values are always strongly referenced,
+ * entries are only removed by eviction.
+ * </p>
+ *
+ * @param <K>
+ *            The type of the keys.
+ * @param <V>
+ *            The type of the cached values.
+ */
+public class ConcurrentLRUCache<K, V> implements MemoryCache<K, V> {
+    /** Number of reads a buffer holds, a power of 2. */
+    private static final int READ_BUFFER_SIZE = 32;
+    private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+    /** Number of reads recorded in a buffer before it is replayed. */
+    private static final int READ_BUFFER_DRAIN_THRESHOLD = 16;
+
+    /** An entry, linked in the LRU order under the eviction lock. */
+    private static class Node<K, V> {
+        final K key;
+        final V value;
+        final int weight;
+        Node<K, V> previous;
+        Node<K, V> next;
+        /** Set when the entry leaves the cache, its reads are then ignored. */
+        boolean removed = false;
+
+        Node(K key, V value, int weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * A ring of the entries read by a group of threads. Readers claim slots
+     * by incrementing writeCount, the slots are emptied under the eviction
+     * lock.
+     */
+    private static class ReadBuffer<K, V> {
+        final AtomicLong writeCount = new AtomicLong();
+        /** Written under the eviction lock. */
+        volatile long readCount = 0;
+        final AtomicReferenceArray<Node<K, V>> nodes = new AtomicReferenceArray<Node<K, V>>(READ_BUFFER_SIZE);
+    }
+
+    private final ConcurrentHashMap<K, Node<K, V>> map;
+    private final ReadBuffer<K, V>[] readBuffers;
+    private final int readBufferMask;
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    /** Sentinel of the LRU list: head.next is the eldest entry. */
+    private final Node<K, V> head = new Node<K, V>(null, null, 0);
+    private final int cacheSize;
+    private final Weigher<V> weigher;
+    private final long maxWeight;
+    /** Written under the eviction lock. */
+    private volatile int numberOfElements = 0;
+    /** Written under the eviction lock. */
+    private volatile long currentWeight = 0;
+    private volatile EvictionListener<K, V> evictionListener;
+
+    /**
+     * Create a cache bounded by number of entries, with one read buffer per
+     * available processor.
+     *
+     * @param cacheSize
+     *            The maximum number of entries.
+     */
+    public ConcurrentLRUCache(int cacheSize) {
+        this(cacheSize, null, 0, defaultConcurrency());
+    }
+
+    /**
+     * Create a cache bounded by the total weight of its values, with one read
+     * buffer per available processor.
+     *
+     * @param maxWeight
+     *            The maximum total weight of the values.
+     * @param weigher
+     *            Gives the weight of each value.
+     */
+    public ConcurrentLRUCache(long maxWeight, Weigher<V> weigher) {
+        this(Integer.MAX_VALUE, weigher, maxWeight, defaultConcurrency());
+    }
+
+    /**
+     * Create a cache bounded by the total weight of its values.
+     *
+     * @param maxWeight
+     *            The maximum total weight of the values.
+     * @param weigher
+     *            Gives the weight of each value.
+     * @param concurrency
+     *            The expected number of threads reading the cache at the same
+     *            time, rounded up to a power of 2 to get the number of read
+     *            buffers.
+     */
+    public ConcurrentLRUCache(long maxWeight, Weigher<V> weigher, int concurrency) {
+        this(Integer.MAX_VALUE, weigher, maxWeight, concurrency);
+    }
+
+    @SuppressWarnings("unchecked")
+    private ConcurrentLRUCache(int cacheSize, Weigher<V> weigher, long maxWeight, int concurrency) {
+        this.cacheSize = (cacheSize < 1) ? 1000 : cacheSize;
+        this.weigher = weigher;
+        this.maxWeight = maxWeight;
+        int bufferCount = 1;
+        while (bufferCount < concurrency) {
+            bufferCount <<= 1;
+        }
+        map = new ConcurrentHashMap<K, Node<K, V>>(16, 0.75f, bufferCount);
+        readBuffers = (ReadBuffer<K, V>[]) new ReadBuffer<?, ?>[bufferCount];
+        for (int i = 0; i < bufferCount; i++) {
+            readBuffers[i] = new ReadBuffer<K, V>();
+        }
+        readBufferMask = bufferCount - 1;
+        head.previous = head;
+        head.next = head;
+    }
+
+    private static int defaultConcurrency() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    @Override
+    public V get(K key) {
+        if (key == null) {
+            return null;
+        }
+        Node<K, V> node = map.get(key);
+        if (node == null) {
+            return null;
+        }
+        recordRead(node);
+        return node.value;
+    }
+
+    /**
+     * Record a read in the buffer of the current thread, replaying the
+     * buffers when enough reads are recorded. The read is dropped if the
+     * buffer is full or if another thread sharing the buffer records a read
+     * at the same time.
+     */
+    private void recordRead(Node<K, V> node) {
+        ReadBuffer<K, V> buffer = readBuffers[(int) Thread.currentThread().getId() & readBufferMask];
+        long index = buffer.writeCount.get();
+        if (index - buffer.readCount < READ_BUFFER_SIZE) {
+            if (!buffer.writeCount.compareAndSet(index, index + 1)) {
+                return;
+            }
+            buffer.nodes.lazySet((int) index & READ_BUFFER_MASK, node);
+            if (((index + 1) & (READ_BUFFER_DRAIN_THRESHOLD - 1)) != 0) {
+                return;
+            }
+        }
+        tryDrainReadBuffers();
+    }
+
+    /** Replay the reads, unless another thread holds the eviction lock. */
+    private void tryDrainReadBuffers() {
+        if (evictionLock.tryLock()) {
+            try {
+                drainReadBuffers();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Stores into the cache the specified entry, then evicts the less recently
+     * used entries while the cache is full. A value heavier than the weight
+     * limit is not stored.
+     */
+    @Override
+    public void put(K key, V entry) {
+        if (key == null || entry == null) {
+            return;
+        }
+        int weight = weigher == null ? 0 : weigher.weigh(entry);
+        if (weigher != null && weight > maxWeight) {
+            return;
+        }
+        Node<K, V> node = new Node<K, V>(key, entry, weight);
+        Node<K, V> previous;
+        List<Node<K, V>> evicted = null;
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+            previous = map.put(key, node);
+            if (previous != null) {
+                remove(previous);
+            }
+            link(node);
+            numberOfElements++;
+            currentWeight += weight;
+            // The new entry is kept, even if alone over the size limit
+            while (isOverflowing() && head.next != node) {
+                Node<K, V> eldest = head.next;
+                map.remove(eldest.key, eldest);
+                remove(eldest);
+                if (evicted == null) {
+                    evicted = new ArrayList<Node<K, V>>();
+                }
+                evicted.add(eldest);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+        if (previous != null && previous.value != entry) {
+            notifyEvicted(key, previous.value);
+        }
+        if (evicted != null) {
+            for (Node<K, V> eldest : evicted) {
+                notifyEvicted(eldest.key, eldest.value);
+            }
+        }
+    }
+
+    private void notifyEvicted(K key, V value) {
+        EvictionListener<K, V> listener = evictionListener;
+        if (listener != null) {
+            listener.onEvicted(key, value);
+        }
+    }
+
+    private boolean isOverflowing() {
+        return numberOfElements > cacheSize || (weigher != null && currentWeight > maxWeight);
+    }
+
+    /**
+     * Move the entries read since the last replay to the most recently used
+     * end of the LRU list. Called under the eviction lock.
+     */
+    private void drainReadBuffers() {
+        for (ReadBuffer<K, V> buffer : readBuffers) {
+            long index = buffer.readCount;
+            long end = buffer.writeCount.get();
+            for (; index < end; index++) {
+                int slot = (int) index & READ_BUFFER_MASK;
+                Node<K, V> node = buffer.nodes.get(slot);
+                if (node == null) {
+                    // Claimed but not written yet, replayed next time
+                    break;
+                }
+                buffer.nodes.lazySet(slot, null);
+                if (!node.removed) {
+                    unlink(node);
+                    link(node);
+                }
+            }
+            buffer.readCount = index;
+        }
+    }
+
+    /** Append an entry at the most recently used end. */
+    private void link(Node<K, V> node) {
+        node.previous = head.previous;
+        node.next = head;
+        head.previous.next = node;
+        head.previous = node;
+    }
+
+    private void unlink(Node<K, V> node) {
+        node.previous.next = node.next;
+        node.next.previous = node.previous;
+    }
+
+    /** Remove an entry which has left the map from the LRU list. */
+    private void remove(Node<K, V> node) {
+        unlink(node);
+        node.removed = true;
+        numberOfElements--;
+        currentWeight -= node.weight;
+    }
+
+    @Override
+    public final int getSize() {
+        return cacheSize;
+    }
+
+    @Override
+    public final int getCurrentUsage() {
+        return numberOfElements;
+    }
+
+    @Override
+    public final long getMaxWeight() {
+        return maxWeight;
+    }
+
+    @Override
+    public final long getCurrentWeight() {
+        return weigher == null ? 0 : currentWeight;
+    }
+
+    @Override
+    public void setEvictionListener(EvictionListener<K, V> listener) {
+        evictionListener = listener;
+    }
+}
@@ -0,0 +1,401 @@
+package com.kg.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded index of the header properties of the pictures already read:
+ * width, height, EXIF orientation, format and location of the EXIF thumbnail.
+ * It replaces a map of Uri strings to int arrays, which used about 150 bytes
+ * and 3 objects per picture, with 3 arrays of longs using 24 bytes per slot.
+ * <p>
+ * Keys are longs: the id of MediaStore external images, or a 64 bits hash of
+ * other Uris, which has a negligible collision probability. Entries are
+ * stored with open addressing and linear probing. When the index is full,
+ * entries are evicted with the CLOCK algorithm: an entry read since the
+ * clock hand last passed over it gets a second chance. This class does not
+ * depend on the Android framework.
+ * </p>
+ * <p>
+ * Lookups don't take any lock. Writers are serialized, and make the sequence
+ * number odd while they modify the table. A lookup reads the sequence number
+ * before and after probing the table, and is done again under the lock if a
+ * writer has run meanwhile.
+ * </p>
+ */
+class DimensionIndex {
+    /** The prefix of MediaStore external images Uris, followed by the id. */
+    private static final String MEDIA_IMAGES_PREFIX = "content://media/external/images/media/";
+    /** Marks empty slots, no key has this value. */
+    private static final long EMPTY = 0;
+    /** Set on the keys of hashed Uris, which can't collide with ids. */
+    private static final long HASHED_KEY = Long.MIN_VALUE;
+    /** Set on the values read since the clock hand passed over them. */
+    private static final long REFERENCED = Long.MIN_VALUE;
+    /**
+     * The thumbnail location of pictures whose header has been read and has
+     * no usable EXIF thumbnail. A location of 0 means that it is unknown.
+     */
+    static final long NO_THUMBNAIL = 1L << 60;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * The slots of the index, replaced as a whole when it is resized, so that
+     * a lookup never sees arrays of different lengths.
+     */
+    private static class Table {
+        final AtomicLongArray keys;
+        final AtomicLongArray values;
+        final AtomicLongArray thumbnails;
+        final int mask;
+
+        Table(int capacity) {
+            keys = new AtomicLongArray(capacity);
+            values = new AtomicLongArray(capacity);
+            thumbnails = new AtomicLongArray(capacity);
+            mask = capacity - 1;
+        }
+
+        int slotOf(long key) {
+            long hash = key * 0x9e3779b97f4a7c15L;
+            return (int) (hash ^ hash >>> 32) & mask;
+        }
+
+        /**
+         * @return The slot of the key, -1 if it is not indexed. The probe is
+         *         bounded, so that a lookup racing with a writer ends.
+         */
+        int find(long key) {
+            int slot = slotOf(key);
+            for (int probes = 0; probes <= mask; probes++) {
+                long slotKey = keys.get(slot);
+                if (slotKey == key) {
+                    return slot;
+                }
+                if (slotKey == EMPTY) {
+                    return -1;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+    }
+
+    private final int maxEntries;
+    private final int maxCapacity;
+    private volatile Table table = new Table(INITIAL_CAPACITY);
+    /** Odd while a writer modifies the table. Written under the lock. */
+    private volatile int sequence = 0;
+    private volatile int size = 0;
+    private int clockHand = 0;
+
+    /**
+     * @param maxEntries
+     *            The maximum number of pictures in the index.
+     */
+    DimensionIndex(int maxEntries) {
+        this.maxEntries = Math.max(1, maxEntries);
+        // Keep the load factor at most 3/4
+        maxCapacity = Math.max(INITIAL_CAPACITY, Integer.highestOneBit(this.maxEntries * 4 / 3 + 1) * 2);
+    }
+
+    /**
+     * Compute the index key of a picture.
+     *
+     * @param uri
+     *            The Uri of the picture.
+     * @return The key, never 0.
+     */
+    static long keyOf(String uri) {
+        if (uri.startsWith(MEDIA_IMAGES_PREFIX)) {
+            int length = uri.length() - MEDIA_IMAGES_PREFIX.length();
+            if (length > 0 && length < 19) {
+                long id = 0;
+                for (int i = MEDIA_IMAGES_PREFIX.length(); i < uri.length(); i++) {
+                    char c = uri.charAt(i);
+                    if (c < '0' || c > '9') {
+                        id = -1;
+                        break;
+                    }
+                    id = id * 10 + (c - '0');
+                }
+                if (id >= 0) {
+                    // 0 is reserved for empty slots
+                    return id + 1;
+                }
+            }
+        }
+        // FNV-1a, then a finalizer spreading the bits
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < uri.length(); i++) {
+            hash ^= uri.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash | HASHED_KEY;
+    }
+
+    /**
+     * Pack the properties of a picture in a value of the index.
+     *
+     * @param width
+     *            The picture width, at most 2^24 - 1.
+     * @param height
+     *            The picture height, at most 2^24 - 1.
+     * @param orientation
+     *            The EXIF orientation.
+     * @param format
+     *            The picture format, can be null.
+     * @return The packed properties, 0 if the dimensions are not between 1
+     *         and 2^24 - 1.
+     */
+    static long pack(int width, int height, int orientation, ImageInfo.Format format) {
+        if (width <= 0 || height <= 0 || width > 0xffffff || height > 0xffffff) {
+            return 0;
+        }
+        long formatBits = format == null ? 0 : format.ordinal() + 1;
+        return (width & 0xffffffL) | (height & 0xffffffL) << 24 | (orientation & 0xfL) << 48 | formatBits << 52;
+    }
+
+    static int width(long value) {
+        return (int) (value & 0xffffff);
+    }
+
+    static int height(long value) {
+        return (int) (value >>> 24 & 0xffffff);
+    }
+
+    static int orientation(long value) {
+        return (int) (value >>> 48 & 0xf);
+    }
+
+    static ImageInfo.Format format(long value) {
+        int formatBits = (int) (value >>> 52 & 0xf);
+        return formatBits == 0 ? null : ImageInfo.Format.values()[formatBits - 1];
+    }
+
+    /**
+     * Pack the location of the EXIF thumbnail found by the header parser.
+     *
+     * @param info
+     *            The properties read from the picture header, with its EXIF
+     *            data.
+     * @return The packed location, {@link #NO_THUMBNAIL} if the picture has
+     *         no thumbnail or if it is too far or too large to be indexed.
+     */
+    static long packThumbnail(ImageInfo info) {
+        if (info.exifThumbnailLength <= 0 || info.exifThumbnailLength > 0xffff
+                || info.exifThumbnailOffset <= 0 || info.exifThumbnailOffset > 0xfffff
+                || info.exifThumbnailWidth <= 0 || info.exifThumbnailWidth > 0xfff
+                || info.exifThumbnailHeight <= 0 || info.exifThumbnailHeight > 0xfff) {
+            return NO_THUMBNAIL;
+        }
+        return info.exifThumbnailLength | (long) info.exifThumbnailOffset << 16
+                | (long) info.exifThumbnailWidth << 36 | (long) info.exifThumbnailHeight << 48;
+    }
+
+    /**
+     * @return true if the thumbnail location packed by
+     *         {@link #packThumbnail(ImageInfo)} is a thumbnail.
+     */
+    static boolean hasThumbnail(long thumbnail) {
+        return thumbnailLength(thumbnail) > 0;
+    }
+
+    static int thumbnailLength(long thumbnail) {
+        return (int) (thumbnail & 0xffff);
+    }
+
+    static int thumbnailOffset(long thumbnail) {
+        return (int) (thumbnail >>> 16 & 0xfffff);
+    }
+
+    static int thumbnailWidth(long thumbnail) {
+        return (int) (thumbnail >>> 36 & 0xfff);
+    }
+
+    static int thumbnailHeight(long thumbnail) {
+        return (int) (thumbnail >>> 48 & 0xfff);
+    }
+
+    /**
+     * @param key
+     *            A key given by {@link #keyOf(String)}.
+     * @return The packed properties of the picture, 0 if it is not indexed.
+     */
+    long get(long key) {
+        int stamp = sequence;
+        if ((stamp & 1) == 0) {
+            Table t = table;
+            int slot = t.find(key);
+            long value = slot < 0 ? 0 : t.values.get(slot);
+            if (sequence == stamp) {
+                if (slot >= 0 && (value & REFERENCED) == 0) {
+                    // Fails if a writer has changed the slot since, the entry
+                    // then only misses its second chance
+                    t.values.compareAndSet(slot, value, value | REFERENCED);
+                }
+                return value & ~REFERENCED;
+            }
+        }
+        synchronized (this) {
+            Table t = table;
+            int slot = t.find(key);
+            if (slot < 0) {
+                return 0;
+            }
+            long value = t.values.get(slot);
+            if ((value & REFERENCED) == 0) {
+                t.values.set(slot, value | REFERENCED);
+            }
+            return value & ~REFERENCED;
+        }
+    }
+
+    /**
+     * @param key
+     *            A key given by {@link #keyOf(String)}.
+     * @return The packed location of the EXIF thumbnail of the picture, see
+     *         {@link #packThumbnail(ImageInfo)}, 0 if it is unknown.
+     */
+    long getThumbnail(long key) {
+        int stamp = sequence;
+        if ((stamp & 1) == 0) {
+            Table t = table;
+            int slot = t.find(key);
+            long thumbnail = slot < 0 ? 0 : t.thumbnails.get(slot);
+            if (sequence == stamp) {
+                return thumbnail;
+            }
+        }
+        synchronized (this) {
+            Table t = table;
+            int slot = t.find(key);
+            return slot < 0 ? 0 : t.thumbnails.get(slot);
+        }
+    }
+
+    /**
+     * Index the properties of a picture, evicting another one if the index is
+     * full.
+     *
+     * @param key
+     *            A key given by {@link #keyOf(String)}.
+     * @param value
+     *            The packed properties, see
+     *            {@link #pack(int, int, int, ImageInfo.Format)}.
+     * @param thumbnail
+     *            The packed location of the EXIF thumbnail, see
+     *            {@link #packThumbnail(ImageInfo)}, 0 if it is unknown.
+     */
+    synchronized void put(long key, long value, long thumbnail) {
+        sequence++;
+        try {
+            Table t = table;
+            int slot = t.find(key);
+            if (slot >= 0) {
+                t.values.set(slot, value);
+                t.thumbnails.set(slot, thumbnail);
+                return;
+            }
+            if (size >= maxEntries) {
+                evict(t);
+            } else if ((size + 1) * 4 > t.keys.length() * 3 && t.keys.length() < maxCapacity) {
+                t = resize(t, t.keys.length() * 2);
+            }
+            insert(t, key, value, thumbnail);
+            size++;
+        } finally {
+            sequence++;
+        }
+    }
+
+    /**
+     * @return The number of indexed pictures.
+     */
+    int size() {
+        return size;
+    }
+
+    synchronized void clear() {
+        sequence++;
+        table = new Table(INITIAL_CAPACITY);
+        size = 0;
+        clockHand = 0;
+        sequence++;
+    }
+
+    private static void insert(Table t, long key, long value, long thumbnail) {
+        int slot = t.slotOf(key);
+        while (t.keys.get(slot) != EMPTY) {
+            slot = (slot + 1) & t.mask;
+        }
+        t.values.set(slot, value);
+        t.thumbnails.set(slot, thumbnail);
+        t.keys.set(slot, key);
+    }
+
+    private Table resize(Table old, int capacity) {
+        Table t = new Table(capacity);
+        for (int i = 0; i <= old.mask; i++) {
+            long key = old.keys.get(i);
+            if (key != EMPTY) {
+                insert(t, key, old.values.get(i), old.thumbnails.get(i));
+            }
+        }
+        table = t;
+        clockHand = 0;
+        return t;
+    }
+
+    /**
+     * Remove the first entry not referenced since the last pass of the clock
+     * hand.
+     */
+    private void evict(Table t) {
+        while (true) {
+            int slot = clockHand;
+            clockHand = (clockHand + 1) & t.mask;
+            if (t.keys.get(slot) == EMPTY) {
+                continue;
+            }
+            long value = t.values.get(slot);
+            if ((value & REFERENCED) != 0) {
+                t.values.set(slot, value & ~REFERENCED);
+                continue;
+            }
+            remove(t, slot);
+            size--;
+            return;
+        }
+    }
+
+    /**
+     * Empty a slot, moving back the next entries of the probe sequence so
+     * that no lookup stops early on the emptied slot.
+     */
+    private static void remove(Table t, int slot) {
+        t.keys.set(slot, EMPTY);
+        int next = slot;
+        while (true) {
+            next = (next + 1) & t.mask;
+            long key = t.keys.get(next);
+            if (key == EMPTY) {
+                return;
+            }
+            int home = t.slotOf(key);
+            // The entry can stay if its home slot is cyclically in
+            // (slot, next]
+            boolean stays = slot <= next ? (slot < home && home <= next) : (slot < home || home <= next);
+            if (!stays) {
+                t.values.set(slot, t.values.get(next));
+                t.thumbnails.set(slot, t.thumbnails.get(next));
+                t.keys.set(slot, key);
+                t.keys.set(next, EMPTY);
+                slot = next;
+            }
+        }
+    }
+}
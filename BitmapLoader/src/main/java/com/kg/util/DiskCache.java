@@ -0,0 +1,374 @@
+package com.kg.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A directory of encoded load results, bounded by their total size in bytes
+ * and evicted in least recently used order.
+ * <p>
+ * Each entry is a file named after a 64 bits hash of its key, which has a
+ * negligible collision probability. The LRU order is kept in an append-only
+ * journal: a line per insertion, read and removal, replayed and rewritten
+ * when the cache is opened, and compacted when most of its lines are
+ * obsolete. Insertions and removals are flushed to the journal right away,
+ * reads are buffered until the next flush: a crash only loses some of the
+ * LRU order. Entries are written to a temporary file which is then renamed,
+ * without waiting for the data to reach the disk: entries missing from the
+ * journal or whose file does not match the journaled size are deleted when
+ * the cache is opened. This class does not depend on the Android framework.
+ * </p>
+ */
+class DiskCache {
+    private static final String JOURNAL_FILE = "journal";
+    private static final String JOURNAL_TMP_FILE = "journal.tmp";
+    private static final String MAGIC = "bitmaploader.DiskCache";
+    private static final String VERSION = "1";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String PUT = "PUT";
+    private static final String READ = "READ";
+    private static final String REMOVE = "REMOVE";
+    /** The journal is compacted past this number of obsolete lines. */
+    private static final int MIN_OBSOLETE_LINES = 2000;
+
+    private final File directory;
+    private final long maxBytes;
+    /** File names to entries, least recently used first. */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final AtomicInteger tmpCount = new AtomicInteger();
+    private long size = 0;
+    private int obsoleteLines = 0;
+    private Writer journal;
+
+    /**
+     * An entry of the cache. Each insertion creates a new Entry, even for a
+     * key already cached.
+     */
+    final class Entry {
+        final String name;
+        final long length;
+        /** Set when the entry is replaced or removed, guarded by the cache. */
+        private boolean removed = false;
+
+        Entry(String name, long length) {
+            this.name = name;
+            this.length = length;
+        }
+
+        /**
+         * @return The entry file, which may be deleted at any time if the
+         *         entry is evicted or replaced.
+         */
+        File getFile() {
+            return new File(directory, name);
+        }
+    }
+
+    /**
+     * Open or create a cache, replaying its journal.
+     *
+     * @param directory
+     *            The cache directory, created if needed. It must not hold
+     *            other files.
+     * @param maxBytes
+     *            The maximum total size of the entries.
+     * @throws IOException
+     *             If the directory or the journal can't be written.
+     */
+    DiskCache(File directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        File journalFile = new File(directory, JOURNAL_FILE);
+        if (journalFile.exists() && !readJournal(journalFile)) {
+            // Unknown format, start empty
+            entries.clear();
+            size = 0;
+        }
+        deleteUnknownFiles();
+        // Rewritten rather than appended to, as its last line may have been
+        // truncated by a crash.
+        rebuildJournal();
+        trimToSize();
+    }
+
+    /**
+     * Find an entry, making it the most recently used.
+     *
+     * @param key
+     *            The entry key.
+     * @return The entry, or null if the key is not cached.
+     * @throws IOException
+     *             If the journal can't be written.
+     */
+    synchronized Entry get(String key) throws IOException {
+        Entry entry = entries.get(fileName(key));
+        if (entry == null) {
+            return null;
+        }
+        appendJournal(READ, entry.name, -1);
+        obsoleteLines++;
+        compactIfNeeded();
+        return entry;
+    }
+
+    /**
+     * Store an entry, replacing the one with the same key, then evict the
+     * least recently used entries beyond the size limit. The data is written
+     * before the cache lock is taken, so concurrent insertions don't wait for
+     * each other.
+     *
+     * @param key
+     *            The entry key.
+     * @param data
+     *            The entry content.
+     * @throws IOException
+     *             If the entry or the journal can't be written.
+     */
+    void put(String key, byte[] data) throws IOException {
+        if (data.length > maxBytes) {
+            return;
+        }
+        String name = fileName(key);
+        File tmpFile = new File(directory, name + "." + tmpCount.incrementAndGet() + TMP_SUFFIX);
+        FileOutputStream output = new FileOutputStream(tmpFile);
+        try {
+            output.write(data);
+        } catch (IOException e) {
+            output.close();
+            tmpFile.delete();
+            throw e;
+        }
+        output.close();
+        synchronized (this) {
+            if (!tmpFile.renameTo(new File(directory, name))) {
+                tmpFile.delete();
+                throw new IOException("Could not rename " + tmpFile);
+            }
+            Entry previous = entries.put(name, new Entry(name, data.length));
+            if (previous != null) {
+                previous.removed = true;
+                size -= previous.length;
+                obsoleteLines++;
+            }
+            size += data.length;
+            appendJournal(PUT, name, data.length);
+            trimToSize();
+        }
+    }
+
+    /**
+     * Remove an entry, for example if its content could not be decoded.
+     * Nothing is removed if the key has been stored again since the entry
+     * was found.
+     *
+     * @param entry
+     *            An entry found by {@link #get(String)}.
+     * @throws IOException
+     *             If the journal can't be written.
+     */
+    synchronized void remove(Entry entry) throws IOException {
+        if (!entry.removed) {
+            removeEntry(entry.name);
+            compactIfNeeded();
+        }
+    }
+
+    /**
+     * @return The total size of the entries, in bytes.
+     */
+    synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Close the journal. The cache can't be used anymore.
+     */
+    synchronized void close() throws IOException {
+        if (journal != null) {
+            // Flushes the buffered reads
+            journal.close();
+            journal = null;
+        }
+    }
+
+    /**
+     * @return The entry file name of a key: its 64 bits FNV-1a hash, in hex.
+     */
+    static String fileName(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        String hex = Long.toHexString(hash);
+        return "0000000000000000".substring(hex.length()) + hex;
+    }
+
+    /**
+     * Replay the journal. A line truncated by a crash ends the replay.
+     *
+     * @return false if the journal format is unknown.
+     */
+    private boolean readJournal(File journalFile) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "US-ASCII"));
+        try {
+            String header = reader.readLine();
+            if (!(MAGIC + " " + VERSION).equals(header)) {
+                return false;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ");
+                if (parts.length == 3 && PUT.equals(parts[0])) {
+                    long length;
+                    try {
+                        length = Long.parseLong(parts[2]);
+                    } catch (NumberFormatException e) {
+                        break;
+                    }
+                    Entry previous = entries.put(parts[1], new Entry(parts[1], length));
+                    if (previous != null) {
+                        size -= previous.length;
+                        obsoleteLines++;
+                    }
+                    size += length;
+                } else if (parts.length == 2 && READ.equals(parts[0])) {
+                    entries.get(parts[1]);
+                } else if (parts.length == 2 && REMOVE.equals(parts[0])) {
+                    Entry previous = entries.remove(parts[1]);
+                    if (previous != null) {
+                        size -= previous.length;
+                    }
+                } else {
+                    break;
+                }
+            }
+            return true;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Delete the temporary files left by a crash, the files missing from the
+     * journal, and forget the entries whose file is missing or incomplete.
+     */
+    private void deleteUnknownFiles() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.getFile().length() != entry.length) {
+                entry.getFile().delete();
+                size -= entry.length;
+                iterator.remove();
+            }
+        }
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.equals(JOURNAL_FILE) && !entries.containsKey(name)) {
+                file.delete();
+            }
+        }
+    }
+
+    private Writer openJournal(File journalFile) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), "US-ASCII"));
+    }
+
+    /**
+     * Append a line to the journal. Insertions and removals are flushed right
+     * away, with the reads buffered before them, so that the entries survive
+     * a crash of the process.
+     *
+     * @param length
+     *            The entry size for insertions, ignored otherwise.
+     */
+    private void appendJournal(String operation, String name, long length) throws IOException {
+        if (journal == null) {
+            throw new IOException("The cache is closed");
+        }
+        journal.write(operation);
+        journal.write(' ');
+        journal.write(name);
+        if (PUT.equals(operation)) {
+            journal.write(' ');
+            journal.write(Long.toString(length));
+        }
+        journal.write('\n');
+        if (!READ.equals(operation)) {
+            journal.flush();
+        }
+    }
+
+    /**
+     * Write a journal holding only the current entries, in LRU order, and
+     * atomically replace the previous one.
+     */
+    private void rebuildJournal() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+        File tmpFile = new File(directory, JOURNAL_TMP_FILE);
+        FileOutputStream output = new FileOutputStream(tmpFile);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(output, "US-ASCII"));
+        try {
+            writer.write(MAGIC + " " + VERSION + "\n");
+            for (Entry entry : entries.values()) {
+                writer.write(PUT + " " + entry.name + " " + entry.length + "\n");
+            }
+            writer.flush();
+            output.getFD().sync();
+        } finally {
+            writer.close();
+        }
+        File journalFile = new File(directory, JOURNAL_FILE);
+        if (!tmpFile.renameTo(journalFile)) {
+            throw new IOException("Could not rename " + tmpFile);
+        }
+        obsoleteLines = 0;
+        journal = openJournal(journalFile);
+    }
+
+    private void compactIfNeeded() throws IOException {
+        if (obsoleteLines >= MIN_OBSOLETE_LINES && obsoleteLines >= entries.size()) {
+            rebuildJournal();
+        }
+    }
+
+    private void removeEntry(String name) throws IOException {
+        Entry entry = entries.remove(name);
+        entry.removed = true;
+        entry.getFile().delete();
+        size -= entry.length;
+        appendJournal(REMOVE, name, -1);
+        // The insertion line and this one
+        obsoleteLines += 2;
+    }
+
+    private void trimToSize() throws IOException {
+        while (size > maxBytes && !entries.isEmpty()) {
+            removeEntry(entries.keySet().iterator().next());
+        }
+        compactIfNeeded();
+    }
+}
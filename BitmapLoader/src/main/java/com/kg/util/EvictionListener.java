@@ -0,0 +1,23 @@
+package com.kg.util;
+
+/**
+ * Notified when a {@link MemoryCache} drops a value, because it has been
+ * evicted or replaced by another value for the same key.
+ *
+ * @param <K>
+ *            The type of the keys.
+ * @param <V>
+ *            The type of the cached values.
+ */
+public interface EvictionListener<K, V> {
+    /**
+     * Called after the value has left the cache, without holding the cache
+     * lock.
+     *
+     * @param key
+     *            The key of the dropped value.
+     * @param value
+     *            The dropped value, never null.
+     */
+    void onEvicted(K key, V value);
+}
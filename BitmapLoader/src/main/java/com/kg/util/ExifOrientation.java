@@ -0,0 +1,71 @@
+package com.kg.util;
+
+/**
+ * EXIF orientation values, telling how a stored picture has to be transformed
+ * to be displayed upright. This class does not depend on the Android
+ * framework.
+ */
+public class ExifOrientation {
+    /** Displayed as stored. */
+    public static final int NORMAL = 1;
+    /** Mirrored horizontally. */
+    public static final int FLIP_HORIZONTAL = 2;
+    /** Rotated by 180°. */
+    public static final int ROTATE_180 = 3;
+    /** Mirrored vertically. */
+    public static final int FLIP_VERTICAL = 4;
+    /** Mirrored along the top-left to bottom-right diagonal. */
+    public static final int TRANSPOSE = 5;
+    /** Rotated by 90° clockwise. */
+    public static final int ROTATE_90 = 6;
+    /** Mirrored along the top-right to bottom-left diagonal. */
+    public static final int TRANSVERSE = 7;
+    /** Rotated by 270° clockwise. */
+    public static final int ROTATE_270 = 8;
+
+    private ExifOrientation() {
+    }
+
+    /**
+     * @param orientation
+     *            An EXIF orientation.
+     * @return true if the displayed width is the stored height.
+     */
+    public static boolean isTransposed(int orientation) {
+        return orientation >= TRANSPOSE && orientation <= ROTATE_270;
+    }
+
+    /**
+     * Gives the affine transform from stored to displayed pixel coordinates:
+     * x' = a * x + b * y + c, y' = d * x + e * y + f.
+     *
+     * @param orientation
+     *            An EXIF orientation, unknown values are considered
+     *            {@link #NORMAL}.
+     * @param width
+     *            The stored picture width.
+     * @param height
+     *            The stored picture height.
+     * @return The coefficients { a, b, c, d, e, f }.
+     */
+    public static float[] toAffine(int orientation, int width, int height) {
+        switch (orientation) {
+        case FLIP_HORIZONTAL:
+            return new float[] { -1, 0, width, 0, 1, 0 };
+        case ROTATE_180:
+            return new float[] { -1, 0, width, 0, -1, height };
+        case FLIP_VERTICAL:
+            return new float[] { 1, 0, 0, 0, -1, height };
+        case TRANSPOSE:
+            return new float[] { 0, 1, 0, 1, 0, 0 };
+        case ROTATE_90:
+            return new float[] { 0, -1, height, 1, 0, 0 };
+        case TRANSVERSE:
+            return new float[] { 0, -1, height, -1, 0, width };
+        case ROTATE_270:
+            return new float[] { 0, 1, 0, -1, 0, width };
+        default:
+            return new float[] { 1, 0, 0, 0, 1, 0 };
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.kg.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/**
+ * Reads the EXIF data found in the APP1 segment of a JPEG picture. Malformed
+ * data is ignored. This class does not depend on the Android framework.
+ */
+class ExifParser {
+    private static final int TIFF_LITTLE_ENDIAN = 0x4949;
+    private static final int TIFF_BIG_ENDIAN = 0x4d4d;
+
+    private static final int TAG_COMPRESSION = 0x0103;
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT = 0x0201;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = 0x0202;
+    /** Compression value of JPEG thumbnails. */
+    private static final int COMPRESSION_JPEG = 6;
+
+    private final byte[] data;
+    private final int tiffStart;
+    private final int end;
+    /** The position of data from the beginning of the picture. */
+    private final int dataOffset;
+    /** Whether the thumbnail data is copied, or only located. */
+    private final boolean copyThumbnail;
+    private boolean littleEndian;
+
+    private ExifParser(byte[] data, int tiffStart, int end, int dataOffset, boolean copyThumbnail) {
+        this.data = data;
+        this.tiffStart = tiffStart;
+        this.end = end;
+        this.dataOffset = dataOffset;
+        this.copyThumbnail = copyThumbnail;
+    }
+
+    /**
+     * Reads the EXIF properties from an APP1 segment into the picture info.
+     *
+     * @param segment
+     *            The APP1 segment data, after its length.
+     * @param segmentOffset
+     *            The position of the segment data from the beginning of the
+     *            picture.
+     * @param readThumbnail
+     *            Whether the embedded thumbnail data should be copied. Its
+     *            size and location are given anyway.
+     * @param info
+     *            Receives the orientation and the embedded thumbnail, see
+     *            {@link ImageInfo#orientation} and
+     *            {@link ImageInfo#exifThumbnail}.
+     * @return true if the segment contains EXIF data.
+     */
+    static boolean parse(byte[] segment, int segmentOffset, boolean readThumbnail, ImageInfo info) {
+        // "Exif\0\0" then the TIFF structure
+        if (segment.length < 14 || segment[0] != 'E' || segment[1] != 'x' || segment[2] != 'i'
+                || segment[3] != 'f' || segment[4] != 0 || segment[5] != 0) {
+            return false;
+        }
+        new ExifParser(segment, 6, segment.length, segmentOffset, readThumbnail).parse(info);
+        return true;
+    }
+
+    private void parse(ImageInfo info) {
+        int byteOrder = ((data[tiffStart] & 0xff) << 8) | (data[tiffStart + 1] & 0xff);
+        if (byteOrder == TIFF_LITTLE_ENDIAN) {
+            littleEndian = true;
+        } else if (byteOrder != TIFF_BIG_ENDIAN) {
+            return;
+        }
+        if (readUnsignedShort(2) != 42) {
+            return;
+        }
+        int ifd0 = readInt(4);
+        int ifd0Entries = readUnsignedShort(ifd0);
+        if (ifd0Entries < 0) {
+            return;
+        }
+        for (int i = 0; i < ifd0Entries; i++) {
+            int entry = ifd0 + 2 + 12 * i;
+            int tag = readUnsignedShort(entry);
+            if (tag < 0) {
+                return;
+            } else if (tag == TAG_ORIENTATION) {
+                int orientation = readUnsignedShort(entry + 8);
+                if (orientation >= 1 && orientation <= 8) {
+                    info.orientation = orientation;
+                }
+            }
+        }
+        // IFD1, the thumbnail IFD, follows IFD0
+        int ifd1 = readInt(ifd0 + 2 + 12 * ifd0Entries);
+        if (ifd1 > 0) {
+            readThumbnail(ifd1, info);
+        }
+    }
+
+    private void readThumbnail(int ifd, ImageInfo info) {
+        int entries = readUnsignedShort(ifd);
+        int offset = -1;
+        int length = -1;
+        int compression = COMPRESSION_JPEG;
+        for (int i = 0; i < entries; i++) {
+            int entry = ifd + 2 + 12 * i;
+            int tag = readUnsignedShort(entry);
+            if (tag < 0) {
+                return;
+            } else if (tag == TAG_JPEG_INTERCHANGE_FORMAT) {
+                offset = readInt(entry + 8);
+            } else if (tag == TAG_JPEG_INTERCHANGE_FORMAT_LENGTH) {
+                length = readInt(entry + 8);
+            } else if (tag == TAG_COMPRESSION) {
+                compression = readUnsignedShort(entry + 8);
+            }
+        }
+        if (compression != COMPRESSION_JPEG || offset <= 0 || length <= 0
+                || (long) tiffStart + offset + length > end) {
+            return;
+        }
+        try {
+            // The thumbnail header is read in place
+            ImageInfo thumbnailInfo = ImageHeaderParser.parse(new ByteArrayInputStream(data, tiffStart + offset,
+                    length), length);
+            if (thumbnailInfo != null && thumbnailInfo.format == ImageInfo.Format.JPEG) {
+                if (copyThumbnail) {
+                    info.exifThumbnail = new byte[length];
+                    System.arraycopy(data, tiffStart + offset, info.exifThumbnail, 0, length);
+                }
+                info.exifThumbnailWidth = thumbnailInfo.width;
+                info.exifThumbnailHeight = thumbnailInfo.height;
+                info.exifThumbnailOffset = dataOffset + tiffStart + offset;
+                info.exifThumbnailLength = length;
+            }
+        } catch (IOException e) {
+            // Can't happen with a byte array, the thumbnail is ignored.
+        }
+    }
+
+    /**
+     * @param offset
+     *            Offset from the TIFF header.
+     * @return The value, or -1 if out of the data.
+     */
+    private int readUnsignedShort(int offset) {
+        int pos = tiffStart + offset;
+        if (offset < 0 || pos + 2 > end) {
+            return -1;
+        }
+        int b0 = data[pos] & 0xff;
+        int b1 = data[pos + 1] & 0xff;
+        return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+    }
+
+    /**
+     * @param offset
+     *            Offset from the TIFF header.
+     * @return The value, or -1 if out of the data.
+     */
+    private int readInt(int offset) {
+        int pos = tiffStart + offset;
+        if (offset < 0 || pos + 4 > end) {
+            return -1;
+        }
+        int high = readUnsignedShort(offset);
+        int low = readUnsignedShort(offset + 2);
+        return littleEndian ? (low << 16) | high : (high << 16) | low;
+    }
+}
@@ -19,10 +19,32 @@ class FirstPassResult {
      * full picture.
      */
     public Options options = new Options();
+    /** The picture format read from its header, null if unknown. */
+    public ImageInfo.Format format = null;
+    /** The EXIF orientation of the picture, stored in the dimension cache. */
+    public int orientation = ExifOrientation.NORMAL;
+    /** The sizing computed by the {@link ScalePlanner}. */
+    public ScalePlan plan = null;
+    /**
+     * The EXIF thumbnail to decode instead of the picture, null if the
+     * picture has to be decoded.
+     */
+    public byte[] exifThumbnail = null;
+    /**
+     * The location of the EXIF thumbnail packed by
+     * {@link DimensionIndex#packThumbnail(ImageInfo)}, stored in the dimension
+     * cache. 0 if it is unknown.
+     */
+    public long thumbnail = 0;
+    /**
+     * Whether the decoded picture has an alpha channel. True until the
+     * picture is decoded.
+     */
+    public boolean sourceHasAlpha = true;
 
     @Override
     public String toString() {
         return "{finalWidth=" + finalWidth + ", finalHeight=" + finalHeight
-                + ", options={inSampleSize=" + options.inSampleSize + "}}";
+                + ", options={inSampleSize=" + options.inSampleSize + "}, plan=" + plan + "}";
     }
 }
\ No newline at end of file
@@ -0,0 +1,117 @@
+package com.kg.util;
+
+/**
+ * Estimates how often keys have been accessed recently, in a fixed amount of
+ * memory. This is a count-min sketch: a key is counted in one counter of each
+ * of the 4 rows of a table, and its estimated frequency is the smallest of
+ * these counters, as other keys sharing a counter can only increase it.
+ * <p>
+ * Counters are updated conservatively: an access only increments the
+ * counters of the key which hold its current minimum, which limits the
+ * overestimation caused by collisions. They saturate at 15, the admission
+ * policy only needs to tell rare keys from frequent ones. Once the number of
+ * counted accesses reaches 10 times the width of the rows, all the counters
+ * are halved so that old accesses weight less than recent ones.
+ * </p>
+ * <p>
+ * Each counter is a byte, so the sketch uses 4 bytes per expected entry. This
+ * class is not thread safe and does not depend on the Android framework.
+ * </p>
+ */
+class FrequencySketch {
+    private static final int ROWS = 4;
+    private static final int MAX_FREQUENCY = 15;
+
+    /** The rows of counters, one after the other. */
+    private final byte[] counters;
+    private final int rowWidth;
+    /** Number of counted accesses after which counters are halved. */
+    private final int agingPeriod;
+    /** Number of counted accesses since the last halving, halved with them. */
+    private int accesses = 0;
+    private final int[] indexes = new int[ROWS];
+
+    /**
+     * @param expectedEntries
+     *            The number of entries the cache is expected to hold.
+     */
+    FrequencySketch(int expectedEntries) {
+        int width = 16;
+        while (width < expectedEntries && width < (1 << 28)) {
+            width <<= 1;
+        }
+        rowWidth = width;
+        counters = new byte[ROWS * width];
+        agingPeriod = 10 * width;
+    }
+
+    /**
+     * @param key
+     *            A key.
+     * @return The estimated number of recent accesses to this key, from 0 to
+     *         15.
+     */
+    int frequency(Object key) {
+        computeIndexes(key);
+        return minimum();
+    }
+
+    /**
+     * Count an access to a key.
+     *
+     * @param key
+     *            The accessed key.
+     */
+    void increment(Object key) {
+        computeIndexes(key);
+        int minimum = minimum();
+        if (minimum == MAX_FREQUENCY) {
+            return;
+        }
+        for (int row = 0; row < ROWS; row++) {
+            if (counters[indexes[row]] == minimum) {
+                counters[indexes[row]]++;
+            }
+        }
+        if (++accesses >= agingPeriod) {
+            age();
+        }
+    }
+
+    private int minimum() {
+        int minimum = MAX_FREQUENCY;
+        for (int row = 0; row < ROWS; row++) {
+            minimum = Math.min(minimum, counters[indexes[row]]);
+        }
+        return minimum;
+    }
+
+    /**
+     * Halve all the counters.
+     */
+    private void age() {
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] >>= 1;
+        }
+        accesses >>= 1;
+    }
+
+    /**
+     * Find the counter of the key in each row. The rows use different
+     * combinations of the two halves of a 64 bits hash of the key, which is
+     * as good as independent hash functions for this purpose.
+     */
+    private void computeIndexes(Object key) {
+        long hash = key.hashCode() * 0x9e3779b97f4a7c15L;
+        hash ^= hash >>> 31;
+        hash *= 0xbf58476d1ce4e5b9L;
+        hash ^= hash >>> 29;
+        int low = (int) hash;
+        // Odd, so that the counters of a key are at different positions in
+        // each row
+        int high = (int) (hash >>> 32) | 1;
+        for (int row = 0; row < ROWS; row++) {
+            indexes[row] = row * rowWidth + ((low + row * high) & (rowWidth - 1));
+        }
+    }
+}
@@ -0,0 +1,430 @@
+package com.kg.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.kg.util.ImageInfo.Format;
+
+/**
+ * Reads picture dimensions from JPEG, PNG, GIF, BMP and WebP headers. Only the
+ * first bytes of the stream are read, no pixel is decoded and no native codec
+ * is involved. This class does not depend on the Android framework.
+ */
+public class ImageHeaderParser {
+
+    /** Default maximum number of bytes read to find the picture dimensions. */
+    public static final int DEFAULT_MAX_HEADER_BYTES = 64 * 1024;
+
+    private static final byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+
+    private static final int PNG_IHDR = 0x49484452;
+    private static final int PNG_TRNS = 0x74524e53;
+    private static final int PNG_IDAT = 0x49444154;
+
+    private static final int WEBP = 0x57454250;
+    private static final int WEBP_VP8 = 0x56503820;
+    private static final int WEBP_VP8L = 0x5650384c;
+    private static final int WEBP_VP8X = 0x56503858;
+
+    /**
+     * Reads the picture properties with the default header size limit.
+     *
+     * @param input
+     *            A stream positioned at the beginning of the picture.
+     * @return The picture properties, or null if the format is not recognized
+     *         or the dimensions were not found in the first
+     *         {@link #DEFAULT_MAX_HEADER_BYTES} bytes.
+     * @throws IOException
+     */
+    public static ImageInfo parse(InputStream input) throws IOException {
+        return parse(input, DEFAULT_MAX_HEADER_BYTES);
+    }
+
+    /**
+     * Reads the picture properties.
+     *
+     * @param input
+     *            A stream positioned at the beginning of the picture. It is
+     *            neither closed nor reset.
+     * @param maxHeaderBytes
+     *            The maximum number of bytes to read (or skip) from the input.
+     * @return The picture properties, or null if the format is not recognized
+     *         or the dimensions were not found in the first maxHeaderBytes
+     *         bytes.
+     * @throws IOException
+     */
+    public static ImageInfo parse(InputStream input, int maxHeaderBytes) throws IOException {
+        return parse(input, maxHeaderBytes, false);
+    }
+
+    /**
+     * Reads the picture properties, including the EXIF data of JPEG pictures.
+     *
+     * @param input
+     *            A stream positioned at the beginning of the picture. It is
+     *            neither closed nor reset.
+     * @param maxHeaderBytes
+     *            The maximum number of bytes to read (or skip) from the input.
+     * @param readExif
+     *            Whether the EXIF data should be read, see
+     *            {@link ImageInfo#orientation} and
+     *            {@link ImageInfo#exifThumbnail}. It is otherwise skipped.
+     * @return The picture properties, or null if the format is not recognized
+     *         or the dimensions were not found in the first maxHeaderBytes
+     *         bytes.
+     * @throws IOException
+     */
+    public static ImageInfo parse(InputStream input, int maxHeaderBytes, boolean readExif) throws IOException {
+        return parse(input, maxHeaderBytes, readExif, readExif);
+    }
+
+    /**
+     * Reads the picture properties, including the EXIF data of JPEG pictures,
+     * with or without the EXIF thumbnail data.
+     *
+     * @param input
+     *            A stream positioned at the beginning of the picture. It is
+     *            neither closed nor reset.
+     * @param maxHeaderBytes
+     *            The maximum number of bytes to read (or skip) from the input.
+     * @param readExif
+     *            Whether the EXIF data should be read, see
+     *            {@link ImageInfo#orientation}. It is otherwise skipped.
+     * @param readExifThumbnail
+     *            Whether the EXIF thumbnail data should be copied to
+     *            {@link ImageInfo#exifThumbnail}. Its size and location are
+     *            given anyway when the EXIF data is read.
+     * @return The picture properties, or null if the format is not recognized
+     *         or the dimensions were not found in the first maxHeaderBytes
+     *         bytes.
+     * @throws IOException
+     */
+    public static ImageInfo parse(InputStream input, int maxHeaderBytes, boolean readExif,
+            boolean readExifThumbnail) throws IOException {
+        HeaderReader reader = new HeaderReader(input, maxHeaderBytes);
+        try {
+            int first = reader.readUnsignedByte();
+            int second = reader.readUnsignedByte();
+            if (first == 0xff && second == 0xd8) {
+                return parseJpeg(reader, readExif, readExifThumbnail);
+            } else if (first == (PNG_SIGNATURE[0] & 0xff) && second == PNG_SIGNATURE[1]) {
+                return parsePng(reader);
+            } else if (first == 'G' && second == 'I') {
+                return parseGif(reader);
+            } else if (first == 'B' && second == 'M') {
+                return parseBmp(reader);
+            } else if (first == 'R' && second == 'I') {
+                return parseWebp(reader);
+            }
+        } catch (EOFException e) {
+            // Truncated picture or header larger than maxHeaderBytes.
+        }
+        return null;
+    }
+
+    /**
+     * Walks through JPEG segments until a Start Of Frame marker, reading the
+     * EXIF APP1 segment on the way if requested.
+     */
+    private static ImageInfo parseJpeg(HeaderReader reader, boolean readExif, boolean readExifThumbnail)
+            throws IOException {
+        ImageInfo info = new ImageInfo();
+        info.format = Format.JPEG;
+        boolean exifFound = false;
+        while (true) {
+            int marker = reader.readUnsignedByte();
+            if (marker != 0xff) {
+                // Not a marker, corrupted stream.
+                return null;
+            }
+            // Markers may be preceded by any number of fill bytes.
+            while (marker == 0xff) {
+                marker = reader.readUnsignedByte();
+            }
+            if (marker == 0x01 || (marker >= 0xd0 && marker <= 0xd7)) {
+                // Standalone markers, without length.
+                continue;
+            }
+            if (marker == 0xd9 || marker == 0xda) {
+                // End Of Image or Start Of Scan before any Start Of Frame.
+                return null;
+            }
+            int length = reader.readUnsignedShort();
+            if (length < 2) {
+                return null;
+            }
+            if (marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc) {
+                // SOFn: precision, height, width
+                reader.readUnsignedByte();
+                info.height = reader.readUnsignedShort();
+                info.width = reader.readUnsignedShort();
+                return info;
+            }
+            if (marker == 0xe1 && readExif && !exifFound) {
+                // APP1, may contain EXIF data
+                byte[] segment = new byte[length - 2];
+                int segmentOffset = (int) reader.consumed;
+                reader.readFully(segment);
+                exifFound = ExifParser.parse(segment, segmentOffset, readExifThumbnail, info);
+                continue;
+            }
+            reader.skip(length - 2);
+        }
+    }
+
+    /**
+     * Reads the IHDR chunk, then looks for a tRNS chunk before the first IDAT
+     * chunk to find out if the picture has transparency.
+     */
+    private static ImageInfo parsePng(HeaderReader reader) throws IOException {
+        for (int i = 2; i < PNG_SIGNATURE.length; i++) {
+            if (reader.readUnsignedByte() != (PNG_SIGNATURE[i] & 0xff)) {
+                return null;
+            }
+        }
+        int length = reader.readInt();
+        if (reader.readInt() != PNG_IHDR || length < 13) {
+            return null;
+        }
+        ImageInfo info = new ImageInfo();
+        info.format = Format.PNG;
+        info.width = reader.readInt();
+        info.height = reader.readInt();
+        reader.readUnsignedByte(); // bit depth
+        int colorType = reader.readUnsignedByte();
+        // Color types 4 (grayscale + alpha) and 6 (RGBA) have an alpha channel
+        info.hasAlpha = (colorType & 4) != 0;
+        reader.skip(length - 10 + 4); // remaining IHDR data + CRC
+
+        try {
+            while (!info.hasAlpha) {
+                length = reader.readInt();
+                int type = reader.readInt();
+                if (length < 0) {
+                    break;
+                } else if (type == PNG_TRNS) {
+                    info.hasAlpha = true;
+                } else if (type == PNG_IDAT) {
+                    break;
+                } else {
+                    reader.skip(length + 4L);
+                }
+            }
+        } catch (EOFException e) {
+            // Dimensions are known, transparency is only a hint.
+        }
+        return info;
+    }
+
+    /**
+     * Reads the logical screen descriptor, then the extension blocks preceding
+     * the first image to find a transparent color.
+     */
+    private static ImageInfo parseGif(HeaderReader reader) throws IOException {
+        byte[] signature = new byte[4];
+        reader.readFully(signature);
+        if (signature[0] != 'F' || signature[1] != '8' || (signature[2] != '7' && signature[2] != '9')
+                || signature[3] != 'a') {
+            return null;
+        }
+        ImageInfo info = new ImageInfo();
+        info.format = Format.GIF;
+        info.width = reader.readUnsignedShortLE();
+        info.height = reader.readUnsignedShortLE();
+        int flags = reader.readUnsignedByte();
+        reader.skip(2); // background color index, pixel aspect ratio
+        if ((flags & 0x80) != 0) {
+            // Global color table
+            reader.skip(3 * (1 << ((flags & 0x07) + 1)));
+        }
+
+        try {
+            while (true) {
+                int block = reader.readUnsignedByte();
+                if (block != 0x21) {
+                    // Image descriptor or trailer
+                    break;
+                }
+                int label = reader.readUnsignedByte();
+                int size = reader.readUnsignedByte();
+                if (label == 0xf9 && size >= 4) {
+                    // Graphic control extension
+                    info.hasAlpha = (reader.readUnsignedByte() & 0x01) != 0;
+                    reader.skip(size - 1);
+                    break;
+                }
+                // Skip the extension sub-blocks
+                while (size > 0) {
+                    reader.skip(size);
+                    size = reader.readUnsignedByte();
+                }
+            }
+        } catch (EOFException e) {
+            // Dimensions are known, transparency is only a hint.
+        }
+        return info;
+    }
+
+    /**
+     * Reads the BMP info header.
+     */
+    private static ImageInfo parseBmp(HeaderReader reader) throws IOException {
+        reader.skip(12); // file size, reserved, pixels offset
+        int headerSize = reader.readIntLE();
+        ImageInfo info = new ImageInfo();
+        info.format = Format.BMP;
+        int bitCount;
+        if (headerSize == 12) {
+            // OS/2 BITMAPCOREHEADER
+            info.width = reader.readUnsignedShortLE();
+            info.height = reader.readUnsignedShortLE();
+            reader.skip(2); // planes
+            bitCount = reader.readUnsignedShortLE();
+        } else if (headerSize >= 40) {
+            info.width = Math.abs(reader.readIntLE());
+            // Negative height means top-down rows
+            info.height = Math.abs(reader.readIntLE());
+            reader.skip(2); // planes
+            bitCount = reader.readUnsignedShortLE();
+            if (bitCount == 32 && headerSize >= 56) {
+                // compression, image size, resolution, colors, RGB masks
+                reader.skip(36);
+                info.hasAlpha = reader.readIntLE() != 0;
+            }
+        } else {
+            return null;
+        }
+        if (info.width == 0 || info.height == 0 || bitCount == 0) {
+            return null;
+        }
+        return info;
+    }
+
+    /**
+     * Reads the first chunk of a WebP RIFF container.
+     */
+    private static ImageInfo parseWebp(HeaderReader reader) throws IOException {
+        if (reader.readUnsignedByte() != 'F' || reader.readUnsignedByte() != 'F') {
+            return null;
+        }
+        reader.readIntLE(); // RIFF size
+        if (reader.readInt() != WEBP) {
+            return null;
+        }
+        int chunk = reader.readInt();
+        reader.readIntLE(); // chunk size
+        ImageInfo info = new ImageInfo();
+        info.format = Format.WEBP;
+        if (chunk == WEBP_VP8) {
+            // Lossy: frame tag, start code, then 14 bits dimensions
+            reader.skip(3);
+            if (reader.readUnsignedByte() != 0x9d || reader.readUnsignedByte() != 0x01
+                    || reader.readUnsignedByte() != 0x2a) {
+                return null;
+            }
+            info.width = reader.readUnsignedShortLE() & 0x3fff;
+            info.height = reader.readUnsignedShortLE() & 0x3fff;
+        } else if (chunk == WEBP_VP8L) {
+            // Lossless: signature, then 14 bits dimensions minus one
+            if (reader.readUnsignedByte() != 0x2f) {
+                return null;
+            }
+            int bits = reader.readIntLE();
+            info.width = (bits & 0x3fff) + 1;
+            info.height = ((bits >> 14) & 0x3fff) + 1;
+            info.hasAlpha = ((bits >> 28) & 0x01) != 0;
+        } else if (chunk == WEBP_VP8X) {
+            // Extended: flags, then 24 bits canvas dimensions minus one
+            int flags = reader.readUnsignedByte();
+            reader.skip(3);
+            info.hasAlpha = (flags & 0x10) != 0;
+            info.width = reader.readUnsignedInt24LE() + 1;
+            info.height = reader.readUnsignedInt24LE() + 1;
+        } else {
+            return null;
+        }
+        return info;
+    }
+
+    /**
+     * Reads big and little endian values from a stream, counting bytes to
+     * enforce the header size limit.
+     */
+    private static class HeaderReader {
+        private final InputStream in;
+        private final long limit;
+        private long consumed = 0;
+
+        HeaderReader(InputStream in, int limit) {
+            this.in = in;
+            this.limit = limit;
+        }
+
+        int readUnsignedByte() throws IOException {
+            if (consumed >= limit) {
+                throw new EOFException();
+            }
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            consumed++;
+            return b;
+        }
+
+        void readFully(byte[] b) throws IOException {
+            if (consumed + b.length > limit) {
+                throw new EOFException();
+            }
+            int read = 0;
+            while (read < b.length) {
+                int count = in.read(b, read, b.length - read);
+                if (count < 0) {
+                    throw new EOFException();
+                }
+                read += count;
+            }
+            consumed += b.length;
+        }
+
+        void skip(long n) throws IOException {
+            if (consumed + n > limit) {
+                throw new EOFException();
+            }
+            long remaining = n;
+            while (remaining > 0) {
+                long skipped = in.skip(remaining);
+                if (skipped <= 0) {
+                    // skip() may not be able to go further, read instead.
+                    if (in.read() < 0) {
+                        throw new EOFException();
+                    }
+                    skipped = 1;
+                }
+                remaining -= skipped;
+            }
+            consumed += n;
+        }
+
+        int readUnsignedShort() throws IOException {
+            return (readUnsignedByte() << 8) | readUnsignedByte();
+        }
+
+        int readUnsignedShortLE() throws IOException {
+            return readUnsignedByte() | (readUnsignedByte() << 8);
+        }
+
+        int readUnsignedInt24LE() throws IOException {
+            return readUnsignedByte() | (readUnsignedByte() << 8) | (readUnsignedByte() << 16);
+        }
+
+        int readInt() throws IOException {
+            return (readUnsignedShort() << 16) | readUnsignedShort();
+        }
+
+        int readIntLE() throws IOException {
+            return readUnsignedShortLE() | (readUnsignedShortLE() << 16);
+        }
+    }
+}
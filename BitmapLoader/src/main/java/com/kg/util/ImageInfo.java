@@ -0,0 +1,49 @@
+package com.kg.util;
+
+/**
+ * Picture properties read from its header by {@link ImageHeaderParser},
+ * without decoding any pixel.
+ */
+public class ImageInfo {
+    /**
+     * Picture encoding formats recognized by {@link ImageHeaderParser}.
+     */
+    public enum Format {
+        JPEG, PNG, GIF, BMP, WEBP
+    }
+
+    /** The picture width, in pixels. */
+    public int width = 0;
+    /** The picture height, in pixels. */
+    public int height = 0;
+    /** The picture encoding format. */
+    public Format format = null;
+    /** Wether the picture may contain transparent pixels. */
+    public boolean hasAlpha = false;
+    /**
+     * The EXIF orientation, from 1 to 8. 1 (the default) means that the
+     * stored picture is displayed as is, see {@link ExifOrientation}.
+     */
+    public int orientation = ExifOrientation.NORMAL;
+    /**
+     * The JPEG thumbnail embedded in the EXIF data, null if there is none or
+     * if the EXIF thumbnail data was not read.
+     */
+    public byte[] exifThumbnail = null;
+    /** The width of the EXIF thumbnail. */
+    public int exifThumbnailWidth = 0;
+    /** The height of the EXIF thumbnail. */
+    public int exifThumbnailHeight = 0;
+    /**
+     * The position of the EXIF thumbnail from the beginning of the picture,
+     * 0 if there is none or if the EXIF data was not read.
+     */
+    public int exifThumbnailOffset = 0;
+    /** The length of the EXIF thumbnail, in bytes. */
+    public int exifThumbnailLength = 0;
+
+    @Override
+    public String toString() {
+        return "{format=" + format + ", width=" + width + ", height=" + height + ", hasAlpha=" + hasAlpha + "}";
+    }
+}
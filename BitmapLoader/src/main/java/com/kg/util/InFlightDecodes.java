@@ -0,0 +1,193 @@
+package com.kg.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+
+/**
+ * Registry of the decodes currently running, so that concurrent loads of the
+ * same picture wait for a single decode instead of each decoding it. A load
+ * can join a decode of the same picture with the same color {@link Config}
+ * and a final size at least as large as its own, and derive its result from
+ * it.
+ * <p>
+ * The decoded Bitmap is shared with the waiting loads, which may even return
+ * it as is: only loads caching their result register their decode, so that
+ * the shared Bitmap is never recycled by its caller.
+ * </p>
+ */
+class InFlightDecodes {
+
+    /** Interval at which waiting loads check their own cancellation. */
+    private static final long CANCELLATION_POLL_MS = 50;
+
+    /**
+     * A running decode. The thread which registered it has to call
+     * {@link #finish(Bitmap, Throwable)} when done, other threads wait for
+     * the result with {@link #await(LoadOptions)}.
+     */
+    static class Flight {
+        final int width;
+        final int height;
+        final Config config;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private Bitmap result = null;
+        private Throwable error = null;
+
+        Flight(int width, int height, Config config) {
+            this.width = width;
+            this.height = height;
+            this.config = config;
+        }
+
+        /**
+         * Tells if this decode result is large enough to derive a picture of
+         * the given size and config.
+         */
+        boolean covers(int width, int height, Config config) {
+            // Same 1 pixel tolerance as when checking the memory cache
+            return this.config == config && this.width + 1 >= width
+                    && this.height + 1 >= height;
+        }
+
+        /**
+         * Publish the decode result to waiting threads.
+         *
+         * @param result
+         *            The decoded Bitmap, or null if the decode failed.
+         * @param error
+         *            The exception or error which made the decode fail, if
+         *            any.
+         */
+        void finish(Bitmap result, Throwable error) {
+            this.result = result;
+            this.error = error;
+            done.countDown();
+        }
+
+        /**
+         * Wait for the decode to finish.
+         *
+         * @param loadOptions
+         *            The options of the waiting load, which stops waiting if
+         *            it is cancelled.
+         * @return The decoded Bitmap, or null if it could not be decoded or if
+         *         the decode has been abandoned (see {@link #wasAbandoned()}).
+         * @throws IOException
+         *             If the decode failed with an IOException, or if the
+         *             waiting load has been cancelled or interrupted.
+         */
+        Bitmap await(LoadOptions loadOptions) throws IOException {
+            try {
+                while (!done.await(CANCELLATION_POLL_MS, TimeUnit.MILLISECONDS)) {
+                    if (loadOptions.isCancelled()) {
+                        throw new LoadCancelledException("Load cancelled while waiting for a concurrent decode");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a concurrent decode");
+            }
+            if (wasAbandoned()) {
+                return null;
+            } else if (error != null) {
+                IOException rethrown = new IOException(error.getMessage());
+                rethrown.initCause(error);
+                throw rethrown;
+            }
+            return result;
+        }
+
+        /**
+         * Tells if the decode has been abandoned because the load which
+         * started it was cancelled, or failed with a RuntimeException or an
+         * Error. Waiting loads should then start their own decode, which
+         * fails the same way if the picture can't be decoded.
+         */
+        boolean wasAbandoned() {
+            return error instanceof LoadCancelledException || (error != null && !(error instanceof IOException));
+        }
+    }
+
+    private final HashMap<String, List<Flight>> flights = new HashMap<String, List<Flight>>();
+
+    /**
+     * Join a running decode of the picture able to provide the requested
+     * size, or register a new one.
+     *
+     * @param key
+     *            The picture cache key.
+     * @param flight
+     *            A new Flight describing the decode the caller needs.
+     * @return The smallest running decode covering the requested Flight, or
+     *         the given Flight itself if none was found. In the latter case,
+     *         the caller is in charge of decoding, then calling
+     *         {@link Flight#finish(Bitmap, Throwable)} and
+     *         {@link #leave(String, Flight)}. Only loads caching their result
+     *         may register a decode.
+     */
+    synchronized Flight join(String key, Flight flight) {
+        Flight best = find(key, flight);
+        if (best != null) {
+            return best;
+        }
+        List<Flight> running = flights.get(key);
+        if (running == null) {
+            running = new ArrayList<Flight>(2);
+            flights.put(key, running);
+        }
+        running.add(flight);
+        return flight;
+    }
+
+    /**
+     * Find a running decode of the picture able to provide the requested
+     * size, without registering one.
+     *
+     * @param key
+     *            The picture cache key.
+     * @param flight
+     *            A new Flight describing the decode the caller needs.
+     * @return The smallest running decode covering the requested Flight, or
+     *         null if none was found.
+     */
+    synchronized Flight find(String key, Flight flight) {
+        List<Flight> running = flights.get(key);
+        if (running == null) {
+            return null;
+        }
+        Flight best = null;
+        for (Flight candidate : running) {
+            if (candidate.covers(flight.width, flight.height, flight.config)
+                    && (best == null || candidate.width * candidate.height < best.width * best.height)) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Unregister a decode, new loads will not join it anymore.
+     *
+     * @param key
+     *            The picture cache key.
+     * @param flight
+     *            The Flight returned by {@link #join(String, Flight)}.
+     */
+    synchronized void leave(String key, Flight flight) {
+        List<Flight> running = flights.get(key);
+        if (running != null) {
+            running.remove(flight);
+            if (running.isEmpty()) {
+                flights.remove(key);
+            }
+        }
+    }
+}
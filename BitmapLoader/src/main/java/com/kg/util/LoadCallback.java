@@ -0,0 +1,33 @@
+package com.kg.util;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+
+/**
+ * Receives the result of an asynchronous load started with
+ * {@link BitmapLoader#loadAsync(android.content.Context, Uri, Integer, Integer, Bitmap.Config, boolean, LoadCallback, java.util.concurrent.Executor)}
+ * . Methods are called on the executor thread which performed the load, not on
+ * the UI thread. They are not called if the load has been cancelled.
+ */
+public interface LoadCallback {
+    /**
+     * The picture has been loaded.
+     *
+     * @param uri
+     *            The Uri of the picture.
+     * @param bitmap
+     *            The loaded Bitmap, or null if the picture could not be
+     *            decoded.
+     */
+    void onBitmapLoaded(Uri uri, Bitmap bitmap);
+
+    /**
+     * The picture could not be loaded.
+     *
+     * @param uri
+     *            The Uri of the picture.
+     * @param error
+     *            The cause of the failure, usually an IOException.
+     */
+    void onLoadFailed(Uri uri, Throwable error);
+}
@@ -0,0 +1,15 @@
+package com.kg.util;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a load is aborted because its {@link CancellationToken} has
+ * been cancelled or its deadline has passed.
+ */
+public class LoadCancelledException extends IOException {
+    private static final long serialVersionUID = 4871543651093487214L;
+
+    public LoadCancelledException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,140 @@
+package com.kg.util;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.os.SystemClock;
+
+/**
+ * Parameters of a load, for
+ * {@link BitmapLoader#load(android.content.Context, android.net.Uri, LoadOptions)}
+ * and its asynchronous counterparts.
+ */
+public class LoadOptions {
+    /**
+     * The maximum width of the result bitmap. The original bitmap will be
+     * scaled down with aspect ratio preserved to fit both width/height. If
+     * null, the default value is the device screen size.
+     */
+    public Integer width = null;
+    /**
+     * The maximum height of the result bitmap. The original bitmap will be
+     * scaled down with aspect ratio preserved to fit both width/height. If
+     * null, the default value is the device screen size.
+     */
+    public Integer height = null;
+    /**
+     * The desired result color configuration, as defined in {@link Config}. If
+     * null, will use {@link Config#RGB_565} which is enough for screen display
+     * but might reduce color depth of the original picture.
+     */
+    public Bitmap.Config colorConfig = Bitmap.Config.RGB_565;
+    /**
+     * Wether we should store the result bitmap in cache or not. If you know
+     * that the result will be a big Bitmap, you should set this parameter to
+     * false (do not cache) and take care of recycling the result Bitmap as
+     * soon as it is not necessary anymore.
+     */
+    public boolean cacheResult = true;
+    /**
+     * A token allowing to cancel the load while it is in progress. Can be
+     * null.
+     */
+    public CancellationToken cancellationToken = null;
+    /**
+     * The time, in the {@link SystemClock#uptimeMillis()} time base, after
+     * which the load is cancelled. 0 for no deadline.
+     */
+    public long deadline = 0;
+    /**
+     * Whether the decoder should output the final size directly, combining the
+     * subsampling with density scaling, instead of decoding a larger Bitmap
+     * and scaling it afterwards. This saves an allocation and a scaling pass,
+     * at the cost of the decoder scaling quality.
+     */
+    public boolean scaleWhileDecoding = false;
+    /**
+     * How the picture is sized to {@link #width} and {@link #height}.
+     */
+    public ScaleMode scaleMode = ScaleMode.FIT;
+    /**
+     * With {@link ScaleMode#FIT}, size the result for the orientation of the
+     * picture rather than the requested one, so that it does not have to be
+     * reloaded when the device rotates. It can use twice the pixel memory.
+     */
+    public boolean reserveRotation = false;
+    /**
+     * Whether a JPEG thumbnail embedded in the EXIF data may be decoded
+     * instead of the picture, when it is large enough for the requested size.
+     * Much faster for small thumbnails of camera pictures, but the embedded
+     * thumbnail quality depends on the camera.
+     */
+    public boolean allowEmbeddedThumbnail = false;
+    /**
+     * Whether the picture is rotated or mirrored as specified by its EXIF
+     * orientation, so that it is displayed upright. Sizes apply to the
+     * displayed picture.
+     */
+    public boolean applyExifOrientation = true;
+    /**
+     * How much smaller than requested a cached result may be and still be
+     * returned, as a fraction of the requested dimensions: 0.25f accepts a
+     * cached Bitmap 25% smaller. A larger result is then decoded in
+     * background and replaces the cached one. 0 to only accept cached
+     * results of the requested size, reloading the picture otherwise.
+     */
+    public float qualityTolerance = 0;
+    /**
+     * Whether the result is written to the disk cache, so that the next loads
+     * at this size read it instead of decoding the picture again, after a
+     * restart or an eviction from the memory cache. The result is copied,
+     * then encoded and written in background: set to false for pictures
+     * displayed only once, or which are already small files, like the
+     * MediaStore thumbnails. Results are read from the disk cache regardless
+     * of this option.
+     */
+    public boolean diskCacheResult = true;
+
+    public LoadOptions() {
+    }
+
+    /**
+     * @param width
+     *            See {@link #width}.
+     * @param height
+     *            See {@link #height}.
+     */
+    public LoadOptions(Integer width, Integer height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * @return A new LoadOptions with the same values.
+     */
+    LoadOptions copy() {
+        LoadOptions copy = new LoadOptions(width, height);
+        copy.colorConfig = colorConfig;
+        copy.cacheResult = cacheResult;
+        copy.cancellationToken = cancellationToken;
+        copy.deadline = deadline;
+        copy.scaleWhileDecoding = scaleWhileDecoding;
+        copy.scaleMode = scaleMode;
+        copy.reserveRotation = reserveRotation;
+        copy.allowEmbeddedThumbnail = allowEmbeddedThumbnail;
+        copy.applyExifOrientation = applyExifOrientation;
+        copy.qualityTolerance = qualityTolerance;
+        copy.diskCacheResult = diskCacheResult;
+        return copy;
+    }
+
+    /**
+     * Tells if the load has to be aborted.
+     *
+     * @return true if the cancellation token has been cancelled or the
+     *         deadline has passed.
+     */
+    public boolean isCancelled() {
+        return (cancellationToken != null && cancellationToken.isCancelled())
+                || (deadline > 0 && SystemClock.uptimeMillis() >= deadline);
+    }
+}
@@ -0,0 +1,62 @@
+package com.kg.util;
+
+/**
+ * A bounded in-memory cache. Implementations evict entries when they are full,
+ * either by number of entries or by total weight of their values.
+ *
+ * @param <K>
+ *            The type of the keys.
+ * @param <V>
+ *            The type of the cached values.
+ */
+public interface MemoryCache<K, V> {
+    /**
+     * Lookup for the specified key.
+     *
+     * @param key
+     *            is the key to lookup
+     * @return the associated object or null if it was not found.
+     */
+    V get(K key);
+
+    /**
+     * Stores into the cache the specified entry, evicting other entries if
+     * the cache is full.
+     *
+     * @param key
+     *            is the new unique key to store.
+     * @param entry
+     *            is the object to put into the cache.
+     */
+    void put(K key, V entry);
+
+    /**
+     * @return the maximum number of entries.
+     */
+    int getSize();
+
+    /**
+     * @return the number of entries currently stored into the cache.
+     */
+    int getCurrentUsage();
+
+    /**
+     * @return the maximum total weight of the values, or 0 if the cache is
+     *         bounded by number of entries.
+     */
+    long getMaxWeight();
+
+    /**
+     * @return the total weight of the values currently stored, or 0 if the
+     *         cache is bounded by number of entries.
+     */
+    long getCurrentWeight();
+
+    /**
+     * Set the listener notified of the values dropped by the cache.
+     *
+     * @param listener
+     *            The listener, or null to stop notifications.
+     */
+    void setEvictionListener(EvictionListener<K, V> listener);
+}
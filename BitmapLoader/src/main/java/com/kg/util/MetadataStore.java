@@ -0,0 +1,241 @@
+package com.kg.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A persistent copy of the {@link DimensionIndex}, so that the picture
+ * headers read before a restart don't have to be read again. The file is a
+ * fixed size hash table of fixed size records, memory mapped: lookups only
+ * touch the pages they need and each update is written in place.
+ * <p>
+ * A record holds the index key, the packed header properties, the packed
+ * location of the EXIF thumbnail, and the size and modification time of the
+ * source, so that records of modified files are ignored. A checksum guards
+ * against records torn by a crash. Lookups and insertions probe a few slots from the home slot of the
+ * key; when they are all used, the home slot is overwritten. This class does
+ * not depend on the Android framework.
+ * </p>
+ */
+class MetadataStore {
+    private static final int MAGIC = 0x424c4d44; // "BLMD"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+    /**
+     * key, value, thumbnail location, source size, source modification time,
+     * checksum.
+     */
+    private static final int RECORD_SIZE = 48;
+    /** Number of slots searched for a key. */
+    private static final int MAX_PROBES = 8;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+
+    /**
+     * Open or create a store.
+     *
+     * @param path
+     *            The store file. It is reset if its format does not match.
+     * @param capacity
+     *            The number of records, rounded up to a power of 2.
+     * @throws IOException
+     */
+    MetadataStore(File path, int capacity) throws IOException {
+        int slots = Integer.highestOneBit(Math.max(capacity, MAX_PROBES) - 1) * 2;
+        this.capacity = slots;
+        long length = HEADER_SIZE + (long) slots * RECORD_SIZE;
+        file = new RandomAccessFile(path, "rw");
+        try {
+            boolean valid = file.length() == length && file.readInt() == MAGIC && file.readInt() == VERSION
+                    && file.readInt() == slots && file.readInt() == RECORD_SIZE;
+            if (!valid) {
+                // Zero filled: all slots empty
+                file.setLength(0);
+                file.setLength(length);
+                file.seek(0);
+                file.writeInt(MAGIC);
+                file.writeInt(VERSION);
+                file.writeInt(slots);
+                file.writeInt(RECORD_SIZE);
+            }
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Read the header properties of a picture.
+     *
+     * @param key
+     *            A key given by {@link DimensionIndex#keyOf(String)}.
+     * @param size
+     *            The current size of the source in bytes, -1 if unknown.
+     * @param modified
+     *            The current modification time of the source, -1 if unknown.
+     * @return The packed properties, or 0 if the picture is not stored or if
+     *         its source stamp, size and modification time, is not the given
+     *         one.
+     */
+    synchronized long get(long key, long size, long modified) {
+        int position = findValid(key, size, modified);
+        return position < 0 ? 0 : buffer.getLong(position + 8);
+    }
+
+    /**
+     * Read the location of the EXIF thumbnail of a picture.
+     *
+     * @param key
+     *            A key given by {@link DimensionIndex#keyOf(String)}.
+     * @param size
+     *            The current size of the source in bytes, -1 if unknown.
+     * @param modified
+     *            The current modification time of the source, -1 if unknown.
+     * @return The packed location, see
+     *         {@link DimensionIndex#packThumbnail(ImageInfo)}, or 0 if it is
+     *         unknown or if the source has changed.
+     */
+    synchronized long getThumbnail(long key, long size, long modified) {
+        int position = findValid(key, size, modified);
+        return position < 0 ? 0 : buffer.getLong(position + 16);
+    }
+
+    /**
+     * Store the header properties of a picture.
+     *
+     * @param key
+     *            A key given by {@link DimensionIndex#keyOf(String)}.
+     * @param value
+     *            The packed properties, see
+     *            {@link DimensionIndex#pack(int, int, int, ImageInfo.Format)}.
+     * @param thumbnail
+     *            The packed location of the EXIF thumbnail, see
+     *            {@link DimensionIndex#packThumbnail(ImageInfo)}, 0 if it is
+     *            unknown.
+     * @param size
+     *            The size of the source in bytes, -1 if unknown.
+     * @param modified
+     *            The modification time of the source, -1 if unknown.
+     */
+    synchronized void put(long key, long value, long thumbnail, long size, long modified) {
+        int slot = find(key);
+        if (slot < 0) {
+            slot = home(key);
+            for (int i = 0; i < MAX_PROBES; i++) {
+                int candidate = (home(key) + i) & (capacity - 1);
+                if (buffer.getLong(HEADER_SIZE + candidate * RECORD_SIZE) == 0) {
+                    slot = candidate;
+                    break;
+                }
+            }
+        }
+        int position = HEADER_SIZE + slot * RECORD_SIZE;
+        buffer.putLong(position, key);
+        buffer.putLong(position + 8, value);
+        buffer.putLong(position + 16, thumbnail);
+        buffer.putLong(position + 24, size);
+        buffer.putLong(position + 32, modified);
+        buffer.putLong(position + 40, checksum(key, value, thumbnail, size, modified));
+    }
+
+    /**
+     * Replace the header properties of a stored picture, keeping the stamp of
+     * its source. Used when the properties are read again from a source which
+     * has no stamp of its own.
+     *
+     * @param key
+     *            A key given by {@link DimensionIndex#keyOf(String)}.
+     * @param value
+     *            The packed properties.
+     * @param thumbnail
+     *            The packed location of the EXIF thumbnail, 0 if it is
+     *            unknown.
+     * @return false if the picture is not stored.
+     */
+    synchronized boolean update(long key, long value, long thumbnail) {
+        int position = findValid(key, -1, -1, false);
+        if (position < 0) {
+            return false;
+        }
+        long size = buffer.getLong(position + 24);
+        long modified = buffer.getLong(position + 32);
+        buffer.putLong(position + 8, value);
+        buffer.putLong(position + 16, thumbnail);
+        buffer.putLong(position + 40, checksum(key, value, thumbnail, size, modified));
+        return true;
+    }
+
+    /**
+     * Write the pending updates to the file and close it.
+     */
+    synchronized void close() throws IOException {
+        buffer.force();
+        file.close();
+    }
+
+    /**
+     * @return The position of the record of the key, -1 if there is none, if
+     *         it is torn or if its source has changed.
+     */
+    private int findValid(long key, long size, long modified) {
+        return findValid(key, size, modified, true);
+    }
+
+    /**
+     * @param checkStamp
+     *            false to accept the record whatever its source stamp.
+     */
+    private int findValid(long key, long size, long modified, boolean checkStamp) {
+        int slot = find(key);
+        if (slot < 0) {
+            return -1;
+        }
+        int position = HEADER_SIZE + slot * RECORD_SIZE;
+        long value = buffer.getLong(position + 8);
+        long thumbnail = buffer.getLong(position + 16);
+        long storedSize = buffer.getLong(position + 24);
+        long storedModified = buffer.getLong(position + 32);
+        if (buffer.getLong(position + 40) != checksum(key, value, thumbnail, storedSize, storedModified)) {
+            return -1;
+        }
+        if (checkStamp && (size != storedSize || modified != storedModified)) {
+            return -1;
+        }
+        return position;
+    }
+
+    private int find(long key) {
+        for (int i = 0; i < MAX_PROBES; i++) {
+            int slot = (home(key) + i) & (capacity - 1);
+            long slotKey = buffer.getLong(HEADER_SIZE + slot * RECORD_SIZE);
+            if (slotKey == key) {
+                return slot;
+            } else if (slotKey == 0) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private int home(long key) {
+        long hash = key * 0x9e3779b97f4a7c15L;
+        return (int) (hash ^ hash >>> 32) & (capacity - 1);
+    }
+
+    private static long checksum(long key, long value, long thumbnail, long size, long modified) {
+        long hash = key;
+        hash = hash * 31 + value;
+        hash = hash * 31 + thumbnail;
+        hash = hash * 31 + size;
+        hash = hash * 31 + modified;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        return hash ^ hash >>> 33;
+    }
+}
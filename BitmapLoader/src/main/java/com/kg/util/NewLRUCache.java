@@ -8,8 +8,12 @@ package com.kg.util;
  * See http://creativecommons.org/licenses/by-sa/2.0/fr/deed.fr
  */
 
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -18,14 +22,55 @@ import java.util.Map;
  * SoftReference so that we can release memory when the system is overloaded. I
  * also use a special constructor from LinkedHashMap so that I can have an order
  * in this map provided by access
+ * <p>
+ * The cache can also be bounded by the total weight of its values, given by a
+ * {@link Weigher}. In that case least recently used entries are evicted as
+ * soon as the weight limit is exceeded, and values are kept strongly
+ * reachable so that eviction does not depend on the garbage collector.
+ * </p>
+ * <p>
+ * References cleared by the garbage collector are registered in a
+ * ReferenceQueue, which is drained by every operation so that dead entries
+ * don't hold slots and {@link #getCurrentUsage()} and
+ * {@link #getCurrentWeight()} only count live values.
+ * </p>
  * 
  * @author Nicolas Martignole
  * @version created Sep 16, 2008
  */
-public class NewLRUCache<K, V> {
-    private LinkedHashMap<K, SoftReference<V>> cache;
+public class NewLRUCache<K, V> implements MemoryCache<K, V> {
+    private LinkedHashMap<K, CacheEntry<K, V>> cache;
     private int cacheSize;
-    private int numberOfElements = 0;
+    /** Receives the entries whose value has been garbage collected. */
+    private final ReferenceQueue<V> clearedEntries = new ReferenceQueue<V>();
+    /** Gives the weight of values, null if weights are not tracked. */
+    private final Weigher<V> weigher;
+    /** Maximum total weight, 0 if the cache is bounded by size only. */
+    private final long maxWeight;
+    private long currentWeight = 0;
+    private volatile EvictionListener<K, V> evictionListener;
+    /** Entries dropped by the current put, notified after releasing the lock. */
+    private final List<CacheEntry<K, V>> evicted = new ArrayList<CacheEntry<K, V>>();
+
+    /**
+     * A value reference with its key and weight. When the cache is bounded by
+     * weight, the value is also pinned so that it can't be garbage collected.
+     */
+    private static class CacheEntry<K, V> extends SoftReference<V> {
+        final K key;
+        final int weight;
+        @SuppressWarnings("unused")
+        private final V pinned;
+        /** Set when the entry leaves the map, so that it is purged once. */
+        boolean removed = false;
+
+        CacheEntry(K key, V value, int weight, boolean pin, ReferenceQueue<V> queue) {
+            super(value, queue);
+            this.key = key;
+            this.weight = weight;
+            this.pinned = pin ? value : null;
+        }
+    }
 
     /**
      * Creates a cache with a fixed size of 100.
@@ -42,9 +87,46 @@ public class NewLRUCache<K, V> {
      *            is a positive integer.
      */
     public NewLRUCache(int cacheSize) {
+        this(cacheSize, null, 0);
+    }
+
+    /**
+     * Create a new LRU Cache bounded by size, which also tracks the weight of
+     * its values. Values stay softly referenced, the weight is only an
+     * estimate of the memory held by the cache, see
+     * {@link #getCurrentWeight()}.
+     * 
+     * @param cacheSize
+     *            is a positive integer.
+     * @param weigher
+     *            Gives the weight of each value.
+     */
+    public NewLRUCache(int cacheSize, Weigher<V> weigher) {
+        this(cacheSize, weigher, 0);
+    }
+
+    /**
+     * Create a new LRU Cache bounded by the total weight of its values instead
+     * of the number of entries. This is a factory method rather than a
+     * constructor so that it can't be mistaken for
+     * {@link #NewLRUCache(int, Weigher)} when given an int.
+     * 
+     * @param maxWeight
+     *            The maximum total weight of the values.
+     * @param weigher
+     *            Gives the weight of each value.
+     * @return An empty cache.
+     */
+    public static <K, V> NewLRUCache<K, V> withMaxWeight(long maxWeight, Weigher<V> weigher) {
+        return new NewLRUCache<K, V>(Integer.MAX_VALUE, weigher, maxWeight);
+    }
+
+    private NewLRUCache(int cacheSize, Weigher<V> weigher, long maxWeight) {
         this.cacheSize = (cacheSize < 1) ? 1000 : cacheSize;
-        int initialCapacity = (int) (cacheSize * 0.75);
-        cache = new LinkedHashMap<K, SoftReference<V>>(initialCapacity, 0.75f, true) {
+        this.weigher = weigher;
+        this.maxWeight = maxWeight;
+        int initialCapacity = maxWeight == 0 ? (int) (this.cacheSize * 0.75) : 16;
+        cache = new LinkedHashMap<K, CacheEntry<K, V>>(initialCapacity, 0.75f, true) {
             private static final long serialVersionUID = -5987430860097328259L;
 
             @Override
@@ -52,8 +134,13 @@ public class NewLRUCache<K, V> {
              * Returns true if the current map size is greater than NewLRUCache, which means
              * that the cache is full and we should drop the oldest entry.
              */
-            protected boolean removeEldestEntry(Map.Entry<K, SoftReference<V>> eldest) {
-                return size() > NewLRUCache.this.cacheSize;
+            protected boolean removeEldestEntry(Map.Entry<K, CacheEntry<K, V>> eldest) {
+                if (size() > NewLRUCache.this.cacheSize) {
+                    removed(eldest.getValue());
+                    evicted.add(eldest.getValue());
+                    return true;
+                }
+                return false;
             }
         };
     }
@@ -68,17 +155,42 @@ public class NewLRUCache<K, V> {
     }
 
     /**
-     * Returns the number of elements currently stored into the cache.
+     * Returns the number of live elements currently stored into the cache,
+     * after removing the entries whose value has been garbage collected.
      * 
      * @return a number of elements.
      */
-    public final int getCurrentUsage() {
-        return numberOfElements;
+    public final synchronized int getCurrentUsage() {
+        purge();
+        return cache.size();
+    }
+
+    /**
+     * Returns the maximum total weight of the values.
+     * 
+     * @return the maximum weight, or 0 if the cache is bounded by size.
+     */
+    public final long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * Returns the total weight of the live values currently stored into the
+     * cache. With a {@link BitmapWeigher}, this is the estimated number of
+     * bytes used by the cached pixels.
+     * 
+     * @return the current weight, or 0 if the cache has no Weigher.
+     */
+    public final synchronized long getCurrentWeight() {
+        purge();
+        return currentWeight;
     }
 
     /**
      * Stores into the cache the specified entry, remove the less recently used
-     * entry if the cache is full.
+     * entry if the cache is full. If the cache is bounded by weight, the less
+     * recently used entries are removed until the total weight fits the limit.
+     * A value heavier than the limit is not stored.
      * 
      * @param key
      *            is the new unique key to store.
@@ -90,12 +202,91 @@ public class NewLRUCache<K, V> {
             return;
         if (entry == null)
             return;
+        int weight = weigher == null ? 0 : weigher.weigh(entry);
+        if (weight > maxWeight && maxWeight > 0)
+            return;
+        List<CacheEntry<K, V>> dropped = null;
         synchronized (this) {
-            cache.put(key, new SoftReference<V>(entry));
-            numberOfElements++;
+            purge();
+            CacheEntry<K, V> previous = cache.put(key, new CacheEntry<K, V>(key, entry, weight, maxWeight > 0,
+                    clearedEntries));
+            currentWeight += weight;
+            if (previous != null) {
+                removed(previous);
+                if (previous.get() != entry) {
+                    evicted.add(previous);
+                }
+            }
+            if (maxWeight > 0) {
+                evictToWeight();
+            }
+            if (!evicted.isEmpty()) {
+                dropped = new ArrayList<CacheEntry<K, V>>(evicted);
+                evicted.clear();
+            }
+        }
+        EvictionListener<K, V> listener = evictionListener;
+        if (dropped != null && listener != null) {
+            for (CacheEntry<K, V> dead : dropped) {
+                // Values already collected can't be notified
+                V value = dead.get();
+                if (value != null) {
+                    listener.onEvicted(dead.key, value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the less recently used entries until the total weight fits the
+     * limit.
+     */
+    private void evictToWeight() {
+        Iterator<CacheEntry<K, V>> eldest = cache.values().iterator();
+        while (currentWeight > maxWeight && eldest.hasNext()) {
+            CacheEntry<K, V> entry = eldest.next();
+            eldest.remove();
+            removed(entry);
+            evicted.add(entry);
+        }
+    }
+
+    /**
+     * Updates the accounting of an entry which left the map.
+     */
+    private void removed(CacheEntry<K, V> entry) {
+        if (!entry.removed) {
+            entry.removed = true;
+            currentWeight -= entry.weight;
+        }
+    }
+
+    /**
+     * Removes the entries whose value has been garbage collected. Entries
+     * which already left the map (overwritten or evicted) are skipped.
+     */
+    @SuppressWarnings("unchecked")
+    private void purge() {
+        CacheEntry<K, V> entry;
+        while ((entry = (CacheEntry<K, V>) clearedEntries.poll()) != null) {
+            if (!entry.removed) {
+                cache.remove(entry.key);
+                removed(entry);
+            }
         }
     }
 
+    /**
+     * Set the listener notified of the values dropped by the cache. Values
+     * collected by the garbage collector are not notified.
+     * 
+     * @param listener
+     *            The listener, or null to stop notifications.
+     */
+    public void setEvictionListener(EvictionListener<K, V> listener) {
+        evictionListener = listener;
+    }
+
     /**
      * Lookup for the specified key, update the list of less recently used
      * items.
@@ -108,18 +299,21 @@ public class NewLRUCache<K, V> {
         if (key == null) {
             return null;
         }
-        SoftReference<V> ref;
         synchronized (this) {
-            ref = cache.get(key);
+            purge();
+            CacheEntry<K, V> ref = cache.get(key);
             if (ref == null) {
-                // The value has been garbage collected so we must delete the
-                // key
-                cache.remove(key);
-                numberOfElements--;
                 return null;
             }
+            V value = ref.get();
+            if (value == null) {
+                // The value has been garbage collected but the reference is
+                // not enqueued yet, we must delete the key
+                cache.remove(key);
+                removed(ref);
+            }
+            return value;
         }
-        return ref.get();
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,27 @@
+package com.kg.util;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+
+/**
+ * A {@link LoadCallback} which also receives a coarse version of the picture
+ * as soon as it is available, before the final result. Giving one to
+ * {@link BitmapLoader#loadAsync(android.content.Context, Uri, LoadOptions, LoadCallback, java.util.concurrent.Executor)}
+ * enables the progressive load, see
+ * {@link BitmapLoader#loadPreview(android.content.Context, Uri, LoadOptions)}.
+ */
+public interface ProgressiveLoadCallback extends LoadCallback {
+    /**
+     * A coarse version of the picture has been loaded. It is called at most
+     * once, before {@link #onBitmapLoaded(Uri, Bitmap)}, and not at all if
+     * the final result is already in the memory cache.
+     *
+     * @param uri
+     *            The Uri of the picture.
+     * @param preview
+     *            A smaller version of the final result, to be displayed
+     *            scaled up. It may be shared with the memory cache and must
+     *            not be recycled.
+     */
+    void onPreviewLoaded(Uri uri, Bitmap preview);
+}
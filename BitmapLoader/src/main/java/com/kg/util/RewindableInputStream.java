@@ -0,0 +1,200 @@
+package com.kg.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A {@link FlushedInputStream} which records the bytes read after a mark in a
+ * bounded buffer, so that it can be reset to this mark. This allows the first
+ * pass (bounds decoding) and the second pass (pixels decoding) to read from
+ * the same opened stream, as long as the picture header fits in the buffer.
+ * <p>
+ * Bytes are only recorded while a mark is valid: reading more than the
+ * readlimit given to {@link #mark(int)}, or than the buffer capacity, past the
+ * mark invalidates it and releases the buffer. {@link #canReset()} then
+ * returns false and {@link #reset()} throws an {@link IOException}: the caller
+ * has to open a new stream. Once the header has been read,
+ * {@link #rewind()} goes back to the mark and stops recording, so the
+ * recorded bytes are replayed once and the rest of the stream is read
+ * straight from the underlying one.
+ * </p>
+ */
+class RewindableInputStream extends FlushedInputStream {
+    /** Initial size of the record buffer, grown up to the capacity. */
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+    /** Recorded bytes, null when nothing is recorded. */
+    private byte[] buffer = null;
+    /** Position in the stream of the first byte of buffer. */
+    private long bufferStart = 0;
+    /** Number of valid bytes in buffer. */
+    private int count = 0;
+    /** Current read position, relative to the beginning of the stream. */
+    private long pos = 0;
+    /** Position set by the last call to mark(), -1 if there is no valid mark. */
+    private long markPos = -1;
+    /** Number of bytes which can be read past the mark before it is invalidated. */
+    private int markLimit = 0;
+    /** Maximum number of bytes we accept to record. */
+    private final int capacity;
+
+    /**
+     * @param inputStream
+     *            The stream to read from.
+     * @param capacity
+     *            The maximum number of bytes which can be read past a mark
+     *            before it is invalidated, whatever the readlimit.
+     */
+    public RewindableInputStream(InputStream inputStream, int capacity) {
+        super(inputStream);
+        this.capacity = capacity;
+    }
+
+    /**
+     * Tells if a call to {@link #reset()} will succeed.
+     *
+     * @return true if a mark has been set and the stream has not been read
+     *         past its readlimit.
+     */
+    public boolean canReset() {
+        return markPos >= 0;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    /**
+     * Marks the current position. Bytes recorded before it are released.
+     *
+     * @param readlimit
+     *            The number of bytes which can be read before the mark is
+     *            invalidated, at most the capacity given to the constructor.
+     */
+    @Override
+    public synchronized void mark(int readlimit) {
+        markPos = pos;
+        markLimit = Math.min(readlimit, capacity);
+        if (buffer != null) {
+            // Keep the bytes after the mark which have not been replayed yet
+            int dropped = (int) (pos - bufferStart);
+            System.arraycopy(buffer, dropped, buffer, 0, count - dropped);
+            count -= dropped;
+        }
+        bufferStart = pos;
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        if (!canReset()) {
+            throw new IOException("Mark invalidated: stream read more than " + markLimit + " bytes past it.");
+        }
+        pos = markPos;
+    }
+
+    /**
+     * Reset to the mark and stop recording. The recorded bytes are replayed,
+     * then released.
+     *
+     * @throws IOException
+     *             If the mark has been invalidated.
+     */
+    public synchronized void rewind() throws IOException {
+        reset();
+        markPos = -1;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int read = read(b, 0, 1);
+        return read < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (pos < bufferStart + count) {
+            // Replay recorded bytes
+            int available = (int) Math.min(len, bufferStart + count - pos);
+            System.arraycopy(buffer, (int) (pos - bufferStart), b, off, available);
+            advance(available);
+            return available;
+        }
+
+        int read = in.read(b, off, len);
+        if (read > 0) {
+            if (markPos >= 0 && pos + read - markPos <= markLimit) {
+                record(b, off, read);
+            }
+            advance(read);
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long totalBytesSkipped = 0L;
+        while (totalBytesSkipped < n) {
+            long bytesSkipped;
+            if (pos < bufferStart + count || markPos >= 0) {
+                // Replayed bytes are skipped in the buffer, and bytes after a
+                // mark have to be recorded: read them.
+                byte[] skipBuffer = new byte[(int) Math.min(n - totalBytesSkipped, INITIAL_BUFFER_SIZE)];
+                bytesSkipped = read(skipBuffer, 0, skipBuffer.length);
+            } else {
+                bytesSkipped = in.skip(n - totalBytesSkipped);
+                if (bytesSkipped == 0L) {
+                    bytesSkipped = in.read() < 0 ? -1 : 1;
+                }
+                if (bytesSkipped > 0) {
+                    advance(bytesSkipped);
+                }
+            }
+            if (bytesSkipped < 0) {
+                break; // we reached EOF
+            }
+            totalBytesSkipped += bytesSkipped;
+        }
+        return totalBytesSkipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(Integer.MAX_VALUE, bufferStart + count - pos + in.available());
+    }
+
+    /**
+     * Moves the read position, invalidating the mark past its readlimit and
+     * releasing the buffer once it is not needed anymore.
+     */
+    private void advance(long n) {
+        pos += n;
+        if (markPos >= 0 && pos - markPos > markLimit) {
+            markPos = -1;
+        }
+        if (markPos < 0 && pos >= bufferStart + count) {
+            buffer = null;
+            bufferStart = pos;
+            count = 0;
+        }
+    }
+
+    /**
+     * Appends freshly read bytes to the record buffer.
+     */
+    private void record(byte[] b, int off, int len) {
+        if (buffer == null) {
+            buffer = new byte[Math.min(capacity, Math.max(INITIAL_BUFFER_SIZE, len))];
+        } else if (count + len > buffer.length) {
+            byte[] newBuffer = new byte[Math.min(capacity, Math.max(buffer.length * 2, count + len))];
+            System.arraycopy(buffer, 0, newBuffer, 0, count);
+            buffer = newBuffer;
+        }
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+}
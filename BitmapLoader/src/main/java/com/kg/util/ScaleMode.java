@@ -0,0 +1,31 @@
+package com.kg.util;
+
+/**
+ * How a picture is sized to the dimensions requested in {@link LoadOptions},
+ * see {@link ScalePlanner}. Pictures are never scaled up, except with
+ * {@link #EXACT}.
+ */
+public enum ScaleMode {
+    /**
+     * The whole picture fits in the requested dimensions, aspect ratio
+     * preserved. The result may be smaller than requested in one dimension.
+     */
+    FIT,
+    /**
+     * The picture fills the requested dimensions, aspect ratio preserved: the
+     * parts of the picture exceeding the requested aspect ratio are cropped,
+     * keeping the center. Behaves as {@link #FIT} if only one dimension is
+     * requested.
+     */
+    CENTER_CROP,
+    /**
+     * The picture is stretched to the requested dimensions, aspect ratio not
+     * preserved.
+     */
+    EXACT,
+    /**
+     * The longest edge of the picture is scaled to the largest requested
+     * dimension, whatever the picture orientation.
+     */
+    LONGEST_EDGE
+}
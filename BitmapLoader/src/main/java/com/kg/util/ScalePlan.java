@@ -0,0 +1,51 @@
+package com.kg.util;
+
+/**
+ * The sizing of a picture computed by {@link ScalePlanner}: the part of the
+ * picture to keep, the sample size to decode it with and the final size.
+ */
+public class ScalePlan {
+    /** The displayed picture width, in pixels, after its orientation. */
+    public int srcWidth = 0;
+    /** The displayed picture height, in pixels, after its orientation. */
+    public int srcHeight = 0;
+    /**
+     * The EXIF orientation applied to the stored picture, see
+     * {@link ExifOrientation}. The other values are given in the displayed
+     * orientation.
+     */
+    public int orientation = ExifOrientation.NORMAL;
+    /** Left of the kept part of the picture, in picture pixels. */
+    public int cropLeft = 0;
+    /** Top of the kept part of the picture, in picture pixels. */
+    public int cropTop = 0;
+    /** Width of the kept part of the picture, in picture pixels. */
+    public int cropWidth = 0;
+    /** Height of the kept part of the picture, in picture pixels. */
+    public int cropHeight = 0;
+    /**
+     * The largest power of 2 sample size which decodes the kept part at least
+     * at the final size.
+     */
+    public int sampleSize = 1;
+    /** The width of the final picture. */
+    public int finalWidth = 0;
+    /** The height of the final picture. */
+    public int finalHeight = 0;
+    /** The mode used to compute this plan. */
+    public ScaleMode mode = ScaleMode.FIT;
+
+    /**
+     * @return true if only a part of the picture is kept.
+     */
+    public boolean isCropped() {
+        return cropWidth < srcWidth || cropHeight < srcHeight;
+    }
+
+    @Override
+    public String toString() {
+        return "{mode=" + mode + ", src=" + srcWidth + "x" + srcHeight + ", orientation=" + orientation + ", crop=" + cropLeft + "," + cropTop + ","
+                + cropWidth + "x" + cropHeight + ", sampleSize=" + sampleSize + ", final=" + finalWidth + "x"
+                + finalHeight + "}";
+    }
+}
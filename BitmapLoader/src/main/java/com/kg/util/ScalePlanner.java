@@ -0,0 +1,211 @@
+package com.kg.util;
+
+/**
+ * Computes how a picture is sized to requested dimensions: final size, part
+ * of the picture to keep and sample size. It only does arithmetic, without
+ * any Android dependency.
+ */
+public class ScalePlanner {
+
+    private ScalePlanner() {
+    }
+
+    /**
+     * Plan the sizing of a picture displayed as stored.
+     *
+     * @see #plan(int, int, int, Integer, Integer, ScaleMode, boolean)
+     */
+    public static ScalePlan plan(int srcWidth, int srcHeight, Integer width, Integer height, ScaleMode mode,
+            boolean reserveRotation) {
+        return plan(srcWidth, srcHeight, ExifOrientation.NORMAL, width, height, mode, reserveRotation);
+    }
+
+    /**
+     * Plan the sizing of a picture.
+     *
+     * @param srcWidth
+     *            The picture width.
+     * @param srcHeight
+     *            The picture height.
+     * @param orientation
+     *            The EXIF orientation of the picture. The plan is computed on
+     *            the displayed dimensions, which are swapped if the picture is
+     *            rotated by 90 degrees.
+     * @param width
+     *            The requested width, can be null if height is given.
+     * @param height
+     *            The requested height, can be null if width is given.
+     * @param mode
+     *            How the picture is sized, {@link ScaleMode#FIT} if null.
+     * @param reserveRotation
+     *            With {@link ScaleMode#FIT}, swap the requested dimensions
+     *            when their orientation differs from the picture one, so that
+     *            the result is large enough for both device orientations. The
+     *            result can then use twice the pixel memory.
+     * @return The sizing plan. If the picture dimensions are unknown or no
+     *         dimension is requested, the plan keeps the picture size.
+     */
+    public static ScalePlan plan(int srcWidth, int srcHeight, int orientation, Integer width, Integer height,
+            ScaleMode mode, boolean reserveRotation) {
+        if (ExifOrientation.isTransposed(orientation)) {
+            int storedWidth = srcWidth;
+            srcWidth = srcHeight;
+            srcHeight = storedWidth;
+        }
+        ScalePlan plan = new ScalePlan();
+        plan.orientation = orientation;
+        plan.mode = mode == null ? ScaleMode.FIT : mode;
+        plan.srcWidth = Math.max(srcWidth, 0);
+        plan.srcHeight = Math.max(srcHeight, 0);
+        plan.cropWidth = plan.srcWidth;
+        plan.cropHeight = plan.srcHeight;
+        plan.finalWidth = plan.srcWidth;
+        plan.finalHeight = plan.srcHeight;
+        if (srcWidth <= 0 || srcHeight <= 0 || (width == null && height == null)) {
+            return plan;
+        }
+
+        float srcImageRatio = (float) srcWidth / (float) srcHeight;
+        switch (plan.mode) {
+        case LONGEST_EDGE:
+            planLongestEdge(plan, width, height);
+            break;
+        case CENTER_CROP:
+            if (width != null && height != null) {
+                planCenterCrop(plan, width, height);
+            } else {
+                planFit(plan, width, height, srcImageRatio, false);
+            }
+            break;
+        case EXACT:
+            plan.finalWidth = width != null ? width : (int) (height * srcImageRatio);
+            plan.finalHeight = height != null ? height : (int) (width / srcImageRatio);
+            break;
+        default:
+            planFit(plan, width, height, srcImageRatio, reserveRotation);
+            break;
+        }
+        plan.finalWidth = Math.max(plan.finalWidth, 1);
+        plan.finalHeight = Math.max(plan.finalHeight, 1);
+
+        // The largest power of 2 keeping both dimensions of the kept part at
+        // least as large as the final size.
+        int sampleSize = 1;
+        while (plan.cropWidth / (sampleSize * 2) >= plan.finalWidth
+                && plan.cropHeight / (sampleSize * 2) >= plan.finalHeight) {
+            sampleSize *= 2;
+        }
+        plan.sampleSize = sampleSize;
+        return plan;
+    }
+
+    /**
+     * Tells if a smaller version of the picture, like an embedded thumbnail,
+     * has enough pixels for a plan. Its aspect ratio must match the picture
+     * one within 2%, so that letterboxed previews are not used.
+     *
+     * @param plan
+     *            The sizing plan of the picture.
+     * @param previewWidth
+     *            The width of the preview, stored with the same orientation
+     *            as the picture.
+     * @param previewHeight
+     *            The height of the preview.
+     * @return true if the preview can be used instead of the picture.
+     */
+    public static boolean isCoveredBy(ScalePlan plan, int previewWidth, int previewHeight) {
+        if (ExifOrientation.isTransposed(plan.orientation)) {
+            int storedWidth = previewWidth;
+            previewWidth = previewHeight;
+            previewHeight = storedWidth;
+        }
+        if (previewWidth <= 0 || previewHeight <= 0 || plan.srcWidth <= 0 || plan.srcHeight <= 0) {
+            return false;
+        }
+        float srcImageRatio = (float) plan.srcWidth / (float) plan.srcHeight;
+        float previewRatio = (float) previewWidth / (float) previewHeight;
+        if (Math.abs(previewRatio - srcImageRatio) > 0.02f * srcImageRatio) {
+            return false;
+        }
+        // Same 1 pixel tolerance as when checking the memory cache
+        float previewScale = (float) previewWidth / (float) plan.srcWidth;
+        return plan.cropWidth * previewScale + 1 >= plan.finalWidth
+                && plan.cropHeight * previewScale + 1 >= plan.finalHeight;
+    }
+
+    private static void planFit(ScalePlan plan, Integer width, Integer height, float srcImageRatio,
+            boolean reserveRotation) {
+        int finalWidth;
+        int finalHeight;
+        if (width == null) {
+            // If only one dimension is given, keep source proportions
+            finalWidth = (int) (height * srcImageRatio);
+            finalHeight = height;
+        } else if (height == null) {
+            finalHeight = (int) (width / srcImageRatio);
+            finalWidth = width;
+        } else {
+            finalWidth = width;
+            finalHeight = height;
+        }
+
+        float requestedImageRatio = (float) finalWidth / (float) finalHeight;
+
+        if (reserveRotation
+                && ((srcImageRatio > 1 && requestedImageRatio < 1) || (srcImageRatio < 1 && requestedImageRatio > 1))) {
+            // Switch requested orientation to allow best quality without
+            // reloading if device orientation changes
+            int oldValue = finalWidth;
+            finalWidth = finalHeight;
+            finalHeight = oldValue;
+            requestedImageRatio = 1 / requestedImageRatio;
+        }
+
+        // Adjust for best fit with aspect ratio preserved
+        if (requestedImageRatio <= srcImageRatio) {
+            finalHeight = (int) (finalWidth / srcImageRatio);
+        } else {
+            finalWidth = (int) (finalHeight * srcImageRatio);
+        }
+
+        if (finalWidth > plan.srcWidth || finalHeight > plan.srcHeight) {
+            // Never scale up
+            finalWidth = plan.srcWidth;
+            finalHeight = plan.srcHeight;
+        }
+        plan.finalWidth = finalWidth;
+        plan.finalHeight = finalHeight;
+    }
+
+    private static void planCenterCrop(ScalePlan plan, int width, int height) {
+        float requestedImageRatio = (float) width / (float) height;
+        if ((float) plan.srcWidth / (float) plan.srcHeight > requestedImageRatio) {
+            // Picture too wide, crop left and right
+            plan.cropWidth = Math.max(1, Math.round(plan.srcHeight * requestedImageRatio));
+        } else {
+            // Picture too tall, crop top and bottom
+            plan.cropHeight = Math.max(1, Math.round(plan.srcWidth / requestedImageRatio));
+        }
+        plan.cropLeft = (plan.srcWidth - plan.cropWidth) / 2;
+        plan.cropTop = (plan.srcHeight - plan.cropHeight) / 2;
+
+        if (width <= plan.cropWidth && height <= plan.cropHeight) {
+            plan.finalWidth = width;
+            plan.finalHeight = height;
+        } else {
+            // Never scale up
+            plan.finalWidth = plan.cropWidth;
+            plan.finalHeight = plan.cropHeight;
+        }
+    }
+
+    private static void planLongestEdge(ScalePlan plan, Integer width, Integer height) {
+        int edge = Math.max(width == null ? 0 : width, height == null ? 0 : height);
+        int srcEdge = Math.max(plan.srcWidth, plan.srcHeight);
+        if (edge < srcEdge) {
+            float scale = (float) edge / (float) srcEdge;
+            plan.finalWidth = Math.round(plan.srcWidth * scale);
+            plan.finalHeight = Math.round(plan.srcHeight * scale);
+        }
+    }
+}
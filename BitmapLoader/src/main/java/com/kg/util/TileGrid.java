@@ -0,0 +1,131 @@
+package com.kg.util;
+
+/**
+ * Splits a picture in square tiles for each level of a power of 2 pyramid. At
+ * sample size s, a tile covers tileSize * s picture pixels on each side and is
+ * decoded as a Bitmap of at most tileSize pixels on each side, so the memory
+ * needed to display a viewport does not depend on the zoom level. It only does
+ * arithmetic, without any Android dependency.
+ */
+public class TileGrid {
+    private final int width;
+    private final int height;
+    private final int tileSize;
+    private final int maxSampleSize;
+
+    /**
+     * @param width
+     *            The picture width, in pixels.
+     * @param height
+     *            The picture height, in pixels.
+     * @param tileSize
+     *            The size of the decoded tiles, in pixels.
+     */
+    public TileGrid(int width, int height, int tileSize) {
+        if (width <= 0 || height <= 0 || tileSize <= 0) {
+            throw new IllegalArgumentException("Invalid grid " + width + "x" + height + " / " + tileSize);
+        }
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        // The coarsest level holds the whole picture in a single tile
+        int sampleSize = 1;
+        while (width > tileSize * sampleSize || height > tileSize * sampleSize) {
+            sampleSize *= 2;
+        }
+        maxSampleSize = sampleSize;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * @return The sample size of the coarsest level, where the whole picture
+     *         is a single tile.
+     */
+    public int getMaxSampleSize() {
+        return maxSampleSize;
+    }
+
+    /**
+     * Find the level to display the picture at a given zoom.
+     *
+     * @param scale
+     *            The displayed size of a picture pixel, in screen pixels.
+     * @return The largest power of 2 sample size giving at least one decoded
+     *         pixel per screen pixel, between 1 and {@link #getMaxSampleSize()}.
+     */
+    public int getSampleSizeForScale(float scale) {
+        int sampleSize = 1;
+        while (sampleSize < maxSampleSize && scale * sampleSize * 2 <= 1) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * @return The number of tile columns at the given sample size.
+     */
+    public int getColumnCount(int sampleSize) {
+        int span = tileSize * sampleSize;
+        return (width + span - 1) / span;
+    }
+
+    /**
+     * @return The number of tile rows at the given sample size.
+     */
+    public int getRowCount(int sampleSize) {
+        int span = tileSize * sampleSize;
+        return (height + span - 1) / span;
+    }
+
+    /**
+     * Gives the part of the picture covered by a tile. Tiles on the right and
+     * bottom edges may be smaller than the others.
+     *
+     * @return { left, top, right, bottom } in picture pixels.
+     */
+    public int[] getTileBounds(int sampleSize, int column, int row) {
+        int span = tileSize * sampleSize;
+        int left = column * span;
+        int top = row * span;
+        return new int[] { left, top, Math.min(width, left + span), Math.min(height, top + span) };
+    }
+
+    /**
+     * Find the tiles intersecting a part of the picture.
+     *
+     * @param sampleSize
+     *            The level of the tiles.
+     * @param left
+     *            Left of the visible part, in picture pixels.
+     * @param top
+     *            Top of the visible part, in picture pixels.
+     * @param right
+     *            Right of the visible part, in picture pixels, exclusive.
+     * @param bottom
+     *            Bottom of the visible part, in picture pixels, exclusive.
+     * @return { firstColumn, firstRow, lastColumn, lastRow }, inclusive, or
+     *         null if the visible part is outside of the picture.
+     */
+    public int[] getVisibleTiles(int sampleSize, int left, int top, int right, int bottom) {
+        left = Math.max(left, 0);
+        top = Math.max(top, 0);
+        right = Math.min(right, width);
+        bottom = Math.min(bottom, height);
+        if (left >= right || top >= bottom) {
+            return null;
+        }
+        int span = tileSize * sampleSize;
+        return new int[] { left / span, top / span, (right - 1) / span, (bottom - 1) / span };
+    }
+}
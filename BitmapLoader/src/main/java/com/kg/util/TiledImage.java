@@ -0,0 +1,224 @@
+package com.kg.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * A large picture decoded on demand by tiles, to display it zoomed in without
+ * decoding it whole. Tiles are organized in a pyramid of power of 2 sample
+ * sizes, see {@link TileGrid}: the tiles needed for a viewport are decoded at
+ * the level matching the zoom, so the memory used is proportional to the
+ * viewport size. Decoded tiles are kept in the BitmapLoader memory cache.
+ * <p>
+ * Tile coordinates are given in the stored picture orientation, the caller
+ * has to apply {@link #getOrientation()} when drawing them. Instances are
+ * created with {@link BitmapLoader#openTiledImage(android.content.Context, Uri, int, Config)}
+ * and must be closed when not displayed anymore.
+ * </p>
+ */
+public class TiledImage {
+    /** A tile size matching the texture size limits of all devices. */
+    public static final int DEFAULT_TILE_SIZE = 256;
+
+    private static final String LOG_TAG = TiledImage.class.getSimpleName();
+    /** Build.VERSION_CODES.JELLY_BEAN: inBitmap with region decodes. */
+    private static final int JELLY_BEAN = 16;
+
+    private final String key;
+    private final BitmapRegionDecoder decoder;
+    private final TileGrid grid;
+    private final int orientation;
+    private final Config colorConfig;
+
+    /**
+     * A decoded tile.
+     */
+    public static class Tile {
+        /** The level of the tile. */
+        public final int sampleSize;
+        public final int column;
+        public final int row;
+        /** The part of the picture covered by the tile, in picture pixels. */
+        public final Rect bounds;
+        /** The tile pixels, bounds scaled down by the sample size. */
+        public final Bitmap bitmap;
+
+        Tile(int sampleSize, int column, int row, Rect bounds, Bitmap bitmap) {
+            this.sampleSize = sampleSize;
+            this.column = column;
+            this.row = row;
+            this.bounds = bounds;
+            this.bitmap = bitmap;
+        }
+    }
+
+    TiledImage(Uri uri, BitmapRegionDecoder decoder, int orientation, int tileSize, Config colorConfig) {
+        this.key = uri.toString() + "#tile" + tileSize + "=";
+        this.decoder = decoder;
+        this.grid = new TileGrid(decoder.getWidth(), decoder.getHeight(), tileSize);
+        this.orientation = orientation;
+        this.colorConfig = colorConfig;
+    }
+
+    /**
+     * @return The stored picture width, in pixels.
+     */
+    public int getWidth() {
+        return grid.getWidth();
+    }
+
+    /**
+     * @return The stored picture height, in pixels.
+     */
+    public int getHeight() {
+        return grid.getHeight();
+    }
+
+    /**
+     * @return The EXIF orientation to apply when drawing the tiles, see
+     *         {@link ExifOrientation}.
+     */
+    public int getOrientation() {
+        return orientation;
+    }
+
+    /**
+     * @return The tiles layout.
+     */
+    public TileGrid getGrid() {
+        return grid;
+    }
+
+    /**
+     * Get a tile from the memory cache, without decoding it. Allows drawing
+     * an already decoded coarser level on the UI thread while the tiles of
+     * the current zoom are being decoded.
+     *
+     * @return The cached tile, or null.
+     */
+    public Tile peekTile(int sampleSize, int column, int row) {
+        Bitmap bitmap = BitmapLoader.getMemoryCache().get(tileKey(sampleSize, column, row));
+        if (bitmap == null) {
+            return null;
+        }
+        return new Tile(sampleSize, column, row, tileBounds(sampleSize, column, row), bitmap);
+    }
+
+    /**
+     * Get a tile, decoding it if it is not in the memory cache. Do not call
+     * from the UI thread.
+     *
+     * @param sampleSize
+     *            The level of the tile, a power of 2.
+     * @param column
+     *            The tile column at this level.
+     * @param row
+     *            The tile row at this level.
+     * @return The tile, or null if it could not be decoded or if this image
+     *         is closed.
+     */
+    public Tile getTile(int sampleSize, int column, int row) {
+        Tile tile = peekTile(sampleSize, column, row);
+        if (tile != null) {
+            return tile;
+        }
+        Rect bounds = tileBounds(sampleSize, column, row);
+        Bitmap bitmap = decodeTile(sampleSize, bounds);
+        if (bitmap == null) {
+            return null;
+        }
+        BitmapLoader.getMemoryCache().put(tileKey(sampleSize, column, row), bitmap);
+        return new Tile(sampleSize, column, row, bounds, bitmap);
+    }
+
+    /**
+     * Get the tiles covering a viewport at a given zoom, decoding those which
+     * are not in the memory cache. Do not call from the UI thread.
+     *
+     * @param viewport
+     *            The visible part of the picture, in picture pixels.
+     * @param scale
+     *            The displayed size of a picture pixel, in screen pixels.
+     * @return The visible tiles, empty if the viewport is outside of the
+     *         picture. Tiles which could not be decoded are missing.
+     */
+    public List<Tile> getVisibleTiles(Rect viewport, float scale) {
+        int sampleSize = grid.getSampleSizeForScale(scale);
+        int[] range = grid.getVisibleTiles(sampleSize, viewport.left, viewport.top, viewport.right,
+                viewport.bottom);
+        if (range == null) {
+            return new ArrayList<Tile>(0);
+        }
+        List<Tile> tiles = new ArrayList<Tile>((range[2] - range[0] + 1) * (range[3] - range[1] + 1));
+        for (int row = range[1]; row <= range[3]; row++) {
+            for (int column = range[0]; column <= range[2]; column++) {
+                Tile tile = getTile(sampleSize, column, row);
+                if (tile != null) {
+                    tiles.add(tile);
+                }
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * Release the decoder. Decoded tiles stay in the memory cache.
+     */
+    public void close() {
+        synchronized (decoder) {
+            decoder.recycle();
+        }
+    }
+
+    private Bitmap decodeTile(int sampleSize, Rect bounds) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = colorConfig;
+        if (!colorConfig.equals(Config.ARGB_8888)) {
+            options.inDither = true;
+        }
+        int tileSize = grid.getTileSize();
+        BitmapPool pool = BitmapLoader.getBitmapPool();
+        boolean fullTile = bounds.width() == tileSize * sampleSize && bounds.height() == tileSize * sampleSize;
+        if (pool != null && fullTile && Build.VERSION.SDK_INT >= JELLY_BEAN) {
+            // Region decodes can only reuse a Bitmap of the decoded size
+            options.inBitmap = pool.get(tileSize, tileSize, colorConfig);
+        }
+        synchronized (decoder) {
+            if (decoder.isRecycled()) {
+                if (options.inBitmap != null) {
+                    pool.put(options.inBitmap);
+                }
+                return null;
+            }
+            try {
+                return decoder.decodeRegion(bounds, options);
+            } catch (IllegalArgumentException e) {
+                if (options.inBitmap == null) {
+                    throw e;
+                }
+                Log.d(LOG_TAG, "Could not decode into a pooled bitmap : " + e.getMessage());
+                options.inBitmap = null;
+                return decoder.decodeRegion(bounds, options);
+            }
+        }
+    }
+
+    private Rect tileBounds(int sampleSize, int column, int row) {
+        int[] bounds = grid.getTileBounds(sampleSize, column, row);
+        return new Rect(bounds[0], bounds[1], bounds[2], bounds[3]);
+    }
+
+    private String tileKey(int sampleSize, int column, int row) {
+        return key + sampleSize + "/" + column + "," + row;
+    }
+}
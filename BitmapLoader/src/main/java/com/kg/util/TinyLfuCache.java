@@ -0,0 +1,331 @@
+package com.kg.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * A cache protecting its frequently used entries from scans, with a Window
+ * TinyLFU policy. New entries are stored in a small LRU window: 1% of the
+ * cache, plus the weight of one large entry. Entries leaving the window are
+ * admitted in the main region only if they have been accessed more often
+ * than the entry they would evict, as estimated by a
+ * {@link FrequencySketch}. The main region is a segmented LRU: entries enter
+ * a probation segment and are promoted to a protected segment (80% of the
+ * main region) when accessed again.
+ * <p>
+ * With this policy, a fling through a large list of pictures seen once does
+ * not push out the thumbnails which are frequently displayed.
+ * </p>
+ * <p>
+ * All operations are synchronized on the cache. Hits and misses are counted so
+ * that the policy can be compared with {@link ConcurrentLRUCache} on real
+ * usage, see {@link #getHitCount()} and {@link #getMissCount()}.
+ * </p>
+ *
+ * @param <K>
+ *            The type of the keys.
+ * @param <V>
+ *            The type of the cached values.
+ */
+public class TinyLfuCache<K, V> implements MemoryCache<K, V> {
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    /** A cached value with its weight and its current region. */
+    private static class Node<K, V> {
+        final K key;
+        V value;
+        int weight;
+        int region = WINDOW;
+
+        Node(K key, V value, int weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    private final HashMap<K, Node<K, V>> data = new HashMap<K, Node<K, V>>();
+    /** The 3 regions, in LRU order: the eldest entry comes first. */
+    private final List<LinkedHashMap<K, Node<K, V>>> regions = new ArrayList<LinkedHashMap<K, Node<K, V>>>(3);
+    private final long[] regionWeights = new long[3];
+
+    private final FrequencySketch sketch;
+    private final Weigher<V> weigher;
+    private final int cacheSize;
+    private final long maxWeight;
+    private final long maxWindowWeight;
+    private final long maxProtectedWeight;
+
+    private long hitCount = 0;
+    private long missCount = 0;
+    private volatile EvictionListener<K, V> evictionListener;
+    /** Values dropped by the current put, notified after releasing the lock. */
+    private final List<Node<K, V>> evicted = new ArrayList<Node<K, V>>();
+
+    /**
+     * Create a cache bounded by number of entries.
+     *
+     * @param cacheSize
+     *            The maximum number of entries.
+     */
+    public TinyLfuCache(int cacheSize) {
+        this(cacheSize, cacheSize, null, cacheSize, 1);
+    }
+
+    /**
+     * Create a cache bounded by the total weight of its values, whose entries
+     * have about the same weight.
+     *
+     * @param maxWeight
+     *            The maximum total weight of the values.
+     * @param weigher
+     *            Gives the weight of each value.
+     * @param expectedEntries
+     *            The typical number of entries the cache will hold, used to
+     *            size the frequency sketch.
+     */
+    public TinyLfuCache(long maxWeight, Weigher<V> weigher, int expectedEntries) {
+        this(maxWeight, weigher, expectedEntries, maxWeight / Math.max(1, expectedEntries));
+    }
+
+    /**
+     * Create a cache bounded by the total weight of its values.
+     *
+     * @param maxWeight
+     *            The maximum total weight of the values.
+     * @param weigher
+     *            Gives the weight of each value.
+     * @param expectedEntries
+     *            The typical number of entries the cache will hold, used to
+     *            size the frequency sketch.
+     * @param largeEntryWeight
+     *            The weight of the largest entries commonly stored, like a
+     *            full screen preview among thumbnails. The window is
+     *            enlarged by this weight, so that such an entry is not
+     *            evicted as soon as a smaller one is put after it.
+     */
+    public TinyLfuCache(long maxWeight, Weigher<V> weigher, int expectedEntries, long largeEntryWeight) {
+        this(Integer.MAX_VALUE, maxWeight, weigher, expectedEntries, largeEntryWeight);
+    }
+
+    private TinyLfuCache(int cacheSize, long maxWeight, Weigher<V> weigher, int expectedEntries,
+            long largeEntryWeight) {
+        this.cacheSize = (cacheSize < 1) ? 1000 : cacheSize;
+        this.weigher = weigher;
+        this.maxWeight = weigher == null ? this.cacheSize : maxWeight;
+        for (int region = WINDOW; region <= PROTECTED; region++) {
+            regions.add(new LinkedHashMap<K, Node<K, V>>());
+        }
+        // The main region keeps at least half of the cache
+        maxWindowWeight = Math.max(1, Math.min(this.maxWeight / 2, this.maxWeight / 100 + largeEntryWeight));
+        maxProtectedWeight = (this.maxWeight - maxWindowWeight) * 8 / 10;
+        sketch = new FrequencySketch(expectedEntries);
+    }
+
+    /** Weight of a value: its real weight, or 1 when bounded by size. */
+    private int weigh(V value) {
+        return weigher == null ? 1 : weigher.weigh(value);
+    }
+
+    @Override
+    public synchronized V get(K key) {
+        if (key == null) {
+            return null;
+        }
+        sketch.increment(key);
+        Node<K, V> node = data.get(key);
+        if (node == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        onAccess(node);
+        return node.value;
+    }
+
+    /**
+     * Stores into the cache the specified entry, in the window region. Entries
+     * leaving the window then compete with the main region entries to stay in
+     * the cache. A value heavier than the weight limit is not stored.
+     */
+    @Override
+    public void put(K key, V entry) {
+        if (key == null || entry == null) {
+            return;
+        }
+        int weight = weigh(entry);
+        if (weight > maxWeight) {
+            return;
+        }
+        List<Node<K, V>> dropped = null;
+        synchronized (this) {
+            sketch.increment(key);
+            Node<K, V> node = data.get(key);
+            if (node != null) {
+                if (node.value != entry) {
+                    evicted.add(new Node<K, V>(key, node.value, node.weight));
+                }
+                regionWeights[node.region] += weight - node.weight;
+                node.value = entry;
+                node.weight = weight;
+                onAccess(node);
+            } else {
+                node = new Node<K, V>(key, entry, weight);
+                data.put(key, node);
+                append(node, WINDOW);
+            }
+            evict();
+            if (!evicted.isEmpty()) {
+                dropped = new ArrayList<Node<K, V>>(evicted);
+                evicted.clear();
+            }
+        }
+        EvictionListener<K, V> listener = evictionListener;
+        if (dropped != null && listener != null) {
+            for (Node<K, V> node : dropped) {
+                listener.onEvicted(node.key, node.value);
+            }
+        }
+    }
+
+    /**
+     * Update the regions after an access: move to the most recently used
+     * position, promoting probation entries to the protected segment.
+     */
+    private void onAccess(Node<K, V> node) {
+        if (node.region == PROBATION) {
+            unlink(node);
+            append(node, PROTECTED);
+            // Demote the eldest protected entries if the segment is full
+            while (regionWeights[PROTECTED] > maxProtectedWeight && regions.get(PROTECTED).size() > 1) {
+                Node<K, V> eldest = regions.get(PROTECTED).values().iterator().next();
+                unlink(eldest);
+                append(eldest, PROBATION);
+            }
+        } else {
+            unlink(node);
+            append(node, node.region);
+        }
+    }
+
+    /**
+     * Move the entries leaving the window to the main region, then evict the
+     * entries with the lowest frequency until the cache fits its limits.
+     */
+    private void evict() {
+        while (regionWeights[WINDOW] > maxWindowWeight && regions.get(WINDOW).size() > 1) {
+            Node<K, V> candidate = regions.get(WINDOW).values().iterator().next();
+            unlink(candidate);
+            append(candidate, PROBATION);
+            // The candidate competes with the eldest entries of the main
+            // region until it fits or loses.
+            while (isOverflowing()) {
+                Node<K, V> victim = eldestMainEntry(candidate);
+                if (victim == null) {
+                    break;
+                }
+                if (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+                    remove(victim);
+                } else {
+                    remove(candidate);
+                    break;
+                }
+            }
+        }
+        // Weights may still exceed the limit, for example when a heavy value
+        // replaced a light one.
+        while (isOverflowing()) {
+            Node<K, V> victim = eldestMainEntry(null);
+            if (victim == null) {
+                victim = regions.get(WINDOW).values().iterator().next();
+            }
+            remove(victim);
+        }
+    }
+
+    private boolean isOverflowing() {
+        return data.size() > cacheSize
+                || regionWeights[WINDOW] + regionWeights[PROBATION] + regionWeights[PROTECTED] > maxWeight;
+    }
+
+    /**
+     * @param excluded
+     *            An entry which can't be the victim.
+     * @return The eldest probation entry, or the eldest protected entry if the
+     *         probation segment is empty.
+     */
+    private Node<K, V> eldestMainEntry(Node<K, V> excluded) {
+        for (int region = PROBATION; region <= PROTECTED; region++) {
+            Iterator<Node<K, V>> eldest = regions.get(region).values().iterator();
+            while (eldest.hasNext()) {
+                Node<K, V> node = eldest.next();
+                if (node != excluded) {
+                    return node;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void append(Node<K, V> node, int region) {
+        node.region = region;
+        regions.get(region).put(node.key, node);
+        regionWeights[region] += node.weight;
+    }
+
+    private void unlink(Node<K, V> node) {
+        regions.get(node.region).remove(node.key);
+        regionWeights[node.region] -= node.weight;
+    }
+
+    private void remove(Node<K, V> node) {
+        unlink(node);
+        data.remove(node.key);
+        evicted.add(node);
+    }
+
+    @Override
+    public final int getSize() {
+        return cacheSize;
+    }
+
+    @Override
+    public final synchronized int getCurrentUsage() {
+        return data.size();
+    }
+
+    @Override
+    public final long getMaxWeight() {
+        return weigher == null ? 0 : maxWeight;
+    }
+
+    @Override
+    public final synchronized long getCurrentWeight() {
+        return weigher == null ? 0 : regionWeights[WINDOW] + regionWeights[PROBATION] + regionWeights[PROTECTED];
+    }
+
+    /**
+     * @return The number of lookups which found their key.
+     */
+    public final synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return The number of lookups which did not find their key.
+     */
+    public final synchronized long getMissCount() {
+        return missCount;
+    }
+
+    @Override
+    public void setEvictionListener(EvictionListener<K, V> listener) {
+        evictionListener = listener;
+    }
+}
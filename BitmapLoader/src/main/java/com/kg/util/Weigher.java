@@ -0,0 +1,17 @@
+package com.kg.util;
+
+/**
+ * Gives the weight of cached values, for caches bounded by the total weight of
+ * their values instead of their number of entries.
+ *
+ * @param <V>
+ *            The type of the cached values.
+ */
+public interface Weigher<V> {
+    /**
+     * @param value
+     *            A cached value, never null.
+     * @return The weight of the value, a positive number.
+     */
+    int weigh(V value);
+}
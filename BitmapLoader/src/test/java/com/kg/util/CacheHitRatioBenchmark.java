@@ -0,0 +1,113 @@
+package com.kg.util;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Replays an access trace on {@link ConcurrentLRUCache} and
+ * {@link TinyLfuCache} with several budgets and prints their hit ratios. Not
+ * run by the unit tests, run it with:
+ *
+ * <pre>
+ * mvn -q test-compile
+ * java -cp target/classes:target/test-classes com.kg.util.CacheHitRatioBenchmark [trace]
+ * </pre>
+ *
+ * The trace is a text file with one access per line: the key, optionally
+ * followed by a space and the weight of the value (1 by default), for example
+ * the cache keys logged by an application while it is used. A missed key is
+ * put into the cache. Without a trace, a synthetic one is generated with a
+ * fixed seed: 70% of the accesses go to a skewed set of 200 hot keys, 30% to
+ * keys seen only once, like a fling through a long list.
+ * <p>
+ * No recorded trace is committed: the hit ratios of the demo grid scrolls
+ * have not been measured, only those of the synthetic trace. Those show that
+ * the policies behave as designed. A trace of real usage is needed to tell
+ * which one suits an application. To record one, log the keys given to
+ * {@link MemoryCache#get(Object)} while scrolling, one per line.
+ * </p>
+ */
+public class CacheHitRatioBenchmark {
+    private static final int[] BUDGETS = { 50, 100, 200, 400 };
+
+    private static final Weigher<Integer> WEIGHER = new Weigher<Integer>() {
+        @Override
+        public int weigh(Integer value) {
+            return value;
+        }
+    };
+
+    public static void main(String[] args) throws IOException {
+        List<String> keys = new ArrayList<String>();
+        List<Integer> weights = new ArrayList<Integer>();
+        if (args.length > 0) {
+            readTrace(args[0], keys, weights);
+            System.out.println("Trace " + args[0] + ": " + keys.size() + " accesses");
+        } else {
+            syntheticTrace(keys, weights);
+            System.out.println("Synthetic trace: " + keys.size() + " accesses");
+        }
+
+        System.out.println("budget\tConcurrentLRUCache\tTinyLfuCache");
+        for (int budget : BUDGETS) {
+            double lru = hitRatio(new ConcurrentLRUCache<String, Integer>(budget, WEIGHER, 1), keys, weights);
+            double tinyLfu = hitRatio(new TinyLfuCache<String, Integer>(budget, WEIGHER, budget), keys, weights);
+            System.out.println(String.format("%d\t%.3f\t%.3f", budget, lru, tinyLfu));
+        }
+    }
+
+    private static double hitRatio(MemoryCache<String, Integer> cache, List<String> keys, List<Integer> weights) {
+        long hits = 0;
+        for (int i = 0; i < keys.size(); i++) {
+            String key = keys.get(i);
+            if (cache.get(key) != null) {
+                hits++;
+            } else {
+                cache.put(key, weights.get(i));
+            }
+        }
+        return (double) hits / keys.size();
+    }
+
+    private static void readTrace(String path, List<String> keys, List<Integer> weights) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(path));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0) {
+                    continue;
+                }
+                int space = line.lastIndexOf(' ');
+                if (space > 0) {
+                    keys.add(line.substring(0, space));
+                    weights.add(Integer.valueOf(line.substring(space + 1)));
+                } else {
+                    keys.add(line);
+                    weights.add(1);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void syntheticTrace(List<String> keys, List<Integer> weights) {
+        Random random = new Random(1);
+        int oneOff = 0;
+        for (int i = 0; i < 200000; i++) {
+            if (random.nextInt(10) < 3) {
+                keys.add("once" + oneOff++);
+            } else {
+                // Squaring a uniform value favours the first hot keys
+                double u = random.nextDouble();
+                keys.add("hot" + (int) (u * u * 200));
+            }
+            weights.add(1);
+        }
+    }
+}
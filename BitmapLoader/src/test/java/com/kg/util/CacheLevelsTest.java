@@ -0,0 +1,54 @@
+package com.kg.util;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class CacheLevelsTest extends TestCase {
+
+    public void testLevelOf() {
+        assertEquals(0, CacheLevels.levelOf(1, 1));
+        assertEquals(7, CacheLevels.levelOf(128, 96));
+        assertEquals(8, CacheLevels.levelOf(96, 129));
+        assertEquals(0, CacheLevels.levelOf(0, 0));
+    }
+
+    public void testLevelsAreSmallestFirst() {
+        CacheLevels levels = new CacheLevels();
+        levels.add("content://media/1", 10);
+        levels.add("content://media/1", 7);
+        levels.add("content://media/2", 8);
+        assertTrue(Arrays.equals(new int[] { 7, 10 }, levels.get("content://media/1")));
+        levels.remove("content://media/1", 7);
+        assertTrue(Arrays.equals(new int[] { 10 }, levels.get("content://media/1")));
+        assertEquals(0, levels.get("content://media/3").length);
+    }
+
+    public void testEvictedLevelKeysAreForgotten() {
+        CacheLevels levels = new CacheLevels();
+        String uri = "file:///sdcard/me@home.jpg";
+        levels.add(uri, 7);
+        levels.add(uri, 9);
+        levels.removeLevelKey(CacheLevels.levelKey(uri, 9));
+        assertTrue(Arrays.equals(new int[] { 7 }, levels.get(uri)));
+        levels.removeLevelKey(CacheLevels.levelKey(uri, 7));
+        // A picture without cached levels does not hold an entry
+        assertEquals(0, levels.size());
+    }
+
+    public void testOtherKeysAreIgnored() {
+        CacheLevels levels = new CacheLevels();
+        levels.add("content://media/1", 7);
+        levels.removeLevelKey("content://media/1");
+        levels.removeLevelKey("content://media/1@preview");
+        levels.removeLevelKey("content://media/1@40");
+        assertTrue(Arrays.equals(new int[] { 7 }, levels.get("content://media/1")));
+    }
+
+    public void testClear() {
+        CacheLevels levels = new CacheLevels();
+        levels.add("content://media/1", 7);
+        levels.clear();
+        assertEquals(0, levels.size());
+    }
+}
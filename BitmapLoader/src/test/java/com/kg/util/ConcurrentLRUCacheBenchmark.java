@@ -0,0 +1,154 @@
+package com.kg.util;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Multi-threaded throughput and hit ratio of {@link NewLRUCache} and
+ * {@link ConcurrentLRUCache}, with the same skewed key distribution and the
+ * same seeds for both. Not run by the unit tests, run it with:
+ *
+ * <pre>
+ * mvn -q test-compile
+ * java -cp target/classes:target/test-classes com.kg.util.ConcurrentLRUCacheBenchmark [maxThreads] [opsPerThread]
+ * </pre>
+ *
+ * Each thread reads keys from a Zipf like distribution over 4 times more keys
+ * than the cache holds, and puts the missing ones. Values weigh from 1 to 16
+ * units, like thumbnails and previews in a byte budget. Throughput figures
+ * depend on the number of cores of the machine, which is printed first.
+ * <p>
+ * On a single core, NewLRUCache is faster: its lock is never contended and
+ * reads don't pay for the buffering. ConcurrentLRUCache is only worth it when
+ * this benchmark shows it scaling on a multi-core machine, which is why it is
+ * not the default memory cache.
+ * </p>
+ */
+public class ConcurrentLRUCacheBenchmark {
+    private static final int CAPACITY = 2000;
+    private static final int KEYS = 4 * CAPACITY;
+    private static final long MAX_WEIGHT = CAPACITY * 8L;
+    private static final int ROUNDS = 3;
+
+    private static final Weigher<Integer> WEIGHER = new Weigher<Integer>() {
+        @Override
+        public int weigh(Integer value) {
+            return 1 + (value & 15);
+        }
+    };
+
+    private interface CacheFactory {
+        MemoryCache<Integer, Integer> create();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 2 * Runtime.getRuntime().availableProcessors();
+        int opsPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 500000;
+        System.out.println("Processors: " + Runtime.getRuntime().availableProcessors());
+
+        int[][] streams = new int[maxThreads][];
+        for (int i = 0; i < maxThreads; i++) {
+            streams[i] = zipfKeys(new Random(42 + i), opsPerThread);
+        }
+
+        CacheFactory lru = new CacheFactory() {
+            @Override
+            public MemoryCache<Integer, Integer> create() {
+                return NewLRUCache.withMaxWeight(MAX_WEIGHT, WEIGHER);
+            }
+        };
+        CacheFactory concurrent = new CacheFactory() {
+            @Override
+            public MemoryCache<Integer, Integer> create() {
+                return new ConcurrentLRUCache<Integer, Integer>(MAX_WEIGHT, WEIGHER);
+            }
+        };
+
+        System.out.println("threads\tcache\tMops/s\thit ratio");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            run("NewLRUCache", lru, streams, threads);
+            run("ConcurrentLRUCache", concurrent, streams, threads);
+        }
+    }
+
+    /**
+     * Run the key streams on a new cache, keeping the best of a few rounds to
+     * leave the JIT warm up.
+     */
+    private static void run(String name, CacheFactory factory, final int[][] streams, int threads)
+            throws InterruptedException {
+        double bestOpsPerSecond = 0;
+        double hitRatio = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            final MemoryCache<Integer, Integer> cache = factory.create();
+            final AtomicLong hits = new AtomicLong();
+            final CountDownLatch start = new CountDownLatch(1);
+            final CountDownLatch done = new CountDownLatch(threads);
+            for (int t = 0; t < threads; t++) {
+                final int[] keys = streams[t];
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        long localHits = 0;
+                        for (int key : keys) {
+                            Integer boxed = Integer.valueOf(key);
+                            if (cache.get(boxed) != null) {
+                                localHits++;
+                            } else {
+                                cache.put(boxed, boxed);
+                            }
+                        }
+                        hits.addAndGet(localHits);
+                        done.countDown();
+                    }
+                }.start();
+            }
+            long begin = System.nanoTime();
+            start.countDown();
+            done.await();
+            long elapsed = System.nanoTime() - begin;
+            long ops = (long) threads * streams[0].length;
+            double opsPerSecond = ops * 1e9 / elapsed;
+            if (opsPerSecond > bestOpsPerSecond) {
+                bestOpsPerSecond = opsPerSecond;
+                hitRatio = (double) hits.get() / ops;
+            }
+        }
+        System.out.println(String.format("%d\t%s\t%.2f\t%.3f", threads, name, bestOpsPerSecond / 1e6, hitRatio));
+    }
+
+    /**
+     * @return Keys following a Zipf distribution of exponent 0.9, the most
+     *         popular keys being spread over the key space.
+     */
+    private static int[] zipfKeys(Random random, int count) {
+        double[] cumulative = new double[KEYS];
+        double sum = 0;
+        for (int i = 0; i < KEYS; i++) {
+            sum += 1 / Math.pow(i + 1, 0.9);
+            cumulative[i] = sum;
+        }
+        int[] keys = new int[count];
+        for (int i = 0; i < count; i++) {
+            double target = random.nextDouble() * sum;
+            int low = 0;
+            int high = KEYS - 1;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (cumulative[mid] < target) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            keys[i] = low * 0x9E3779B1;
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,119 @@
+package com.kg.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class ConcurrentLRUCacheTest extends TestCase {
+    private static final Weigher<Integer> WEIGHER = new Weigher<Integer>() {
+        @Override
+        public int weigh(Integer value) {
+            return value;
+        }
+    };
+
+    public void testEvictsTheLeastRecentlyUsedAcrossSegments() {
+        ConcurrentLRUCache<String, Integer> cache = new ConcurrentLRUCache<String, Integer>(10, WEIGHER, 8);
+        final List<String> evicted = new ArrayList<String>();
+        cache.setEvictionListener(new EvictionListener<String, Integer>() {
+            @Override
+            public void onEvicted(String key, Integer value) {
+                evicted.add(key);
+            }
+        });
+        for (int i = 0; i < 10; i++) {
+            cache.put("key" + i, 1);
+        }
+        // Make the first entries the most recently used
+        for (int i = 0; i < 5; i++) {
+            assertEquals(Integer.valueOf(1), cache.get("key" + i));
+        }
+        cache.put("big", 5);
+        assertEquals(10, cache.getCurrentWeight());
+        assertEquals(5, evicted.size());
+        for (int i = 5; i < 10; i++) {
+            assertTrue(evicted.contains("key" + i));
+            assertNull(cache.get("key" + i));
+        }
+        for (int i = 0; i < 5; i++) {
+            assertNotNull(cache.get("key" + i));
+        }
+        assertNotNull(cache.get("big"));
+    }
+
+    public void testReadsBeyondTheBufferSizeAreReplayed() {
+        ConcurrentLRUCache<String, Integer> cache = new ConcurrentLRUCache<String, Integer>(100, WEIGHER, 1);
+        for (int i = 0; i < 100; i++) {
+            cache.put("key" + i, 1);
+        }
+        // Many more reads than a buffer holds, the eldest half being read
+        // last
+        for (int round = 0; round < 3; round++) {
+            for (int i = 99; i >= 0; i--) {
+                assertNotNull(cache.get("key" + i));
+            }
+        }
+        for (int i = 0; i < 50; i++) {
+            cache.put("new" + i, 1);
+        }
+        // Some reads may be dropped, but most of the recently read entries
+        // survive
+        int survivors = 0;
+        for (int i = 0; i < 50; i++) {
+            if (cache.get("key" + i) != null) {
+                survivors++;
+            }
+        }
+        assertTrue(survivors >= 40);
+        assertEquals(100, cache.getCurrentWeight());
+        assertEquals(100, cache.getCurrentUsage());
+    }
+
+    public void testCountsAndWeightsAfterReplacement() {
+        ConcurrentLRUCache<String, Integer> cache = new ConcurrentLRUCache<String, Integer>(100, WEIGHER, 4);
+        cache.put("a", 10);
+        cache.put("b", 20);
+        cache.put("a", 30);
+        assertEquals(2, cache.getCurrentUsage());
+        assertEquals(50, cache.getCurrentWeight());
+        cache.put("too big", 101);
+        assertNull(cache.get("too big"));
+        assertEquals(50, cache.getCurrentWeight());
+    }
+
+    public void testConcurrentAccessKeepsTheLimits() throws InterruptedException {
+        final ConcurrentLRUCache<Integer, Integer> cache = new ConcurrentLRUCache<Integer, Integer>(500, WEIGHER, 4);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 20000; i++) {
+                        Integer key = Integer.valueOf((i * 7919 + seed * 104729) % 2000);
+                        if (cache.get(key) == null) {
+                            cache.put(key, 1 + (key & 7));
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(cache.getCurrentWeight() <= 500);
+        int weight = 0;
+        int count = 0;
+        for (int key = 0; key < 2000; key++) {
+            Integer value = cache.get(key);
+            if (value != null) {
+                weight += value;
+                count++;
+            }
+        }
+        assertEquals(weight, cache.getCurrentWeight());
+        assertEquals(count, cache.getCurrentUsage());
+    }
+}
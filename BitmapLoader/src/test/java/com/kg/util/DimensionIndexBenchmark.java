@@ -0,0 +1,145 @@
+package com.kg.util;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Footprint and lookup time of {@link DimensionIndex} compared to the map of
+ * Uri strings to int arrays it replaced. Not run by the unit tests, run it
+ * with:
+ *
+ * <pre>
+ * mvn -q test-compile
+ * java -cp target/classes:target/test-classes com.kg.util.DimensionIndexBenchmark [pictures] [threads]
+ * </pre>
+ *
+ * 80% of the Uris are MediaStore images, the others are file paths. Each
+ * lookup builds a new Uri string, like a list adapter does with the Uris of
+ * its rows. The footprint is measured from the used heap, so the figures are
+ * approximate. The lookups are timed on one thread, then on several threads
+ * doing the same lookups at the same time, by default one per available
+ * processor and at least 2. The concurrent figures are the wall time divided
+ * by the total number of lookups.
+ */
+public class DimensionIndexBenchmark {
+    private static final int LOOKUPS = 2000000;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws InterruptedException {
+        int pictures = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1])
+                : Math.max(2, Runtime.getRuntime().availableProcessors());
+        String[] uris = new String[pictures];
+        Random random = new Random(42);
+        for (int i = 0; i < pictures; i++) {
+            uris[i] = random.nextInt(5) == 0 ? "file:///sdcard/DCIM/Camera/IMG_" + i + ".jpg"
+                    : "content://media/external/images/media/" + (100000 + i);
+        }
+
+        long before = usedMemory();
+        ConcurrentHashMap<String, int[]> map = new ConcurrentHashMap<String, int[]>();
+        for (int i = 0; i < pictures; i++) {
+            map.put(new String(uris[i]), new int[] { 4000, 3000, 1 });
+        }
+        long mapBytes = usedMemory() - before;
+
+        before = usedMemory();
+        DimensionIndex index = new DimensionIndex(pictures);
+        for (int i = 0; i < pictures; i++) {
+            index.put(DimensionIndex.keyOf(uris[i]),
+                    DimensionIndex.pack(4000, 3000, 1, ImageInfo.Format.JPEG), DimensionIndex.NO_THUMBNAIL);
+        }
+        long indexBytes = usedMemory() - before;
+        System.out.println("pictures: " + pictures + ", threads: " + threads);
+        System.out.println("footprint\tmap " + mapBytes / 1024 + " KB\tindex " + indexBytes / 1024 + " KB");
+
+        int[] order = new int[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            order[i] = random.nextInt(pictures);
+        }
+        for (int round = 0; round < ROUNDS; round++) {
+            long sum = 0;
+            long begin = System.nanoTime();
+            sum += lookupMap(map, uris, order);
+            long mapNanos = System.nanoTime() - begin;
+            begin = System.nanoTime();
+            sum += lookupIndex(index, uris, order);
+            long indexNanos = System.nanoTime() - begin;
+            System.out.println(String.format("lookup\tmap %.1f ns/op\tindex %.1f ns/op\t(%d)",
+                    (double) mapNanos / LOOKUPS, (double) indexNanos / LOOKUPS, sum));
+        }
+        for (int round = 0; round < ROUNDS; round++) {
+            long mapNanos = runConcurrently(threads, map, null, uris, order);
+            long indexNanos = runConcurrently(threads, null, index, uris, order);
+            System.out.println(String.format("concurrent lookup\tmap %.1f ns/op\tindex %.1f ns/op",
+                    (double) mapNanos / ((long) LOOKUPS * threads),
+                    (double) indexNanos / ((long) LOOKUPS * threads)));
+        }
+    }
+
+    private static long lookupMap(ConcurrentHashMap<String, int[]> map, String[] uris, int[] order) {
+        long sum = 0;
+        for (int i : order) {
+            sum += map.get(copy(uris[i]))[0];
+        }
+        return sum;
+    }
+
+    private static long lookupIndex(DimensionIndex index, String[] uris, int[] order) {
+        long sum = 0;
+        for (int i : order) {
+            sum += DimensionIndex.width(index.get(DimensionIndex.keyOf(copy(uris[i]))));
+        }
+        return sum;
+    }
+
+    /**
+     * Do the lookups on each thread, in the map if it is given, else in the
+     * index, all threads starting together.
+     *
+     * @return The wall time, in nanoseconds.
+     */
+    private static long runConcurrently(int threads, final ConcurrentHashMap<String, int[]> map,
+            final DimensionIndex index, final String[] uris, final int[] order)
+            throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long sum = map != null ? lookupMap(map, uris, order) : lookupIndex(index, uris, order);
+                    if (sum == 0) {
+                        System.out.println("no lookup");
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return System.nanoTime() - begin;
+    }
+
+    /** @return A new String, whose hash code is not cached yet. */
+    private static String copy(String uri) {
+        return new String(uri.toCharArray());
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
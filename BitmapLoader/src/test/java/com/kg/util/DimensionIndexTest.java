@@ -0,0 +1,150 @@
+package com.kg.util;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+public class DimensionIndexTest extends TestCase {
+
+    public void testMediaStoreKeys() {
+        assertEquals(1, DimensionIndex.keyOf("content://media/external/images/media/0"));
+        assertEquals(1235, DimensionIndex.keyOf("content://media/external/images/media/1234"));
+        // Not an id, hashed
+        long hashed = DimensionIndex.keyOf("content://media/external/images/media/12a");
+        assertTrue(hashed < 0);
+        assertEquals(hashed, DimensionIndex.keyOf("content://media/external/images/media/12a"));
+        assertTrue(DimensionIndex.keyOf("file:///sdcard/DCIM/1.jpg") < 0);
+        assertTrue(DimensionIndex.keyOf("file:///sdcard/DCIM/1.jpg") != DimensionIndex
+                .keyOf("file:///sdcard/DCIM/2.jpg"));
+    }
+
+    public void testPackedProperties() {
+        long value = DimensionIndex.pack(4000, 3000, ExifOrientation.TRANSPOSE, ImageInfo.Format.JPEG);
+        assertEquals(4000, DimensionIndex.width(value));
+        assertEquals(3000, DimensionIndex.height(value));
+        assertEquals(ExifOrientation.TRANSPOSE, DimensionIndex.orientation(value));
+        assertEquals(ImageInfo.Format.JPEG, DimensionIndex.format(value));
+        value = DimensionIndex.pack(0xffffff, 1, ExifOrientation.NORMAL, null);
+        assertEquals(0xffffff, DimensionIndex.width(value));
+        assertNull(DimensionIndex.format(value));
+        assertEquals(0, DimensionIndex.pack(0, 100, ExifOrientation.NORMAL, null));
+        assertEquals(0, DimensionIndex.pack(0x1000000, 100, ExifOrientation.NORMAL, null));
+    }
+
+    public void testPackedThumbnail() {
+        ImageInfo info = new ImageInfo();
+        assertEquals(DimensionIndex.NO_THUMBNAIL, DimensionIndex.packThumbnail(info));
+        assertFalse(DimensionIndex.hasThumbnail(DimensionIndex.NO_THUMBNAIL));
+        info.exifThumbnailOffset = 0xfffff;
+        info.exifThumbnailLength = 0xffff;
+        info.exifThumbnailWidth = 160;
+        info.exifThumbnailHeight = 120;
+        long thumbnail = DimensionIndex.packThumbnail(info);
+        assertTrue(DimensionIndex.hasThumbnail(thumbnail));
+        assertEquals(0xfffff, DimensionIndex.thumbnailOffset(thumbnail));
+        assertEquals(0xffff, DimensionIndex.thumbnailLength(thumbnail));
+        assertEquals(160, DimensionIndex.thumbnailWidth(thumbnail));
+        assertEquals(120, DimensionIndex.thumbnailHeight(thumbnail));
+        // Too far in the file to be indexed
+        info.exifThumbnailOffset = 0x100000;
+        assertEquals(DimensionIndex.NO_THUMBNAIL, DimensionIndex.packThumbnail(info));
+    }
+
+    public void testPutAndGet() {
+        DimensionIndex index = new DimensionIndex(1000);
+        for (int i = 1; i <= 1000; i++) {
+            index.put(i, DimensionIndex.pack(i, 2 * i, 1, null), i * 7L);
+        }
+        assertEquals(1000, index.size());
+        for (int i = 1; i <= 1000; i++) {
+            assertEquals(2 * i, DimensionIndex.height(index.get(i)));
+            assertEquals(i * 7L, index.getThumbnail(i));
+        }
+        assertEquals(0, index.get(1001));
+        assertEquals(0, index.getThumbnail(1001));
+        index.put(5, DimensionIndex.pack(50, 60, 1, null), DimensionIndex.NO_THUMBNAIL);
+        assertEquals(1000, index.size());
+        assertEquals(50, DimensionIndex.width(index.get(5)));
+        assertEquals(DimensionIndex.NO_THUMBNAIL, index.getThumbnail(5));
+    }
+
+    public void testReferencedEntriesSurviveEviction() {
+        DimensionIndex index = new DimensionIndex(100);
+        for (int i = 1; i <= 100; i++) {
+            index.put(i, DimensionIndex.pack(i, i, 1, null), 0);
+        }
+        for (int i = 1; i <= 10; i++) {
+            index.get(i);
+        }
+        for (int i = 101; i <= 150; i++) {
+            index.put(i, DimensionIndex.pack(i, i, 1, null), 0);
+        }
+        assertEquals(100, index.size());
+        for (int i = 1; i <= 10; i++) {
+            assertEquals(i, DimensionIndex.width(index.get(i)));
+        }
+        assertEquals(150, DimensionIndex.width(index.get(150)));
+    }
+
+    public void testLookupsAfterManyEvictions() {
+        // Hashed keys collide in slots, removals must keep the probe
+        // sequences intact
+        DimensionIndex index = new DimensionIndex(50);
+        for (int i = 0; i < 5000; i++) {
+            long key = DimensionIndex.keyOf("file:///sdcard/" + i + ".jpg");
+            index.put(key, DimensionIndex.pack(i + 1, 1, 1, null), 0);
+            assertEquals(i + 1, DimensionIndex.width(index.get(key)));
+        }
+        assertEquals(50, index.size());
+        int found = 0;
+        for (int i = 0; i < 5000; i++) {
+            long value = index.get(DimensionIndex.keyOf("file:///sdcard/" + i + ".jpg"));
+            if (value != 0) {
+                assertEquals(i + 1, DimensionIndex.width(value));
+                found++;
+            }
+        }
+        assertEquals(50, found);
+    }
+
+    public void testLookupsDuringWrites() throws InterruptedException {
+        // Evictions move entries between slots while the readers probe
+        final DimensionIndex index = new DimensionIndex(50);
+        final AtomicBoolean failed = new AtomicBoolean();
+        Thread[] readers = new Thread[2];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 200000; i++) {
+                        long key = DimensionIndex.keyOf("file:///sdcard/" + i % 5000 + ".jpg");
+                        long value = index.get(key);
+                        if (value != 0 && DimensionIndex.width(value) != i % 5000 + 1) {
+                            failed.set(true);
+                        }
+                    }
+                }
+            };
+            readers[r].start();
+        }
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 5000; i++) {
+                long key = DimensionIndex.keyOf("file:///sdcard/" + i + ".jpg");
+                index.put(key, DimensionIndex.pack(i + 1, 1, 1, null), 0);
+            }
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertFalse(failed.get());
+        assertEquals(50, index.size());
+    }
+
+    public void testClear() {
+        DimensionIndex index = new DimensionIndex(10);
+        index.put(1, DimensionIndex.pack(1, 1, 1, null), 0);
+        index.clear();
+        assertEquals(0, index.size());
+        assertEquals(0, index.get(1));
+    }
+}
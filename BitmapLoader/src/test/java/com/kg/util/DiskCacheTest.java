@@ -0,0 +1,139 @@
+package com.kg.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import junit.framework.TestCase;
+
+public class DiskCacheTest extends TestCase {
+    private File directory;
+
+    @Override
+    protected void setUp() throws IOException {
+        directory = File.createTempFile("diskcache", "");
+        directory.delete();
+    }
+
+    @Override
+    protected void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static byte[] data(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (seed + i);
+        }
+        return data;
+    }
+
+    private static byte[] read(DiskCache.Entry entry) throws IOException {
+        File file = entry.getFile();
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream input = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < data.length) {
+                read += input.read(data, read, data.length - read);
+            }
+        } finally {
+            input.close();
+        }
+        return data;
+    }
+
+    public void testPutAndGet() throws IOException {
+        DiskCache cache = new DiskCache(directory, 1000);
+        assertNull(cache.get("a"));
+        cache.put("a", data(100, 1));
+        DiskCache.Entry entry = cache.get("a");
+        assertEquals(100, entry.length);
+        assertEquals(data(100, 1)[42], read(entry)[42]);
+        cache.put("a", data(50, 2));
+        assertEquals(50, cache.size());
+        cache.close();
+    }
+
+    public void testLeastRecentlyUsedAreEvicted() throws IOException {
+        DiskCache cache = new DiskCache(directory, 300);
+        cache.put("a", data(100, 1));
+        cache.put("b", data(100, 2));
+        cache.put("c", data(100, 3));
+        cache.get("a");
+        cache.put("d", data(100, 4));
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals(300, cache.size());
+        // Larger than the cache, not stored
+        cache.put("e", data(400, 5));
+        assertNull(cache.get("e"));
+        cache.close();
+    }
+
+    public void testJournalReplay() throws IOException {
+        DiskCache cache = new DiskCache(directory, 300);
+        cache.put("a", data(100, 1));
+        cache.put("b", data(100, 2));
+        cache.put("c", data(100, 3));
+        cache.remove(cache.get("c"));
+        // Buffered, written on close
+        cache.get("a");
+        cache.close();
+        cache = new DiskCache(directory, 300);
+        assertNull(cache.get("c"));
+        assertEquals(200, cache.size());
+        cache.put("d", data(100, 4));
+        cache.put("e", data(100, 5));
+        // b was the least recently used
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+        cache.close();
+    }
+
+    public void testReplacedEntryIsNotRemoved() throws IOException {
+        DiskCache cache = new DiskCache(directory, 1000);
+        cache.put("a", data(100, 1));
+        DiskCache.Entry stale = cache.get("a");
+        cache.put("a", data(80, 2));
+        cache.remove(stale);
+        DiskCache.Entry fresh = cache.get("a");
+        assertNotNull(fresh);
+        assertEquals(80, fresh.length);
+        cache.remove(fresh);
+        assertNull(cache.get("a"));
+        cache.close();
+    }
+
+    public void testIncompleteFilesAreDeleted() throws IOException {
+        DiskCache cache = new DiskCache(directory, 1000);
+        cache.put("a", data(100, 1));
+        cache.put("b", data(100, 2));
+        File truncated = cache.get("b").getFile();
+        cache.close();
+        RandomAccessFile file = new RandomAccessFile(truncated, "rw");
+        file.setLength(10);
+        file.close();
+        File unknown = new File(directory, "0123456789abcdef.1.tmp");
+        unknown.createNewFile();
+        cache = new DiskCache(directory, 1000);
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertFalse(truncated.exists());
+        assertFalse(unknown.exists());
+        assertEquals(100, cache.size());
+        cache.close();
+    }
+
+    public void testFileNames() {
+        assertEquals(16, DiskCache.fileName("content://media/external/images/media/1").length());
+        assertFalse(DiskCache.fileName("a").equals(DiskCache.fileName("b")));
+    }
+}
@@ -0,0 +1,75 @@
+package com.kg.util;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class ExifParserTest extends TestCase {
+    /** Position of the APP1 segment data in the fixtures, after SOI, marker and length. */
+    private static final int SEGMENT_OFFSET = 6;
+
+    /**
+     * @return The data of the APP1 segment which follows the Start Of Image
+     *         marker of a fixture.
+     */
+    private static byte[] app1Segment(byte[] picture) {
+        assertEquals(0xff, picture[2] & 0xff);
+        assertEquals(0xe1, picture[3] & 0xff);
+        int length = ((picture[4] & 0xff) << 8) | (picture[5] & 0xff);
+        return Arrays.copyOfRange(picture, SEGMENT_OFFSET, SEGMENT_OFFSET + length - 2);
+    }
+
+    public void testBigEndianWithThumbnail() throws IOException {
+        byte[] picture = ImageHeaderParserTest.fixture("exif-rotate90-thumbnail-64x48.jpg");
+        ImageInfo info = new ImageInfo();
+        assertTrue(ExifParser.parse(app1Segment(picture), SEGMENT_OFFSET, true, info));
+        assertEquals(ExifOrientation.ROTATE_90, info.orientation);
+        assertEquals(16, info.exifThumbnailWidth);
+        assertEquals(12, info.exifThumbnailHeight);
+        assertNotNull(info.exifThumbnail);
+        assertEquals(0xff, info.exifThumbnail[0] & 0xff);
+        assertEquals(0xd8, info.exifThumbnail[1] & 0xff);
+        assertTrue(Arrays.equals(info.exifThumbnail, Arrays.copyOfRange(picture, info.exifThumbnailOffset,
+                info.exifThumbnailOffset + info.exifThumbnailLength)));
+    }
+
+    public void testThumbnailLocatedWithoutCopy() throws IOException {
+        byte[] picture = ImageHeaderParserTest.fixture("exif-rotate90-thumbnail-64x48.jpg");
+        ImageInfo info = new ImageInfo();
+        assertTrue(ExifParser.parse(app1Segment(picture), SEGMENT_OFFSET, false, info));
+        assertNull(info.exifThumbnail);
+        assertEquals(16, info.exifThumbnailWidth);
+        assertEquals(12, info.exifThumbnailHeight);
+        assertTrue(info.exifThumbnailOffset > SEGMENT_OFFSET);
+        assertTrue(info.exifThumbnailLength > 0);
+    }
+
+    public void testLittleEndianWithoutThumbnail() throws IOException {
+        byte[] picture = ImageHeaderParserTest.fixture("exif-mirror-little-endian-64x48.jpg");
+        ImageInfo info = new ImageInfo();
+        assertTrue(ExifParser.parse(app1Segment(picture), SEGMENT_OFFSET, true, info));
+        assertEquals(ExifOrientation.FLIP_HORIZONTAL, info.orientation);
+        assertNull(info.exifThumbnail);
+        assertEquals(0, info.exifThumbnailLength);
+    }
+
+    public void testNotExif() throws IOException {
+        ImageInfo info = new ImageInfo();
+        byte[] xmp = "http://ns.adobe.com/xap/1.0/\0<x:xmpmeta/>".getBytes("US-ASCII");
+        assertFalse(ExifParser.parse(xmp, SEGMENT_OFFSET, true, info));
+        assertEquals(ExifOrientation.NORMAL, info.orientation);
+    }
+
+    public void testTruncatedData() throws IOException {
+        byte[] segment = app1Segment(ImageHeaderParserTest.fixture("exif-rotate90-thumbnail-64x48.jpg"));
+        // Every truncation is either ignored or partially read, never fails
+        for (int length = 14; length < segment.length; length += 7) {
+            ImageInfo info = new ImageInfo();
+            assertTrue(ExifParser.parse(Arrays.copyOf(segment, length), SEGMENT_OFFSET, true, info));
+            if (info.exifThumbnail != null) {
+                assertEquals(info.exifThumbnailLength, info.exifThumbnail.length);
+            }
+        }
+    }
+}
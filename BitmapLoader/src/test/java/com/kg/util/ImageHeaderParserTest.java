@@ -0,0 +1,118 @@
+package com.kg.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import com.kg.util.ImageInfo.Format;
+
+public class ImageHeaderParserTest extends TestCase {
+    static byte[] fixture(String name) throws IOException {
+        InputStream input = ImageHeaderParserTest.class.getResourceAsStream(name);
+        assertNotNull("Missing fixture " + name, input);
+        try {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                data.write(buffer, 0, read);
+            }
+            return data.toByteArray();
+        } finally {
+            input.close();
+        }
+    }
+
+    private static ImageInfo parse(String name) throws IOException {
+        return ImageHeaderParser.parse(new ByteArrayInputStream(fixture(name)));
+    }
+
+    private static void assertInfo(ImageInfo info, Format format, int width, int height, boolean hasAlpha) {
+        assertNotNull(info);
+        assertEquals(format, info.format);
+        assertEquals(width, info.width);
+        assertEquals(height, info.height);
+        assertEquals(hasAlpha, info.hasAlpha);
+    }
+
+    public void testBaselineJpeg() throws IOException {
+        assertInfo(parse("baseline-40x30.jpg"), Format.JPEG, 40, 30, false);
+    }
+
+    public void testProgressiveJpeg() throws IOException {
+        assertInfo(parse("progressive-40x30.jpg"), Format.JPEG, 40, 30, false);
+    }
+
+    public void testPng() throws IOException {
+        assertInfo(parse("rgb-20x10.png"), Format.PNG, 20, 10, false);
+        assertInfo(parse("rgba-20x10.png"), Format.PNG, 20, 10, true);
+        // Palette with a tRNS chunk
+        assertInfo(parse("indexed-transparent-12x8.png"), Format.PNG, 12, 8, true);
+    }
+
+    public void testGif() throws IOException {
+        assertInfo(parse("opaque-12x8.gif"), Format.GIF, 12, 8, false);
+        assertInfo(parse("transparent-12x8.gif"), Format.GIF, 12, 8, true);
+    }
+
+    public void testBmp() throws IOException {
+        assertInfo(parse("rgb-15x9.bmp"), Format.BMP, 15, 9, false);
+    }
+
+    public void testWebp() throws IOException {
+        assertInfo(parse("lossy-1x1.webp"), Format.WEBP, 1, 1, false);
+        // This one sets the alpha hint of its lossless bitstream
+        assertInfo(parse("lossless-1x1.webp"), Format.WEBP, 1, 1, true);
+        assertInfo(parse("alpha-1x1.webp"), Format.WEBP, 1, 1, true);
+    }
+
+    public void testOnlyTheHeaderIsRead() throws IOException {
+        byte[] data = fixture("baseline-40x30.jpg");
+        ByteArrayInputStream input = new ByteArrayInputStream(data);
+        ImageHeaderParser.parse(input);
+        // The pixels after the Start Of Frame are left unread
+        assertTrue(input.available() > data.length / 2);
+    }
+
+    public void testHeaderLimit() throws IOException {
+        byte[] data = fixture("baseline-40x30.jpg");
+        // The Start Of Frame is past the first 20 bytes
+        assertNull(ImageHeaderParser.parse(new ByteArrayInputStream(data), 20));
+    }
+
+    public void testTruncatedPicture() throws IOException {
+        byte[] data = fixture("rgb-20x10.png");
+        assertNull(ImageHeaderParser.parse(new ByteArrayInputStream(Arrays.copyOf(data, 20))));
+    }
+
+    public void testExifThumbnailLocation() throws IOException {
+        byte[] data = fixture("exif-rotate90-thumbnail-64x48.jpg");
+        ImageInfo info = ImageHeaderParser.parse(new ByteArrayInputStream(data), data.length, true);
+        assertInfo(info, Format.JPEG, 64, 48, false);
+        assertNotNull(info.exifThumbnail);
+        assertEquals(info.exifThumbnail.length, info.exifThumbnailLength);
+        // The location points at the thumbnail in the picture data
+        assertTrue(Arrays.equals(info.exifThumbnail, Arrays.copyOfRange(data, info.exifThumbnailOffset,
+                info.exifThumbnailOffset + info.exifThumbnailLength)));
+
+        long thumbnail = DimensionIndex.packThumbnail(info);
+        assertTrue(DimensionIndex.hasThumbnail(thumbnail));
+        assertEquals(info.exifThumbnailOffset, DimensionIndex.thumbnailOffset(thumbnail));
+        assertEquals(info.exifThumbnailLength, DimensionIndex.thumbnailLength(thumbnail));
+        assertEquals(16, DimensionIndex.thumbnailWidth(thumbnail));
+        assertEquals(12, DimensionIndex.thumbnailHeight(thumbnail));
+
+        data = fixture("exif-mirror-little-endian-64x48.jpg");
+        info = ImageHeaderParser.parse(new ByteArrayInputStream(data), data.length, true);
+        assertFalse(DimensionIndex.hasThumbnail(DimensionIndex.packThumbnail(info)));
+    }
+
+    public void testUnknownFormat() throws IOException {
+        assertNull(ImageHeaderParser.parse(new ByteArrayInputStream("not a picture".getBytes("US-ASCII"))));
+        assertNull(ImageHeaderParser.parse(new ByteArrayInputStream(new byte[0])));
+    }
+}
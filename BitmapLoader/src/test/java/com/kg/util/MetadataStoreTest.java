@@ -0,0 +1,106 @@
+package com.kg.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import junit.framework.TestCase;
+
+public class MetadataStoreTest extends TestCase {
+    private static final long VALUE = DimensionIndex.pack(4000, 3000, ExifOrientation.ROTATE_90,
+            ImageInfo.Format.JPEG);
+    private static final long THUMBNAIL = 1234L | 512L << 16 | 160L << 36 | 120L << 48;
+
+    private File path;
+
+    @Override
+    protected void setUp() throws IOException {
+        path = File.createTempFile("metadata", ".store");
+    }
+
+    @Override
+    protected void tearDown() {
+        path.delete();
+    }
+
+    public void testRecordsSurviveReopening() throws IOException {
+        MetadataStore store = new MetadataStore(path, 100);
+        store.put(42, VALUE, THUMBNAIL, 2000000, 1350000000000L);
+        store.close();
+        store = new MetadataStore(path, 100);
+        assertEquals(VALUE, store.get(42, 2000000, 1350000000000L));
+        assertEquals(THUMBNAIL, store.getThumbnail(42, 2000000, 1350000000000L));
+        assertEquals(0, store.get(43, 2000000, 1350000000000L));
+        store.close();
+    }
+
+    public void testModifiedSourcesAreIgnored() throws IOException {
+        MetadataStore store = new MetadataStore(path, 100);
+        store.put(42, VALUE, THUMBNAIL, 2000000, 1350000000000L);
+        assertEquals(0, store.get(42, 2000001, 1350000000000L));
+        assertEquals(0, store.get(42, 2000000, 1350000001000L));
+        assertEquals(0, store.getThumbnail(42, 2000000, 1350000001000L));
+        // An unknown stamp does not match a stored one
+        assertEquals(0, store.get(42, -1, -1));
+        store.close();
+    }
+
+    public void testUpdateKeepsTheStamp() throws IOException {
+        MetadataStore store = new MetadataStore(path, 100);
+        assertFalse(store.update(42, VALUE, THUMBNAIL));
+        long seeded = DimensionIndex.pack(4000, 3000, ExifOrientation.NORMAL, null);
+        store.put(42, seeded, 0, 2000000, 1350000000000L);
+        assertTrue(store.update(42, VALUE, THUMBNAIL));
+        assertEquals(VALUE, store.get(42, 2000000, 1350000000000L));
+        assertEquals(THUMBNAIL, store.getThumbnail(42, 2000000, 1350000000000L));
+        store.close();
+    }
+
+    public void testTornRecordsAreIgnored() throws IOException {
+        MetadataStore store = new MetadataStore(path, 8);
+        store.put(42, VALUE, THUMBNAIL, 2000000, 1350000000000L);
+        store.close();
+        // Change a byte of the value of the only record
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            for (long position = 16; position < file.length(); position += 48) {
+                file.seek(position);
+                if (file.readLong() == 42) {
+                    file.seek(position + 8);
+                    file.writeByte(0x7f);
+                }
+            }
+        } finally {
+            file.close();
+        }
+        store = new MetadataStore(path, 8);
+        assertEquals(0, store.get(42, 2000000, 1350000000000L));
+        store.close();
+    }
+
+    public void testOtherFormatsAreReset() throws IOException {
+        MetadataStore store = new MetadataStore(path, 100);
+        store.put(42, VALUE, THUMBNAIL, 2000000, 1350000000000L);
+        store.close();
+        // Another capacity is another format
+        store = new MetadataStore(path, 1000);
+        assertEquals(0, store.get(42, 2000000, 1350000000000L));
+        store.close();
+    }
+
+    public void testFullProbeSequenceOverwritesTheHomeSlot() throws IOException {
+        MetadataStore store = new MetadataStore(path, 8);
+        for (long key = 1; key <= 100; key++) {
+            store.put(key, VALUE, 0, key, key);
+            assertEquals(VALUE, store.get(key, key, key));
+        }
+        int found = 0;
+        for (long key = 1; key <= 100; key++) {
+            if (store.get(key, key, key) != 0) {
+                found++;
+            }
+        }
+        assertTrue(found > 0 && found <= 8);
+        store.close();
+    }
+}
@@ -0,0 +1,88 @@
+package com.kg.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class RewindableInputStreamTest extends TestCase {
+    private static byte[] data(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        return data;
+    }
+
+    private static byte[] readAll(InputStream input) throws IOException {
+        byte[] result = new byte[0];
+        byte[] chunk = new byte[1000];
+        int read;
+        while ((read = input.read(chunk)) > 0) {
+            byte[] grown = Arrays.copyOf(result, result.length + read);
+            System.arraycopy(chunk, 0, grown, result.length, read);
+            result = grown;
+        }
+        return result;
+    }
+
+    public void testRewindReplaysTheHeader() throws IOException {
+        byte[] data = data(50000);
+        RewindableInputStream input = new RewindableInputStream(new ByteArrayInputStream(data), 1024);
+        input.mark(1024);
+        byte[] header = new byte[600];
+        assertEquals(600, input.read(header));
+        assertEquals(100, input.skip(100));
+        assertTrue(input.canReset());
+        input.rewind();
+        assertTrue(Arrays.equals(data, readAll(input)));
+    }
+
+    public void testReadlimitInvalidatesTheMark() throws IOException {
+        byte[] data = data(5000);
+        RewindableInputStream input = new RewindableInputStream(new ByteArrayInputStream(data), 4096);
+        input.mark(100);
+        input.read(new byte[100]);
+        assertTrue(input.canReset());
+        input.read();
+        assertFalse(input.canReset());
+        try {
+            input.reset();
+            fail("The mark should be invalidated");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    public void testCapacityBoundsTheReadlimit() throws IOException {
+        RewindableInputStream input = new RewindableInputStream(new ByteArrayInputStream(data(5000)), 1000);
+        input.mark(Integer.MAX_VALUE);
+        input.read(new byte[1001]);
+        assertFalse(input.canReset());
+    }
+
+    public void testNewMarkWhileReplaying() throws IOException {
+        byte[] data = data(3000);
+        RewindableInputStream input = new RewindableInputStream(new ByteArrayInputStream(data), 2048);
+        input.mark(2048);
+        input.read(new byte[1500]);
+        input.rewind();
+        // A decoder marking the rewound stream, as BitmapFactory does
+        input.mark(16);
+        assertEquals(data[0], (byte) input.read());
+        input.reset();
+        byte[] all = readAll(input);
+        assertTrue(Arrays.equals(data, all));
+    }
+
+    public void testNoMarkReadsThrough() throws IOException {
+        byte[] data = data(10000);
+        RewindableInputStream input = new RewindableInputStream(new ByteArrayInputStream(data), 1024);
+        assertFalse(input.canReset());
+        assertEquals(10, input.skip(10));
+        byte[] rest = readAll(input);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(data, 10, data.length), rest));
+    }
+}
@@ -0,0 +1,125 @@
+package com.kg.util;
+
+import junit.framework.TestCase;
+
+public class ScalePlannerTest extends TestCase {
+
+    public void testFitKeepsTheAspectRatio() {
+        ScalePlan plan = ScalePlanner.plan(4000, 3000, 800, 800, ScaleMode.FIT, false);
+        assertEquals(800, plan.finalWidth);
+        assertEquals(600, plan.finalHeight);
+        assertFalse(plan.isCropped());
+        // 4000 / 4 = 1000 >= 800 and 3000 / 4 = 750 >= 600, 8 would be too much
+        assertEquals(4, plan.sampleSize);
+    }
+
+    public void testFitWithOneDimension() {
+        ScalePlan plan = ScalePlanner.plan(4000, 3000, null, 300, ScaleMode.FIT, false);
+        assertEquals(400, plan.finalWidth);
+        assertEquals(300, plan.finalHeight);
+        plan = ScalePlanner.plan(4000, 3000, 1000, null, null, false);
+        assertEquals(ScaleMode.FIT, plan.mode);
+        assertEquals(1000, plan.finalWidth);
+        assertEquals(750, plan.finalHeight);
+    }
+
+    public void testFitNeverScalesUp() {
+        ScalePlan plan = ScalePlanner.plan(640, 480, 1920, 1080, ScaleMode.FIT, false);
+        assertEquals(640, plan.finalWidth);
+        assertEquals(480, plan.finalHeight);
+        assertEquals(1, plan.sampleSize);
+    }
+
+    public void testFitReservesRotation() {
+        // Landscape picture requested in a portrait screen
+        ScalePlan plan = ScalePlanner.plan(4000, 3000, 600, 1000, ScaleMode.FIT, true);
+        assertEquals(800, plan.finalWidth);
+        assertEquals(600, plan.finalHeight);
+        plan = ScalePlanner.plan(4000, 3000, 600, 1000, ScaleMode.FIT, false);
+        assertEquals(600, plan.finalWidth);
+        assertEquals(450, plan.finalHeight);
+    }
+
+    public void testCenterCropKeepsTheCenter() {
+        ScalePlan plan = ScalePlanner.plan(4000, 3000, 200, 200, ScaleMode.CENTER_CROP, false);
+        assertTrue(plan.isCropped());
+        assertEquals(500, plan.cropLeft);
+        assertEquals(0, plan.cropTop);
+        assertEquals(3000, plan.cropWidth);
+        assertEquals(3000, plan.cropHeight);
+        assertEquals(200, plan.finalWidth);
+        assertEquals(200, plan.finalHeight);
+        assertEquals(8, plan.sampleSize);
+    }
+
+    public void testCenterCropOfATallPicture() {
+        ScalePlan plan = ScalePlanner.plan(1000, 3000, 400, 200, ScaleMode.CENTER_CROP, false);
+        assertEquals(0, plan.cropLeft);
+        assertEquals(1250, plan.cropTop);
+        assertEquals(1000, plan.cropWidth);
+        assertEquals(500, plan.cropHeight);
+        assertEquals(400, plan.finalWidth);
+        assertEquals(200, plan.finalHeight);
+    }
+
+    public void testCenterCropNeverScalesUp() {
+        ScalePlan plan = ScalePlanner.plan(300, 200, 1000, 1000, ScaleMode.CENTER_CROP, false);
+        assertEquals(200, plan.cropWidth);
+        assertEquals(200, plan.cropHeight);
+        assertEquals(200, plan.finalWidth);
+        assertEquals(200, plan.finalHeight);
+    }
+
+    public void testExactStretches() {
+        ScalePlan plan = ScalePlanner.plan(4000, 3000, 100, 100, ScaleMode.EXACT, false);
+        assertEquals(100, plan.finalWidth);
+        assertEquals(100, plan.finalHeight);
+        assertFalse(plan.isCropped());
+        plan = ScalePlanner.plan(400, 300, 800, null, ScaleMode.EXACT, false);
+        assertEquals(800, plan.finalWidth);
+        assertEquals(600, plan.finalHeight);
+    }
+
+    public void testLongestEdge() {
+        ScalePlan plan = ScalePlanner.plan(3000, 4000, 1024, 500, ScaleMode.LONGEST_EDGE, false);
+        assertEquals(768, plan.finalWidth);
+        assertEquals(1024, plan.finalHeight);
+        plan = ScalePlanner.plan(800, 600, 1024, null, ScaleMode.LONGEST_EDGE, false);
+        assertEquals(800, plan.finalWidth);
+        assertEquals(600, plan.finalHeight);
+    }
+
+    public void testUnknownDimensionsKeepTheSize() {
+        ScalePlan plan = ScalePlanner.plan(0, 0, 100, 100, ScaleMode.FIT, false);
+        assertEquals(0, plan.finalWidth);
+        assertEquals(1, plan.sampleSize);
+        plan = ScalePlanner.plan(400, 300, null, null, ScaleMode.FIT, false);
+        assertEquals(400, plan.finalWidth);
+        assertEquals(300, plan.finalHeight);
+    }
+
+    public void testRotatedPictureIsPlannedAsDisplayed() {
+        // Stored landscape, displayed portrait
+        ScalePlan plan = ScalePlanner.plan(4000, 3000, ExifOrientation.ROTATE_90, 600, 800, ScaleMode.FIT, false);
+        assertEquals(3000, plan.srcWidth);
+        assertEquals(4000, plan.srcHeight);
+        assertEquals(600, plan.finalWidth);
+        assertEquals(800, plan.finalHeight);
+        assertEquals(ExifOrientation.ROTATE_90, plan.orientation);
+    }
+
+    public void testCoveredByAThumbnail() {
+        ScalePlan plan = ScalePlanner.plan(4000, 3000, 160, 120, ScaleMode.FIT, false);
+        assertTrue(ScalePlanner.isCoveredBy(plan, 160, 120));
+        assertFalse(ScalePlanner.isCoveredBy(plan, 120, 90));
+        // Letterboxed thumbnail
+        assertFalse(ScalePlanner.isCoveredBy(plan, 160, 160));
+    }
+
+    public void testRotatedThumbnailCoverage() {
+        ScalePlan plan = ScalePlanner.plan(4000, 3000, ExifOrientation.ROTATE_90, 120, 160, ScaleMode.FIT, false);
+        // The thumbnail is stored like the picture, landscape
+        assertTrue(ScalePlanner.isCoveredBy(plan, 160, 120));
+        assertFalse(ScalePlanner.isCoveredBy(plan, 120, 160));
+    }
+}
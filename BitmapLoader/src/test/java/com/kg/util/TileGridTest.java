@@ -0,0 +1,63 @@
+package com.kg.util;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class TileGridTest extends TestCase {
+
+    public void testLevels() {
+        TileGrid grid = new TileGrid(4000, 3000, 256);
+        // 256 * 16 = 4096 is the first span covering 4000 pixels
+        assertEquals(16, grid.getMaxSampleSize());
+        assertEquals(16, grid.getColumnCount(1));
+        assertEquals(12, grid.getRowCount(1));
+        assertEquals(1, grid.getColumnCount(16));
+        assertEquals(1, grid.getRowCount(16));
+    }
+
+    public void testSmallPictureIsASingleTile() {
+        TileGrid grid = new TileGrid(200, 100, 256);
+        assertEquals(1, grid.getMaxSampleSize());
+        assertEquals(1, grid.getColumnCount(1));
+        assertTrue(Arrays.equals(new int[] { 0, 0, 200, 100 }, grid.getTileBounds(1, 0, 0)));
+    }
+
+    public void testSampleSizeForScale() {
+        TileGrid grid = new TileGrid(4000, 3000, 256);
+        assertEquals(1, grid.getSampleSizeForScale(2f));
+        assertEquals(1, grid.getSampleSizeForScale(1f));
+        assertEquals(1, grid.getSampleSizeForScale(0.6f));
+        assertEquals(2, grid.getSampleSizeForScale(0.5f));
+        assertEquals(4, grid.getSampleSizeForScale(0.2f));
+        // Never coarser than a single tile
+        assertEquals(16, grid.getSampleSizeForScale(0.001f));
+    }
+
+    public void testEdgeTilesAreClipped() {
+        TileGrid grid = new TileGrid(1000, 600, 256);
+        assertTrue(Arrays.equals(new int[] { 256, 512, 512, 600 }, grid.getTileBounds(1, 1, 2)));
+        assertTrue(Arrays.equals(new int[] { 768, 0, 1000, 256 }, grid.getTileBounds(1, 3, 0)));
+        assertTrue(Arrays.equals(new int[] { 512, 0, 1000, 512 }, grid.getTileBounds(2, 1, 0)));
+    }
+
+    public void testVisibleTiles() {
+        TileGrid grid = new TileGrid(1000, 600, 256);
+        assertTrue(Arrays.equals(new int[] { 0, 0, 1, 1 }, grid.getVisibleTiles(1, 0, 0, 300, 300)));
+        // Right and bottom are exclusive
+        assertTrue(Arrays.equals(new int[] { 0, 0, 0, 0 }, grid.getVisibleTiles(1, 0, 0, 256, 256)));
+        // Clipped to the picture
+        assertTrue(Arrays.equals(new int[] { 2, 1, 3, 2 }, grid.getVisibleTiles(1, 600, 300, 5000, 5000)));
+        assertTrue(Arrays.equals(new int[] { 0, 0, 1, 1 }, grid.getVisibleTiles(2, -100, -100, 1000, 600)));
+        assertNull(grid.getVisibleTiles(1, 1000, 0, 1200, 100));
+    }
+
+    public void testInvalidGrid() {
+        try {
+            new TileGrid(0, 100, 256);
+            fail("An empty picture can't be tiled");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.kg.util;
+
+import junit.framework.TestCase;
+
+public class TinyLfuCacheTest extends TestCase {
+    private static final Weigher<Integer> WEIGHER = new Weigher<Integer>() {
+        @Override
+        public int weigh(Integer value) {
+            return value;
+        }
+    };
+
+    public void testSketchTellsFrequentKeys() {
+        FrequencySketch sketch = new FrequencySketch(1000);
+        for (int i = 0; i < 10; i++) {
+            sketch.increment("frequent");
+        }
+        sketch.increment("rare");
+        assertEquals(10, sketch.frequency("frequent"));
+        assertEquals(1, sketch.frequency("rare"));
+        assertEquals(0, sketch.frequency("unknown"));
+        for (int i = 0; i < 100; i++) {
+            sketch.increment("frequent");
+        }
+        assertEquals(15, sketch.frequency("frequent"));
+    }
+
+    public void testSketchAgesTheCounters() {
+        FrequencySketch sketch = new FrequencySketch(16);
+        for (int i = 0; i < 8; i++) {
+            sketch.increment("old");
+        }
+        // 10 times the row width, 16, halves all the counters
+        for (int i = 0; i < 160; i++) {
+            sketch.increment(Integer.valueOf(i));
+        }
+        assertTrue(sketch.frequency("old") <= 4);
+    }
+
+    public void testFrequentEntriesSurviveAScan() {
+        TinyLfuCache<String, Integer> cache = new TinyLfuCache<String, Integer>(100, WEIGHER, 100);
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 50; i++) {
+                if (cache.get("hot" + i) == null) {
+                    cache.put("hot" + i, 1);
+                }
+            }
+        }
+        for (int i = 0; i < 1000; i++) {
+            cache.put("scan" + i, 1);
+        }
+        // The sketch overestimates some keys sharing counters with others
+        int survivors = 0;
+        for (int i = 0; i < 50; i++) {
+            if (cache.get("hot" + i) != null) {
+                survivors++;
+            }
+        }
+        assertTrue(survivors >= 45);
+    }
+
+    public void testWindowHoldsALargeEntry() {
+        TinyLfuCache<String, Integer> cache = new TinyLfuCache<String, Integer>(1000, WEIGHER, 100, 100);
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 90; i++) {
+                if (cache.get("thumb" + i) == null) {
+                    cache.put("thumb" + i, 10);
+                }
+            }
+        }
+        // A preview, then a thumbnail put before the preview is shown again
+        cache.put("preview", 100);
+        cache.put("thumb90", 10);
+        assertNotNull(cache.get("preview"));
+    }
+}